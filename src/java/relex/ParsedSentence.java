@@ -404,18 +404,30 @@ public class ParsedSentence
 		truth_value = stv;
 		stv.setMean(1.0);  // 1.0 == true -- this is a parse.
 
+		double weight = simpleRank(getNumSkippedWords(),
+			getDisjunctCost(), getLinkCost());
+
+		stv.setConfidence(weight);
+		return weight;
+	}
+
+	/**
+	 * The score given by simpleRankParse(), from the Link-grammar
+	 * numbers alone; a parser can use it to rank linkages before
+	 * building them.
+	 */
+	public static double simpleRank(int numSkippedWords,
+	                                int disjunctCost, int linkCost)
+	{
 		// The weights used here are rather ad-hoc; but the
 		// basic idea is that we want to penalize skipped words
 		// strongly, but disjunct costs not as much. Low link
 		// costs are the tiebreaker.
-		double weight = 0.4 * getNumSkippedWords();
-		weight += 0.2 * getDisjunctCost();
-		weight += 0.02 * getLinkCost();
-
-		weight = Math.exp(-weight);
+		double weight = 0.4 * numSkippedWords;
+		weight += 0.2 * disjunctCost;
+		weight += 0.02 * linkCost;
 
-		stv.setConfidence(weight);
-		return weight;
+		return Math.exp(-weight);
 	}
 
 	/**
@@ -17,14 +17,23 @@
 package relex;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import relex.algs.SentenceAlgorithmApplier;
 import relex.anaphora.Antecedents;
@@ -39,10 +48,11 @@ import relex.concurrent.RelexContext;
 // import relex.corpus.QuotesParensSentenceDetector;
 import relex.corpus.DocSplitter;
 import relex.corpus.DocSplitterFactory;
-import relex.feature.FeatureNode;
+import relex.feature.FeatureArena;
 import relex.feature.LinkView;
 import relex.morphy.Morphy;
 import relex.morphy.MorphyFactory;
+import relex.morphy.SynchronizedMorphy;
 import relex.output.NLGInputView;
 import relex.output.LogicView;
 import relex.output.OpenCogScheme;
@@ -50,13 +60,16 @@ import relex.output.PrologList;
 import relex.output.RawView;
 import relex.output.SimpleView;
 import relex.output.StanfordView;
+import relex.parser.CachingParser;
+import relex.parser.IParser;
 import relex.parser.LGParser;
 import relex.parser.LocalLGParser;
+import relex.parser.ParseStore;
 import relex.parser.RemoteLGParser;
+import relex.parser.ReplayParser;
 import relex.stats.TruthValue;
 import relex.stats.SimpleTruthValue;
 import relex.tree.PhraseMarkup;
-import relex.tree.PhraseTree;
 
 /**
  * The RelationExtractor class provides the central processing
@@ -90,6 +103,14 @@ public class RelationExtractor
 	/** Syntax processing */
 	private LGParser parser;
 
+	/** Cache of parses, in front of the parser; null if none */
+	private CachingParser parseCache;
+	private int parseCacheEntries;
+	private long parseCacheBytes;
+
+	/** Stored parses, replayed in place of parsing; null if none */
+	private ReplayParser replayParser;
+
 	/** Dependency processing */
 	private SentenceAlgorithmApplier sentenceAlgorithmApplier;
 
@@ -118,6 +139,17 @@ public class RelationExtractor
 	/** Expand preposition markup into two dependencies. */
 	public boolean do_expand_preps;
 
+	/**
+	 * Allocate the feature graphs of each sentence in a FeatureArena,
+	 * so that their storage is recycled when the sentence is passed to
+	 * release().  Off by default.
+	 */
+	public boolean do_arena;
+	private FeatureArena.Pool arenaPool;
+
+	/** Threads to process the parses of a sentence on; null if none */
+	private ExecutorService parseThreads;
+
 	/** Statistics */
 	private ParseStats stats;
 
@@ -138,6 +170,7 @@ public class RelationExtractor
 		do_stanford = false;
 		do_penn_tagging = false;
 		do_expand_preps = false;
+		do_arena = false;
 	}
 
 	public RelationExtractor()
@@ -169,9 +202,10 @@ public class RelationExtractor
 		// XXX TODO: this is loading the English Language morphy;
 		// we need to load a generic language handler.
 		Morphy morphy = MorphyFactory.getImplementation(MorphyFactory.DEFAULT_SINGLE_THREAD_IMPLEMENTATION);
+		if (parseThreads != null) morphy = new SynchronizedMorphy(morphy);
 		context = new RelexContext(parser, morphy);
 
-		sentenceAlgorithmApplier = new SentenceAlgorithmApplier();
+		sentenceAlgorithmApplier = SentenceAlgorithmApplier.getInstance();
 
 		setMaxParses(DEFAULT_MAX_PARSES);
 		setMaxParseSeconds(DEFAULT_MAX_PARSE_SECONDS);
@@ -239,6 +273,50 @@ public class RelationExtractor
 		parser.setMaxLinkages(maxLinkages);
 	}
 
+	/**
+	 * Rank up to this many linkages by their costs, before building
+	 * any, and then build, and run the algs on, only the best of them,
+	 * as many as setMaxParses() allows.  Zero turns this off; then the
+	 * first linkages are taken, in the order the parser returns them.
+	 */
+	public void setRankLinkages(int n)
+	{
+		if (!_is_inited) init();
+		parser.setRankLinkages(n);
+	}
+
+	/**
+	 * Process the parses of each sentence on up to n threads at once:
+	 * the algs, the Stanford and Penn tagging, and the tree markup are
+	 * done on each parse independently of the others.  The parses are
+	 * ranked, and anaphora resolved, once all are done.  This cuts the
+	 * time taken by a sentence with several parses; it does not
+	 * change the result.  1 turns this off, which is the default.
+	 * With do_arena set, the parses are processed one at a time.
+	 */
+	public void setParseThreads(int n)
+	{
+		if (parseThreads != null)
+		{
+			parseThreads.shutdown();
+			parseThreads = null;
+		}
+		if (n <= 1) return;
+
+		parseThreads = Executors.newFixedThreadPool(n, new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "RelationExtractor parse");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// The parses share the morphy.
+		if (context != null && !(context.getMorphy() instanceof SynchronizedMorphy))
+			context.setMorphy(new SynchronizedMorphy(context.getMorphy()));
+	}
+
 	public void setMaxCost(int maxCost)
 	{
 		if (!_is_inited) init();
@@ -257,6 +335,59 @@ public class RelationExtractor
 		parser.getConfig().setMaxParseSeconds(maxParseSeconds);
 	}
 
+	/**
+	 * Keep the parses of up to maxEntries sentences, taking no more
+	 * than maxBytes in serialized form, so that repeated sentences
+	 * are not parsed again.  Zero turns the cache off.
+	 */
+	public void setParseCache(int maxEntries, long maxBytes)
+	{
+		if (!_is_inited) init();
+		parseCacheEntries = maxEntries;
+		parseCacheBytes = maxBytes;
+		if (maxEntries <= 0 || maxBytes <= 0)
+			parseCache = null;
+		else
+			parseCache = new CachingParser(replayParser != null ?
+				(IParser) replayParser : parser, maxEntries, maxBytes);
+	}
+
+	/**
+	 * @return the parse cache, for its statistics; or null if none.
+	 */
+	public CachingParser getParseCache()
+	{
+		return parseCache;
+	}
+
+	/**
+	 * Take parses from the store, where they are found there, and add
+	 * the others to it, so that a corpus need only be parsed once.
+	 * If replayOnly is set, sentences not in the store are not parsed
+	 * at all.  A null store turns this off.
+	 */
+	public void setParseStore(ParseStore store, boolean replayOnly)
+	{
+		if (!_is_inited) init();
+		if (store == null)
+			replayParser = null;
+		else
+		{
+			replayParser = new ReplayParser(store, parser);
+			replayParser.setReplayOnly(replayOnly);
+		}
+		if (parseCache != null)
+			setParseCache(parseCacheEntries, parseCacheBytes);
+	}
+
+	/**
+	 * @return the replaying parser, for its statistics; or null if none.
+	 */
+	public ReplayParser getReplayParser()
+	{
+		return replayParser;
+	}
+
 	/* ---------------------------------------------------------- */
 
 	/**
@@ -275,41 +406,74 @@ public class RelationExtractor
 	}
 
 	public Sentence processSentence(String sentence)
+	{
+		return processSentence(sentence, null);
+	}
+
+	/**
+	 * Process each of the sentences, as processSentence() does, but
+	 * parse them all first, in one batch (see IBatchParser.parseBatch()).
+	 * The parses are made outside of any FeatureArena; only what the
+	 * algs add to them is kept in the arena of their sentence.
+	 *
+	 * @return the sentences, in order, with null in place of any that
+	 *         failed.
+	 */
+	public ArrayList<Sentence> processSentences(List<String> sentences)
+	{
+		if (!_is_inited) init();
+		starttime = System.currentTimeMillis();
+
+		List<Sentence> parsed = parseSentences(sentences);
+		if (verbosity > 0) reportTime("Link-parsing (batch): ");
+
+		ArrayList<Sentence> out = new ArrayList<Sentence>(sentences.size());
+		for (int i = 0; i < sentences.size(); i++)
+		{
+			Sentence sntc = parsed.get(i);
+			if (sntc != null)
+				sntc = processSentence(sentences.get(i), sntc);
+			out.add(sntc);
+		}
+		return out;
+	}
+
+	/**
+	 * @param parsed the sentence, already parsed; if null, it is
+	 *        parsed here.
+	 */
+	private Sentence processSentence(String sentence, Sentence parsed)
 	{
 		if (!_is_inited) init();
 		starttime = System.currentTimeMillis();
 
 		Sentence sntc = null;
+		FeatureArena arena = null;
+		if (do_arena)
+		{
+			if (arenaPool == null) arenaPool = new FeatureArena.Pool();
+			arena = new FeatureArena(arenaPool);
+			arena.enter();
+		}
 		try
 		{
-			if (verbosity > 0) starttime = System.currentTimeMillis();
-			sntc = parseSentence(sentence);
-			if (verbosity > 0) reportTime("Link-parsing: ");
-
-			for (ParsedSentence parse : sntc.getParses())
+			if (parsed != null)
 			{
-				if (do_expand_preps)
-				{
-					parse.getLeft().set("expand-preps", new FeatureNode("T"));
-				}
-
-				// The actual relation extraction is done here.
-				if (do_apply_algs) sentenceAlgorithmApplier.applyAlgs(parse, context);
-				if (do_stanford) sentenceAlgorithmApplier.extractStanford(parse, context);
-				if (do_penn_tagging) sentenceAlgorithmApplier.pennTag(parse, context);
-
-				// Also do a Penn tree-bank style phrase structure markup.
-				if (do_tree_markup)
-				{
-					phraseMarkup.markup(parse);
-
-					// Repair the entity-mangled tree-bank string.
-					PhraseTree pt = new PhraseTree(parse.getLeft());
-					parse.setPhraseString(pt.toString());
-				}
-
+				sntc = parsed;
+			}
+			else
+			{
+				if (verbosity > 0) starttime = System.currentTimeMillis();
+				sntc = parseSentence(sentence);
+				if (verbosity > 0) reportTime("Link-parsing: ");
 			}
 
+			if (parseThreads != null && arena == null && 1 < sntc.getParses().size())
+				processParsesInParallel(sntc);
+			else
+				for (ParsedSentence parse : sntc.getParses())
+					processParse(parse);
+
 			// Assign a simple parse-ranking score, based on LinkGrammar data.
 			sntc.simpleParseRank();
 
@@ -325,10 +489,83 @@ public class RelationExtractor
 			System.err.println("Error: Failed to process sentence: " + sentence);
 			e.printStackTrace();
 		}
+		finally
+		{
+			if (arena != null)
+			{
+				arena.exit();
+				// Anaphora resolution keeps the sentence in its history,
+				// so the arena of such a sentence is never released.
+				if (sntc == null) arena.release();
+				else if (!do_anaphora_resolution) sntc.arena = arena;
+			}
+		}
 		if (verbosity > 0) reportTime("RelEx processing: ");
 		return sntc;
 	}
 
+	private void processParse(ParsedSentence parse)
+	{
+		sentenceAlgorithmApplier.processParse(parse, context, do_expand_preps,
+			do_apply_algs, do_stanford, do_penn_tagging);
+
+		// Also do a Penn tree-bank style phrase structure markup.
+		if (do_tree_markup) phraseMarkup.markupTree(parse);
+	}
+
+	/**
+	 * Each parse is a graph of its own, so the parses can be processed
+	 * at the same time.  The first failure, if any, is thrown once all
+	 * are done.
+	 */
+	private void processParsesInParallel(Sentence sntc) throws Exception
+	{
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (final ParsedSentence parse : sntc.getParses())
+		{
+			tasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					processParse(parse);
+					return null;
+				}
+			});
+		}
+		for (Future<Object> f : parseThreads.invokeAll(tasks))
+		{
+			try
+			{
+				f.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Declare that the sentence, and everything obtained from it, is
+	 * no longer in use.  If it was processed with do_arena set, the
+	 * storage of its feature graphs is recycled for later sentences,
+	 * and the graphs may no longer be used: any access to them throws
+	 * IllegalStateException.  Use FeatureArena.detach() on any parse
+	 * that is to be kept past this.
+	 *
+	 * Anaphora resolution remembers earlier sentences; a sentence that
+	 * was processed with it on is not recycled.
+	 */
+	public void release(Sentence sntc)
+	{
+		FeatureArena arena = sntc.arena;
+		if (arena == null) return;
+		sntc.arena = null;
+		arena.release();
+	}
+
 	/**
 	 * Parses a sentence, using the parser. The private ArrayList of
 	 * currentParses is filled with the ParsedSentences.
@@ -340,7 +577,12 @@ public class RelationExtractor
 
 		Sentence sent = null;
 		if (sentence.length() < DEFAULT_MAX_SENTENCE_LENGTH) {
-			sent = parser.parse(sentence);
+			if (parseCache != null)
+				sent = parseCache.parse(sentence);
+			else if (replayParser != null)
+				sent = replayParser.parse(sentence);
+			else
+				sent = parser.parse(sentence);
 		} else {
 			System.err.println("Sentence too long, len=" + sentence.length()
 				+ " : " + sentence);
@@ -349,6 +591,42 @@ public class RelationExtractor
 		return sent;
 	}
 
+	/**
+	 * Parses the sentences in one batch, with the parser, save those
+	 * that are too long, as parseSentence() does.
+	 */
+	private List<Sentence> parseSentences(List<String> sentences)
+	{
+		int n = sentences.size();
+		ArrayList<String> batch = new ArrayList<String>(n);
+		for (String sentence : sentences)
+		{
+			if (sentence != null && sentence.length() < DEFAULT_MAX_SENTENCE_LENGTH)
+				batch.add(sentence);
+		}
+
+		List<Sentence> parsed;
+		if (parseCache != null)
+			parsed = parseCache.parseBatch(batch);
+		else if (replayParser != null)
+			parsed = replayParser.parseBatch(batch);
+		else
+			parsed = parser.parseBatch(batch);
+
+		ArrayList<Sentence> out = new ArrayList<Sentence>(n);
+		Iterator<Sentence> it = parsed.iterator();
+		for (String sentence : sentences)
+		{
+			if (sentence == null)
+				out.add(null);
+			else if (sentence.length() < DEFAULT_MAX_SENTENCE_LENGTH)
+				out.add(it.next());
+			else
+				out.add(parseSentence(sentence));
+		}
+		return out;
+	}
+
 	/* ---------------------------------------------------------- */
 	// Provide some basic timing info
 	Long starttime;
@@ -427,6 +705,7 @@ public class RelationExtractor
 			" [-n max number of parses to display]" +
 			" [-o (show opencog scheme output)]" +
 			" [--or (show opencog rule-based scheme output)]" +
+			" [--parse-store dir (record parses to, and replay them from, dir)]" +
 			" [--pa (show phrase-based lexical chunks)]" +
 			" [--pb (show pattern-based lexical chunks)]" +
 			" [--pc (show relational lexical chunks)]" +
@@ -465,6 +744,7 @@ public class RelationExtractor
 		opts.add("--html");
 		opts.add("--lang");
 		opts.add("--maxParseSeconds");
+		opts.add("--parse-store");
 		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
 
 		// Things that can be set via command line flags; cache till needed.
@@ -473,6 +753,7 @@ public class RelationExtractor
 		int maxParses = 1;
 		int maxParseSeconds = 6;
 		PrintWriter html = null;
+		ParseStore store = null;
 
 		// Check for optional command line arguments.
 		try
@@ -491,6 +772,9 @@ public class RelationExtractor
 
 			opt = commandMap.get("--maxParseSeconds");
 			if (opt != null) maxParseSeconds = Integer.parseInt(opt);
+
+			opt = commandMap.get("--parse-store");
+			if (opt != null) store = new ParseStore(new File(opt));
 		}
 		catch (Exception e)
 		{
@@ -518,6 +802,7 @@ public class RelationExtractor
 		re.setAllowSkippedWords(true);
 		re.setMaxParses(maxParses);
 		re.setMaxParseSeconds(maxParseSeconds);
+		if (store != null) re.setParseStore(store, false);
 		System.out.println("; Version: " + re.getVersion());
 
 		// Don't run anaphora if -o is set, this will be done in a
@@ -810,6 +1095,19 @@ public class RelationExtractor
 			html.close();
 		}
 
+		if (store != null)
+		{
+			System.err.println(re.getReplayParser());
+			try
+			{
+				store.close();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Warning: Cannot close parse store: " + e);
+			}
+		}
+
 		// Dump the list of document sentences
 		if (commandMap.get("-o") != null)
 		{
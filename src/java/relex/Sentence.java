@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.UUID;
 
+import relex.feature.FeatureArena;
 import relex.output.SimpleView;
 
 /**
@@ -44,9 +45,13 @@ public class Sentence implements Serializable
 	private String originalSentence;
 	private ArrayList<ParsedSentence> parses;
 	private int numParses;
+	private boolean timedOut;
 
 	private String sentenceID;
 
+	/** Where the feature graphs were allocated, if in an arena */
+	transient FeatureArena arena;
+
 	public Sentence()
 	{
 		originalSentence = null;
@@ -119,6 +124,20 @@ public class Sentence implements Serializable
 		return numParses;
 	}
 
+	/**
+	 * Set if the parser ran out of time: the parses are only those it
+	 * found in time, possibly none.
+	 */
+	public void setTimedOut(boolean t)
+	{
+		timedOut = t;
+	}
+
+	public boolean isTimedOut()
+	{
+		return timedOut;
+	}
+
 	/**
 	 * Return an array of the words in the sentence
 	 */
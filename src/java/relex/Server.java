@@ -57,6 +57,8 @@ public class Server
 		int host_port = 0;
 		int listen_port = 4444;
 		int max_parses = 1;
+		int rank_linkages = 0;
+		int parse_threads = 1;
 		boolean relex_on = false;
 		boolean logic_on = false;
 		boolean link_on = false;
@@ -73,6 +75,8 @@ public class Server
 			" --host host:port\t Send output to indicated host:port (example: localhost:17001)\n" +
 			" --lang lang\t Set langauge (default: en)\n" +
 			" -n number  \t Max number of parses to return (default: 1)\n" +
+			" --rank num \t Rank up to num linkages by cost, and build only the best -n\n" +
+			" --parse-threads num\t Process the -n parses of a sentence on num threads at once\n" +
 			" --relex    \t Output RelEx relations (default)\n" +
 			" --logic    \t Output of Relex2Logic scheme function calls and Relex relations" +
 			" --link     \t Output Link Grammar Linkages\n" +
@@ -95,6 +99,8 @@ public class Server
 		opts.add("--host");
 		opts.add("--lang");
 		opts.add("--port");
+		opts.add("--rank");
+		opts.add("--parse-threads");
 		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
 
 		try
@@ -120,6 +126,12 @@ public class Server
 
 			opt = commandMap.get("--port");
 			if (opt != null) listen_port = Integer.parseInt(opt);
+
+			opt = commandMap.get("--rank");
+			if (opt != null) rank_linkages = Integer.parseInt(opt);
+
+			opt = commandMap.get("--parse-threads");
+			if (opt != null) parse_threads = Integer.parseInt(opt);
 		}
 		catch (Exception e)
 		{
@@ -159,6 +171,8 @@ public class Server
 		re.setLanguage(lang);
 		re.setMaxParses(max_parses);
 		if (1000 < max_parses) re.setMaxLinkages(max_parses+100);
+		if (0 < rank_linkages) re.setRankLinkages(rank_linkages);
+		if (1 < parse_threads) re.setParseThreads(parse_threads);
 		OpenCogScheme opencog = new OpenCogScheme();
 		DocSplitter ds = DocSplitterFactory.create();
 		LogicView logicView = new LogicView();
@@ -17,12 +17,17 @@
 package relex.algs;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import relex.ParsedSentence;
 import relex.concurrent.RelexContext;
@@ -39,6 +44,18 @@ public class AlgorithmApplier
 	/** The list of algorithms to be applied */
 	private ArrayList<SentenceAlgorithm> algs;
 
+	/**
+	 * If true, the templates of the loaded algorithms are compiled
+	 * into a DiscriminationNetwork, so that each node is only tried
+	 * against the rules whose root tests it passes.  Set the system
+	 * property relex.algs.interpret=true to disable this.
+	 */
+	public static boolean COMPILE_RULES =
+		!Boolean.getBoolean("relex.algs.interpret");
+
+	/** The compiled root tests of algs, or null if not compiled */
+	private DiscriminationNetwork network;
+
 	/** The name of the algorithms package */
 	private static String ALGS_PACKAGE = "relex.algs";
 
@@ -64,22 +81,135 @@ public class AlgorithmApplier
 	// The apply method!
 	public void applyAlgs(ParsedSentence sentence, RelexContext context)
 	{
-		for (SentenceAlgorithm alg: algs)
+		// The graph is crawled once, and re-crawled only after an
+		// algorithm has actually changed it.
+		// Rules whose root tests fail on the labels of the whole
+		// parse are skipped without visiting any node.
+		NodeIndex index = new NodeIndex(sentence, network);
+		for (int i = 0; i < algs.size(); i++)
 		{
-			alg.apply(sentence, context);
+			DiscriminationNetwork.RootTest test = null;
+			if (network != null) test = network.getTest(i);
+			if (test != null && !test.admits(index.getLabels()))
+				continue;
+			algs.get(i).apply(sentence, context, index, test);
 		}
 	}
 
 	/**
-	 *  Read in the set of SentenceAlgorithms
+	 *  Read in the set of SentenceAlgorithms. If a compiled version of
+	 *  the rule file was built (see AlgsCompiler), from the same text as
+	 *  that of the file now found, the compiled rules are used instead
+	 *  of the text.
 	 */
 	public void read(String prop, String filename)
 	{
-		InputStream in = getAlgorithmsFile(prop, filename);
 		algs = new ArrayList<SentenceAlgorithm>();
+		byte[] source = readAll(getAlgorithmsFile(prop, filename));
+		byte[] hash = RuleSnapshot.hash(source);
+
+		CompiledRuleSet compiled = null;
+		if (COMPILE_RULES)
+			compiled = CompiledRuleSet.load(filename);
+		if (compiled != null &&
+		    !RuleSnapshot.hex(hash).equals(compiled.getSourceHash()))
+		{
+			if (verbosity > 0)
+				System.err.println("Info: Compiled relex algorithms for " +
+					filename + " are out of date; reading the text instead");
+			compiled = null;
+		}
+
+		if (compiled != null)
+		{
+			if (verbosity > 0)
+				System.err.println("Info: Using compiled relex algorithms for " + filename);
+			SentenceAlgorithm[] rules = compiled.newAlgorithms();
+			String[] inits = compiled.getInitStrings();
+			for (int i = 0; i < rules.length; i++)
+				addAlg(rules[i], inits[i]);
+		}
+		else
+		{
+			readText(filename, source, hash);
+		}
+		network = COMPILE_RULES ? new DiscriminationNetwork(algs) : null;
+	}
+
+	/**
+	 * Read the rules from the text of the rule file, or from a snapshot
+	 * of that text already parsed (see RuleSnapshot).
+	 */
+	private void readText(String filename, byte[] source, byte[] hash)
+	{
+		File snapshot = null;
+		File dir = RuleSnapshot.cacheDir();
+		if (dir != null)
+		{
+			snapshot = RuleSnapshot.file(dir, filename, hash);
+			List<SentenceAlgorithm> cached = RuleSnapshot.load(snapshot, hash);
+			if (cached != null)
+			{
+				if (verbosity > 0)
+					System.err.println("Info: Using relex algorithms snapshot " + snapshot);
+				algs.addAll(cached);
+				return;
+			}
+		}
+
+		List<String[]> rules = readRules(new ByteArrayInputStream(source));
+		HashMap<String,Class<?>> classes = new HashMap<String,Class<?>>();
+		try {
+			for (String[] rule : rules)
+			{
+				Class<?> c = classes.get(rule[0]);
+				if (c == null)
+				{
+					c = Class.forName(ALGS_PACKAGE + "." + rule[0]);
+					classes.put(rule[0], c);
+				}
+				addAlg((SentenceAlgorithm) c.newInstance(), rule[1]);
+			}
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException("Invalid class: " + e);
+		} catch (InstantiationException e) {
+			throw new RuntimeException("Cannot initialize class: " + e);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException("Cannot access class: " + e);
+		}
+
+		if (snapshot != null)
+			RuleSnapshot.save(snapshot, hash, algs, rules);
+	}
+
+	private static byte[] readAll(InputStream in)
+	{
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				out.write(buf, 0, n);
+			in.close();
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException("Problem reading relex semantic algorithms file.");
+		}
+	}
+
+	/**
+	 * Split an algorithms file into its rules.
+	 *
+	 * @return for each rule, in file order, a pair of strings: the
+	 *         name of its class (in ALGS_PACKAGE), and the text it is
+	 *         to be initialized with.
+	 */
+	static List<String[]> readRules(InputStream in)
+	{
+		ArrayList<String[]> rules = new ArrayList<String[]>();
 		BufferedReader br = new BufferedReader(new InputStreamReader(in));
 
-		SentenceAlgorithm curAlg = null;
+		String curClass = null;
 		StringBuffer sb = new StringBuffer();
 		String line = null;
 		try {
@@ -89,31 +219,24 @@ public class AlgorithmApplier
 					if (line.charAt(0) == CLASS_CHAR) {
 						// If the line begins with CLASS_CHAR, use the current
 						// buffer to create a new algorithm
-						// System.err.println(sb);
-						if (curAlg != null) {
-							addAlg(curAlg, sb.toString());
+						if (curClass != null) {
+							rules.add(new String[] {curClass, sb.toString()});
 							sb.delete(0, sb.length()); // ready the buffer for next alg
 						}
-						Class<?> c = Class.forName(ALGS_PACKAGE + "." + line.substring(1));
-						curAlg = (SentenceAlgorithm) c.newInstance();
+						curClass = line.substring(1);
 					} else { // for normal lines
 						if (line.charAt(0) != COMMENT_CHAR) // skip comments
 							sb.append(line).append("\n");   // add to string buffer
 					}
 				}
 			}
-			if (curAlg != null) {
-				addAlg(curAlg, sb.toString());
+			if (curClass != null) {
+				rules.add(new String[] {curClass, sb.toString()});
 			}
 		} catch (IOException e) {
 			throw new RuntimeException("Problem reading relex semantic algorithms file.");
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException("Invalid class: " + e);
-		} catch (InstantiationException e) {
-			throw new RuntimeException("Cannot initialize class: " + e);
-		} catch (IllegalAccessException e) {
-			throw new RuntimeException("Cannot access class: " + e);
 		}
+		return rules;
 	}
 
 	/**
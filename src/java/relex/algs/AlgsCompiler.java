@@ -0,0 +1,381 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.algs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import relex.feature.FeatureAction;
+import relex.feature.FeaturePathAndTarget;
+
+/**
+ * AlgsCompiler translates algs rule files into Java source, ahead of
+ * time.  For each file, a CompiledRuleSet subclass is written, holding
+ * one SentenceAlgorithm subclass per rule.  The template test of each
+ * rule is turned into straight-line code that walks precompiled
+ * FeaturePaths and compares values directly, in place of the generic
+ * FeatureTemplate.match() loop; the actions of a TemplateActionAlg are
+ * unrolled into a fixed sequence of calls.
+ *
+ * The generated code has exactly the semantics of the interpreted
+ * rules.  AlgorithmApplier picks up the generated classes if they are
+ * on the classpath, and otherwise reads the text files as before.  It
+ * also reads the text if it has changed since it was compiled, as
+ * told by the hash of the text recorded in the generated class.
+ *
+ * Usage: java relex.algs.AlgsCompiler outdir file.algs ...
+ * The build.xml target build-algs runs this over the data directory.
+ */
+public class AlgsCompiler
+{
+	private PrintWriter out;
+
+	/** Names of the static constants of the rule being generated */
+	private ArrayList<String> constants;
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Usage: AlgsCompiler outdir file.algs ...");
+			System.exit(1);
+		}
+		File dir = new File(args[0], CompiledRuleSet.PACKAGE.replace('.', File.separatorChar));
+		dir.mkdirs();
+		for (int i = 1; i < args.length; i++)
+		{
+			File algs = new File(args[i]);
+			String cls = CompiledRuleSet.className(algs.getName());
+			File java = new File(dir, cls + ".java");
+			new AlgsCompiler().compile(algs, cls, java);
+			System.err.println("Info: Compiled " + algs + " to " + java);
+		}
+	}
+
+	public void compile(File algs, String cls, File java) throws IOException
+	{
+		ByteArrayOutputStream source = new ByteArrayOutputStream();
+		FileInputStream in = new FileInputStream(algs);
+		try
+		{
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				source.write(buf, 0, n);
+		}
+		finally
+		{
+			in.close();
+		}
+		byte[] text = source.toByteArray();
+		List<String[]> rules = AlgorithmApplier.readRules(new ByteArrayInputStream(text));
+		String hash = RuleSnapshot.hex(RuleSnapshot.hash(text));
+
+		out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(java), "UTF-8"));
+		try
+		{
+			writeRuleSet(algs.getName(), cls, hash, rules);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private void writeRuleSet(String filename, String cls, String hash,
+	                          List<String[]> rules)
+	{
+		out.println("// Generated by relex.algs.AlgsCompiler from " + filename + ".");
+		out.println("// Do not edit; edit the rule file and rebuild instead.");
+		out.println();
+		out.println("package " + CompiledRuleSet.PACKAGE + ";");
+		out.println();
+		out.println("import java.util.HashMap;");
+		out.println("import java.util.Map;");
+		out.println();
+		out.println("import relex.algs.*;");
+		out.println("import relex.concurrent.RelexContext;");
+		out.println("import relex.feature.FeatureAction;");
+		out.println("import relex.feature.FeatureNode;");
+		out.println("import relex.feature.FeaturePath;");
+		out.println("import relex.feature.FeatureTemplate;");
+		out.println();
+		out.println("public final class " + cls + " extends CompiledRuleSet");
+		out.println("{");
+
+		out.println("\tprivate static final String SOURCE_HASH = " + quote(hash) + ";");
+		out.println();
+		out.println("\tprivate static final String[] RULES = {");
+		for (String[] rule : rules)
+			out.println("\t\t" + quote(rule[1]) + ",");
+		out.println("\t};");
+		out.println();
+
+		ArrayList<String> ctors = new ArrayList<String>();
+		for (int i = 0; i < rules.size(); i++)
+		{
+			String[] rule = rules.get(i);
+			SentenceAlgorithm alg = newAlgorithm(rule[0]);
+			alg.init(rule[1]);
+			if (alg instanceof TemplateMatchingAlg)
+			{
+				String name = "R" + i;
+				writeRule(name, rule[0], (TemplateMatchingAlg) alg);
+				ctors.add("new " + name + "()");
+			}
+			else
+			{
+				ctors.add("new " + rule[0] + "()");
+			}
+		}
+
+		out.println("\tpublic SentenceAlgorithm[] newAlgorithms()");
+		out.println("\t{");
+		out.println("\t\treturn new SentenceAlgorithm[] {");
+		for (String c : ctors)
+			out.println("\t\t\t" + c + ",");
+		out.println("\t\t};");
+		out.println("\t}");
+		out.println();
+		out.println("\tpublic String[] getInitStrings()");
+		out.println("\t{");
+		out.println("\t\treturn RULES.clone();");
+		out.println("\t}");
+		out.println();
+		out.println("\tpublic String getSourceHash()");
+		out.println("\t{");
+		out.println("\t\treturn SOURCE_HASH;");
+		out.println("\t}");
+		out.println("}");
+	}
+
+	private SentenceAlgorithm newAlgorithm(String cls)
+	{
+		try
+		{
+			Class<?> c = Class.forName(getClass().getPackage().getName() + "." + cls);
+			return (SentenceAlgorithm) c.newInstance();
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException("Invalid class: " + cls + ": " + e);
+		}
+	}
+
+	private void writeRule(String name, String base, TemplateMatchingAlg alg)
+	{
+		constants = new ArrayList<String>();
+		StringBuffer test = new StringBuffer();
+		HashMap<String,String> vars = new HashMap<String,String>();
+		ArrayList<String> varOrder = new ArrayList<String>();
+
+		for (FeaturePathAndTarget pt : alg.getTemplate().getPathsAndTargets())
+		{
+			boolean negated = pt.getSeparator().equals("!=");
+			String path = constant("FeaturePath", "FeaturePath.compile(" + quote(pt.getPath().toString()) + ")");
+
+			test.append("\t\t\t// ").append(comment(pt.toString())).append("\n");
+			test.append("\t\t\tt = n.pathTarget(").append(path).append(");\n");
+
+			if (pt.isPathPair())
+			{
+				String path2 = constant("FeaturePath", "FeaturePath.compile(" + quote(pt.getTargetPath().toString()) + ")");
+				test.append("\t\t\tm = (t != null);\n");
+				test.append("\t\t\tif (m) {\n");
+				test.append("\t\t\t\tFeatureNode t2 = n.pathTarget(").append(path2).append(");\n");
+				test.append("\t\t\t\tif (t.isValued() && t2.isValued()) m = (t.getValue() == t2.getValue());\n");
+				test.append("\t\t\t\telse m = (t == t2);\n");
+				test.append("\t\t\t}\n");
+			}
+			else if (pt.getTargetString().equals("%"))
+			{
+				test.append("\t\t\tm = (t == null) || t.isEmpty() || (t.isValued() && t.getValue().length() == 0);\n");
+			}
+			else if (pt.getTargetString().charAt(0) == '$')
+			{
+				String var = pt.getTargetString().substring(1);
+				String local = vars.get(var);
+				if (local == null)
+				{
+					local = "v" + vars.size();
+					vars.put(var, local);
+					varOrder.add(var);
+				}
+				test.append("\t\t\tm = (t != null);\n");
+				test.append("\t\t\tif (m) ").append(local).append(" = t;\n");
+			}
+			else
+			{
+				test.append("\t\t\tm = (t != null) && t.isValued() && ")
+					.append(valueTest(pt.getTargetString())).append(";\n");
+			}
+			test.append("\t\t\tif (").append(negated ? "m" : "!m").append(") return null;\n");
+		}
+
+		String actions = null;
+		if (alg.getClass() == TemplateActionAlg.class)
+			actions = unrollActions(((TemplateActionAlg) alg).getActions());
+
+		out.println("\tstatic final class " + name + " extends " + base);
+		out.println("\t{");
+		for (String c : constants)
+			out.println("\t\t" + c);
+		if (!constants.isEmpty())
+			out.println();
+
+		out.println("\t\tprotected Map<String,FeatureNode> canApplyTo(FeatureNode n)");
+		out.println("\t\t{");
+		out.println("\t\t\tFeatureNode t;");
+		out.println("\t\t\tboolean m;");
+		for (String var : varOrder)
+			out.println("\t\t\tFeatureNode " + vars.get(var) + " = null;");
+		out.println();
+		out.print(test);
+		out.println();
+		out.println("\t\t\tHashMap<String,FeatureNode> vars = new HashMap<String,FeatureNode>();");
+		for (String var : varOrder)
+		{
+			String local = vars.get(var);
+			out.println("\t\t\tif (" + local + " != null) vars.put(" + quote(var) + ", " + local + ");");
+		}
+		out.println("\t\t\treturn vars;");
+		out.println("\t\t}");
+
+		if (actions != null)
+		{
+			out.println();
+			out.println("\t\tprotected void applyTo(FeatureNode n, RelexContext context,");
+			out.println("\t\t                       Map<String,FeatureNode> vars)");
+			out.println("\t\t{");
+			out.print(actions);
+			out.println("\t\t}");
+		}
+		out.println("\t}");
+		out.println();
+	}
+
+	/**
+	 * @return the calls making up the body of applyTo(), or null if
+	 *         the actions cannot be reproduced from their text.
+	 */
+	private String unrollActions(List<FeatureAction> acts)
+	{
+		StringBuffer sb = new StringBuffer();
+		for (FeatureAction act : acts)
+		{
+			String text = act.toString();
+			if (!new FeatureAction(text).toString().equals(text))
+				return null;
+			String a = constant("FeatureAction", "new FeatureAction(" + quote(text) + ")");
+			sb.append("\t\t\t").append(a).append(".doAction(n, getTemplate(), vars);\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return a java expression, over the valued node t, that is true
+	 *         if the value matches the disjunction, with the same rules
+	 *         as FeatureTemplate.Disjunction.
+	 */
+	private String valueTest(String target)
+	{
+		String[] toks = target.split("[ ]*\\|[ ]*");
+		if (toks.length == 1)
+		{
+			String lit = toks[0];
+			boolean regex = false;
+			if (lit.length() > 0 && lit.charAt(0) == '\\')
+			{
+				lit = lit.substring(1);
+				regex = (lit.length() == 0 || lit.charAt(0) != '\\');
+			}
+			if (!regex)
+				return quote(lit) + ".equals(t.getValue())";
+		}
+		String d = constant("FeatureTemplate.Disjunction",
+			"new FeatureTemplate.Disjunction(" + quote(target) + ")");
+		return d + ".matches(t.getValue())";
+	}
+
+	/**
+	 * Declare a static constant of the rule class.
+	 * @return its name
+	 */
+	private String constant(String type, String init)
+	{
+		String decl = " = " + init + ";";
+		for (int i = 0; i < constants.size(); i++)
+			if (constants.get(i).endsWith(decl) &&
+			    constants.get(i).startsWith("private static final " + type + " "))
+				return "K" + i;
+		String name = "K" + constants.size();
+		constants.add("private static final " + type + " " + name + decl);
+		return name;
+	}
+
+	/**
+	 * @return the string, made safe to put in a // comment.
+	 */
+	static String comment(String s)
+	{
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c < 0x20 || c > 0x7e)
+				sb.append('?');
+			else if (c == '\\' && i + 1 < s.length() && s.charAt(i + 1) == 'u')
+				sb.append("\\\\");  // not a unicode escape
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the string as a java string literal.
+	 */
+	static String quote(String s)
+	{
+		StringBuffer sb = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20 || c > 0x7e)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		return sb.append("\"").toString();
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.algs;
+
+/**
+ * A rule file that has been compiled ahead of time into Java, by
+ * AlgsCompiler.  The generated subclasses live in the package
+ * relex.algs.compiled; each one holds, for every rule in the file,
+ * an algorithm whose template test has been turned into straight-line
+ * code, along with the rule text it is to be initialized with.
+ *
+ * A compiled rule set also records the hash of the rule file it was
+ * compiled from; AlgorithmApplier only uses it if the rule file has
+ * not changed since.
+ */
+public abstract class CompiledRuleSet
+{
+	/** The package of the generated classes */
+	public static final String PACKAGE = "relex.algs.compiled";
+
+	/**
+	 * @return new, uninitialized instances of the rules, in file order.
+	 */
+	public abstract SentenceAlgorithm[] newAlgorithms();
+
+	/**
+	 * @return the text that each rule is initialized with, in file order.
+	 */
+	public abstract String[] getInitStrings();
+
+	/**
+	 * @return the SHA-1 hash of the text of the rule file, in hex, as
+	 *         it was when the set was compiled; or null if not known.
+	 */
+	public String getSourceHash()
+	{
+		return null;
+	}
+
+	/**
+	 * @return the name of the class generated for the rule file, e.g.
+	 *         RelexSemanticAlgs for relex-semantic.algs.
+	 */
+	public static String className(String filename)
+	{
+		StringBuffer sb = new StringBuffer();
+		boolean upper = true;
+		for (int i = 0; i < filename.length(); i++)
+		{
+			char c = filename.charAt(i);
+			if (Character.isLetterOrDigit(c))
+			{
+				sb.append(upper ? Character.toUpperCase(c) : c);
+				upper = false;
+			}
+			else upper = true;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the compiled rule set for the file, or null if none was
+	 *         built.
+	 */
+	public static CompiledRuleSet load(String filename)
+	{
+		try
+		{
+			Class<?> c = Class.forName(PACKAGE + "." + className(filename));
+			return (CompiledRuleSet) c.newInstance();
+		}
+		catch (ClassNotFoundException e)
+		{
+			return null;
+		}
+		catch (InstantiationException e)
+		{
+			throw new RuntimeException("Cannot initialize compiled rules: " + e);
+		}
+		catch (IllegalAccessException e)
+		{
+			throw new RuntimeException("Cannot access compiled rules: " + e);
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.algs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import relex.feature.FeatureNode;
+import relex.feature.FeaturePath;
+import relex.feature.FeaturePathAndTarget;
+import relex.feature.FeatureTemplate;
+
+/**
+ * DiscriminationNetwork compiles the templates of a rule set into a
+ * shared network of root tests, in the manner of the alpha network of
+ * a Rete/TREAT matcher.  Every "=" test in a template requires that
+ * the first step of its path be present on the node being matched;
+ * a test of the form <feat> = literal|\regex additionally constrains
+ * the value of that feature.  The network is keyed on these first
+ * path steps; the literal tests of all the rules that share a key
+ * are evaluated together, once per distinct value, and the outcome
+ * is memoized as a bitset.
+ *
+ * A node is then offered to a rule's full FeatureTemplate.match()
+ * only if it passes all of that rule's root tests.  Because the
+ * root tests are implied by the template, this never changes which
+ * nodes a rule fires on; it only avoids the cost of finding out the
+ * hard way.  Rules are still applied one after another, in file order.
+ *
+ * The same tests also serve as a prefilter for a whole parse.  The
+ * Labels of a parse record which keyed features occur on any node,
+ * and which literal tests any of their values pass.  A rule whose
+ * root tests are not all satisfied somewhere in the parse cannot fire
+ * on any node of it, and is skipped without a single node visited.
+ * Most rules test for a particular link label or part of speech, and
+ * a short sentence has only a few of those.
+ */
+class DiscriminationNetwork
+{
+	/** Cap on the number of distinct values memoized per feature. */
+	private static final int MAX_MEMO_VALUES = 4096;
+
+	/** The alpha nodes, one per distinct first path step. */
+	private HashMap<Integer,Key> keys;
+
+	/** The alpha nodes, by Key.index */
+	private Key[] key_list;
+
+	/** Key.index + 1 of the Key for each SymbolTable id, or 0 if none */
+	private int[] key_of_symbol;
+
+	/** The compiled root test of each algorithm, or null if none. */
+	private RootTest[] tests;
+
+	public DiscriminationNetwork(List<SentenceAlgorithm> algs)
+	{
+		keys = new HashMap<Integer,Key>();
+		tests = new RootTest[algs.size()];
+		for (int i = 0; i < tests.length; i++)
+		{
+			SentenceAlgorithm alg = algs.get(i);
+			if (alg instanceof TemplateMatchingAlg)
+				tests[i] = compile(((TemplateMatchingAlg) alg).getTemplate());
+		}
+
+		key_list = new Key[keys.size()];
+		int max_id = -1;
+		for (Key k : keys.values())
+		{
+			key_list[k.index] = k;
+			max_id = Math.max(max_id, k.name);
+		}
+		key_of_symbol = new int[max_id + 1];
+		for (Key k : key_list)
+			key_of_symbol[k.name] = k.index + 1;
+	}
+
+	/**
+	 * @return empty Labels, to be filled in by summarize().
+	 */
+	public Labels newLabels()
+	{
+		return new Labels(key_list.length);
+	}
+
+	/**
+	 * Add to the labels the keyed features of the node, and the
+	 * literal tests passed by their values.
+	 */
+	public void summarize(Labels labels, FeatureNode node)
+	{
+		int count = node.getFeatureCount();
+		for (int j = 0; j < count; j++)
+		{
+			int id = node.getFeatureId(j);
+			if (id < 0 || id >= key_of_symbol.length || key_of_symbol[id] == 0)
+				continue;
+			int k = key_of_symbol[id] - 1;
+			labels.present[k] = true;
+			if (key_list[k].targets.isEmpty())
+				continue;
+			FeatureNode f = node.getFeatureTarget(j);
+			if (!f.isValued())
+				continue;
+			BitSet bits = key_list[k].lookup(f.getValue());
+			if (labels.values[k] == null)
+				labels.values[k] = (BitSet) bits.clone();
+			else
+				labels.values[k].or(bits);
+		}
+	}
+
+	/**
+	 * @return the root test for the i'th algorithm, or null if that
+	 *         algorithm must be tried on every node.
+	 */
+	public RootTest getTest(int i)
+	{
+		return tests[i];
+	}
+
+	private RootTest compile(FeatureTemplate template)
+	{
+		ArrayList<Key> required = new ArrayList<Key>();
+		ArrayList<Integer> slots = new ArrayList<Integer>();
+		for (FeaturePathAndTarget pt : template.getPathsAndTargets())
+		{
+			// Only positive tests constrain the root.
+			if (!pt.getSeparator().equals("=")) continue;
+
+			FeaturePath path = pt.getPath();
+			if (path.size() == 0) continue;
+
+			String target = null;
+			if (!pt.isPathPair())
+			{
+				target = pt.getTargetString();
+				// An empty target also matches a missing path.
+				if (target.equals("%")) continue;
+				// A variable matches anything at all.
+				if (target.charAt(0) == '$') target = null;
+			}
+
+			Integer name = Integer.valueOf(path.step(0));
+			Key key = keys.get(name);
+			if (key == null)
+			{
+				key = new Key(path.step(0), keys.size());
+				keys.put(name, key);
+			}
+			required.add(key);
+			slots.add((path.size() == 1 && target != null) ?
+				key.addTarget(target) : -1);
+		}
+		if (required.isEmpty())
+			return null;
+
+		RootTest t = new RootTest();
+		t.required = required.toArray(new Key[required.size()]);
+		t.slots = new int[slots.size()];
+		for (int i = 0; i < t.slots.length; i++)
+			t.slots[i] = slots.get(i);
+		return t;
+	}
+
+	/**
+	 * An alpha node: all of the literal tests made against the value
+	 * of one feature, by any rule in the set.
+	 */
+	static final class Key
+	{
+		/** The feature name, as a SymbolTable id */
+		final int name;
+		/** The position of this key in the network */
+		final int index;
+		private ArrayList<FeatureTemplate.Disjunction> targets;
+		private ConcurrentHashMap<String,BitSet> memo;
+
+		Key(int n, int i)
+		{
+			name = n;
+			index = i;
+			targets = new ArrayList<FeatureTemplate.Disjunction>();
+			memo = new ConcurrentHashMap<String,BitSet>();
+		}
+
+		int addTarget(String target)
+		{
+			targets.add(new FeatureTemplate.Disjunction(target));
+			return targets.size() - 1;
+		}
+
+		/**
+		 * @return the set of literal tests that the value satisfies.
+		 */
+		BitSet lookup(String value)
+		{
+			BitSet bits = memo.get(value);
+			if (bits != null)
+				return bits;
+
+			bits = new BitSet(targets.size());
+			for (int i = 0; i < targets.size(); i++)
+				if (targets.get(i).matches(value))
+					bits.set(i);
+
+			// Open-class features (e.g. word strings) would grow the
+			// memo without bound; past the cap, just recompute.
+			if (memo.size() < MAX_MEMO_VALUES)
+				memo.put(value, bits);
+			return bits;
+		}
+	}
+
+	/**
+	 * What the nodes of one parse offer to the root tests: for each
+	 * Key, whether any node has the feature, and the union of the
+	 * literal tests passed by the values it has (null if none).
+	 */
+	static final class Labels
+	{
+		private boolean[] present;
+		private BitSet[] values;
+
+		Labels(int n)
+		{
+			present = new boolean[n];
+			values = new BitSet[n];
+		}
+	}
+
+	/**
+	 * The conjunction of the root tests of a single rule.
+	 */
+	static final class RootTest
+	{
+		private Key[] required;
+		private int[] slots;
+
+		/**
+		 * @return false if the rule's template cannot possibly match
+		 *         the node; true if it might.
+		 */
+		boolean admits(FeatureNode node)
+		{
+			if (node.isValued())
+				return false;
+			for (int i = 0; i < required.length; i++)
+			{
+				FeatureNode f = node.get(required[i].name);
+				if (f == null)
+					return false;
+				if (slots[i] < 0)
+					continue;
+				if (!f.isValued())
+					return false;
+				if (!required[i].lookup(f.getValue()).get(slots[i]))
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return false if no node with the given labels can pass
+		 *         the test, so that the rule cannot fire anywhere in
+		 *         the parse; true if some node might.
+		 */
+		boolean admits(Labels labels)
+		{
+			for (int i = 0; i < required.length; i++)
+			{
+				int k = required[i].index;
+				if (!labels.present[k])
+					return false;
+				if (slots[i] >= 0 &&
+				    (labels.values[k] == null || !labels.values[k].get(slots[i])))
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.algs;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import relex.ParsedSentence;
+import relex.feature.FeatureNode;
+
+/**
+ * NodeIndex holds the list of all FeatureNodes reachable from the
+ * left wall of a parse, in the left-to-right, depth-first order in
+ * which SentenceAlgorithm visits them.
+ *
+ * Crawling the graph is expensive, and most algorithms do not fire
+ * on any given sentence, leaving the graph untouched.  So the crawl
+ * is cached, and redone only after an algorithm has modified the
+ * graph.  A modification can splice new nodes anywhere into the
+ * depth-first order (or, via mergeWith(), drop old ones), so the
+ * list is rebuilt rather than patched; this keeps the visit order
+ * exactly what a fresh crawl would give.
+ *
+ * The lists handed out are snapshots: invalidate() does not disturb
+ * an iteration already in progress.
+ *
+ * If given a DiscriminationNetwork, the crawl also gathers the Labels
+ * of the parse, for the network to prefilter whole rules with.  This
+ * costs little, as the crawl is touching every feature anyway.
+ */
+public class NodeIndex
+{
+	private FeatureNode left;
+
+	/** Every reachable node, in visit order */
+	private ArrayList<FeatureNode> nodes;
+
+	/** The non-valued subset of nodes, in the same order */
+	private ArrayList<FeatureNode> inner;
+
+	/** The network to gather labels for, or null */
+	private DiscriminationNetwork network;
+
+	/** The labels of the nodes, as seen by the network */
+	private DiscriminationNetwork.Labels labels;
+
+	public NodeIndex(ParsedSentence sent)
+	{
+		this(sent, null);
+	}
+
+	NodeIndex(ParsedSentence sent, DiscriminationNetwork network)
+	{
+		left = sent.getLeft();
+		this.network = network;
+		nodes = null;
+		inner = null;
+		labels = null;
+	}
+
+	/**
+	 * Must be called whenever the feature graph has been modified.
+	 */
+	public void invalidate()
+	{
+		nodes = null;
+		inner = null;
+		labels = null;
+	}
+
+	/**
+	 * @return all the FeatureNodes in the parse, including
+	 *         string-valued leaves.
+	 */
+	public List<FeatureNode> getNodes()
+	{
+		if (nodes == null) crawl();
+		return nodes;
+	}
+
+	/**
+	 * @return the FeatureNodes in the parse that have features,
+	 *         i.e. without the string-valued leaves. Valued nodes
+	 *         never acquire features, so algorithms that cannot
+	 *         match a valued node need only look at these.
+	 */
+	public List<FeatureNode> getInnerNodes()
+	{
+		if (nodes == null) crawl();
+		return inner;
+	}
+
+	/**
+	 * @return the labels of the parse, as seen by the network given
+	 *         to the constructor.
+	 */
+	DiscriminationNetwork.Labels getLabels()
+	{
+		if (nodes == null) crawl();
+		return labels;
+	}
+
+	private void crawl()
+	{
+		IdentityHashMap<FeatureNode,Boolean> visited =
+			new IdentityHashMap<FeatureNode,Boolean>();
+		nodes = new ArrayList<FeatureNode>();
+		inner = new ArrayList<FeatureNode>();
+		if (network != null) labels = network.newLabels();
+		crawl(left, visited);
+	}
+
+	private void crawl(FeatureNode f, IdentityHashMap<FeatureNode,Boolean> visited)
+	{
+		if (visited.put(f, Boolean.TRUE) != null)
+			return;
+		nodes.add(f);
+		if (f.isValued())
+			return;
+		inner.add(f);
+		if (labels != null) network.summarize(labels, f);
+		int count = f.getFeatureCount();
+		for (int i = 0; i < count; i++)
+			crawl(f.getFeatureTarget(i), visited);
+	}
+}
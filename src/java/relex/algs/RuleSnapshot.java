@@ -0,0 +1,291 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.algs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import relex.feature.FeatureAction;
+import relex.feature.FeaturePathAndTarget;
+import relex.feature.FeatureTemplate;
+
+/**
+ * RuleSnapshot saves a parsed rule set to a binary file, and reads it
+ * back, so that a rule file need not be re-parsed every time it is
+ * loaded.  A snapshot is keyed by the SHA-1 hash of the text of the
+ * rule file it was made from; when the text changes, the old snapshot
+ * is simply not found, and a new one gets written.
+ *
+ * Snapshots are kept in the directory named by the system property
+ * relex.algs.cachedir, and only if it is set.  A snapshot is trusted
+ * as much as the rule file itself, so the directory must be one that
+ * only the user running relex can write to; there is no default, as
+ * a shared, well-known directory (such as java.io.tmpdir) would let
+ * other users plant snapshots.  A snapshot that cannot be read or
+ * written is ignored; the rules are then parsed from text.
+ *
+ * The format is: a magic number and FORMAT_VERSION, the source hash,
+ * and then, for each rule, its class name and either its parsed
+ * template and actions or, for algorithms that don't use templates,
+ * its init string.  FORMAT_VERSION must be bumped whenever the format,
+ * or the meaning of the parsed rules, changes.
+ */
+class RuleSnapshot
+{
+	private static final int MAGIC = 0x524c5841; // "RLXA"
+	private static final int FORMAT_VERSION = 1;
+
+	private static final byte TEXT = 0;
+	private static final byte TEMPLATE = 1;
+	private static final byte TEMPLATE_ACTION = 2;
+
+	private static final String ALGS_PACKAGE = "relex.algs.";
+
+	/**
+	 * @return the directory to keep snapshots in, or null if they are
+	 *         turned off, as they are by default.
+	 */
+	static File cacheDir()
+	{
+		String dir = System.getProperty("relex.algs.cachedir");
+		if (dir == null || dir.length() == 0 || dir.equals("none"))
+			return null;
+		return new File(dir);
+	}
+
+	/**
+	 * @return the SHA-1 hash of the rule file text.
+	 */
+	static byte[] hash(byte[] source)
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-1").digest(source);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the snapshot file for the rule file with the given hash.
+	 */
+	static File file(File dir, String filename, byte[] hash)
+	{
+		return new File(dir, new File(filename).getName() + "." + hex(hash) + ".snapshot");
+	}
+
+	/**
+	 * @return the hash as a string of hex digits.
+	 */
+	static String hex(byte[] hash)
+	{
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < hash.length; i++)
+			sb.append(Integer.toHexString(0x100 | (hash[i] & 0xff)).substring(1));
+		return sb.toString();
+	}
+
+	/**
+	 * @return the algorithms, initialized, in file order; or null if
+	 *         there is no usable snapshot.
+	 */
+	static List<SentenceAlgorithm> load(File f, byte[] hash)
+	{
+		if (!f.exists())
+			return null;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+				return null;
+			byte[] h = new byte[in.readInt()];
+			in.readFully(h);
+			if (!Arrays.equals(h, hash))
+				return null;
+
+			HashMap<String,Class<?>> classes = new HashMap<String,Class<?>>();
+			int n = in.readInt();
+			ArrayList<SentenceAlgorithm> algs = new ArrayList<SentenceAlgorithm>(n);
+			for (int i = 0; i < n; i++)
+			{
+				String name = in.readUTF();
+				Class<?> c = classes.get(name);
+				if (c == null)
+				{
+					c = Class.forName(ALGS_PACKAGE + name);
+					classes.put(name, c);
+				}
+				SentenceAlgorithm alg = (SentenceAlgorithm) c.newInstance();
+				byte kind = in.readByte();
+				if (kind == TEXT)
+				{
+					alg.init(readString(in));
+				}
+				else
+				{
+					String sig = readString(in);
+					ArrayList<FeaturePathAndTarget> tests = new ArrayList<FeaturePathAndTarget>();
+					int nt = in.readInt();
+					for (int j = 0; j < nt; j++)
+						tests.add(new FeaturePathAndTarget(in.readUTF(),
+							in.readUTF(), readString(in), in.readBoolean()));
+					FeatureTemplate t = new FeatureTemplate(tests);
+					if (kind == TEMPLATE)
+					{
+						((TemplateMatchingAlg) alg).init(sig, t);
+					}
+					else
+					{
+						ArrayList<FeatureAction> acts = new ArrayList<FeatureAction>();
+						int na = in.readInt();
+						for (int j = 0; j < na; j++)
+							acts.add(new FeatureAction(in.readUTF(),
+								in.readUTF(), readString(in), in.readBoolean()));
+						((TemplateActionAlg) alg).init(sig, t, acts);
+					}
+				}
+				algs.add(alg);
+			}
+			return algs;
+		}
+		catch (Exception e)
+		{
+			// A stale or damaged snapshot; the caller re-parses.
+			return null;
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+
+	/**
+	 * Write a snapshot of the algorithms, which must have been read
+	 * from the rule file with the given hash. Any failure is ignored.
+	 */
+	static void save(File f, byte[] hash, List<SentenceAlgorithm> algs,
+	                 List<String[]> rules)
+	{
+		File tmp = null;
+		DataOutputStream out = null;
+		try
+		{
+			f.getParentFile().mkdirs();
+			tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(hash.length);
+			out.write(hash);
+			out.writeInt(algs.size());
+			for (int i = 0; i < algs.size(); i++)
+			{
+				SentenceAlgorithm alg = algs.get(i);
+				out.writeUTF(rules.get(i)[0]);
+				if (!(alg instanceof TemplateMatchingAlg))
+				{
+					out.writeByte(TEXT);
+					writeString(out, rules.get(i)[1]);
+					continue;
+				}
+				TemplateMatchingAlg tma = (TemplateMatchingAlg) alg;
+				out.writeByte(alg instanceof TemplateActionAlg ? TEMPLATE_ACTION : TEMPLATE);
+				writeString(out, tma.getSignature());
+				List<FeaturePathAndTarget> tests = tma.getTemplate().getPathsAndTargets();
+				out.writeInt(tests.size());
+				for (FeaturePathAndTarget pt : tests)
+					write(out, pt);
+				if (alg instanceof TemplateActionAlg)
+				{
+					List<FeatureAction> acts = ((TemplateActionAlg) alg).getActions();
+					out.writeInt(acts.size());
+					for (FeatureAction act : acts)
+						write(out, act);
+				}
+			}
+			out.close();
+			out = null;
+
+			// Another process may have beaten us to it, which is fine.
+			if (!tmp.renameTo(f))
+				tmp.delete();
+			tmp = null;
+		}
+		catch (IOException e)
+		{
+			// No snapshot, then; the rules will be parsed next time too.
+		}
+		finally
+		{
+			close(out);
+			if (tmp != null)
+				tmp.delete();
+		}
+	}
+
+	private static void write(DataOutputStream out, FeaturePathAndTarget pt)
+		throws IOException
+	{
+		out.writeUTF(pt.getPath().toString());
+		out.writeUTF(pt.getSeparator());
+		if (pt.isPathPair())
+			writeString(out, pt.getTargetPath().toString());
+		else
+			writeString(out, pt.getTargetString());
+		out.writeBoolean(pt.isPathPair());
+	}
+
+	/** Like writeUTF, but without the 64K limit. */
+	private static void writeString(DataOutputStream out, String s)
+		throws IOException
+	{
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	private static void close(Closeable c)
+	{
+		if (c == null) return;
+		try
+		{
+			c.close();
+		}
+		catch (IOException e) {}
+	}
+}
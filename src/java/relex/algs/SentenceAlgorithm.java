@@ -19,7 +19,7 @@ package relex.algs;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 
 import relex.ParsedSentence;
@@ -41,11 +41,28 @@ public abstract class SentenceAlgorithm
 	 */
 	public void apply(ParsedSentence sentence, RelexContext context)
 	{
-		Iterator<FeatureNode> i = iteratorFromLeft(sentence);
-		while (i.hasNext()) {
-			FeatureNode c = i.next();
+		apply(sentence, context, new NodeIndex(sentence), null);
+	}
+
+	/**
+	 * As above, but takes the nodes from a NodeIndex shared with the
+	 * other algorithms applied to this parse, invalidating it if the
+	 * algorithm fires.  Nodes rejected by the root test are skipped
+	 * without trying the full canApplyTo() on them; since a root test
+	 * never admits a valued node, those are not even visited.
+	 */
+	void apply(ParsedSentence sentence, RelexContext context,
+	           NodeIndex index, DiscriminationNetwork.RootTest rootTest)
+	{
+		List<FeatureNode> nodes = (rootTest == null) ?
+			index.getNodes() : index.getInnerNodes();
+		for (int n = 0; n < nodes.size(); n++) {
+			FeatureNode c = nodes.get(n);
+			if (rootTest != null && !rootTest.admits(c))
+				continue;
 			Map<String,FeatureNode> vars = canApplyTo(c);
 			if (null != vars) {
+				index.invalidate();
 				boolean printResult = false;
 				if (VERBOSE)
 					System.err.print(" " + getSignature());
@@ -95,22 +112,7 @@ public abstract class SentenceAlgorithm
 	 */
 	public Iterator<FeatureNode> iteratorFromLeft(ParsedSentence sent)
 	{
-		return _iteratorFromLeft(sent.getLeft(),
-		                         new LinkedHashSet<FeatureNode>()).iterator();
-	}
-
-	private LinkedHashSet<FeatureNode>
-	_iteratorFromLeft(FeatureNode f, LinkedHashSet<FeatureNode> alreadyVisited)
-	{
-		if (alreadyVisited.contains(f))
-			return alreadyVisited;
-		alreadyVisited.add(f);
-		if (f.isValued())
-			return alreadyVisited;
-		Iterator<String> i = f.getFeatureNames().iterator();
-		while (i.hasNext())
-			_iteratorFromLeft(f.get(i.next()), alreadyVisited);
-		return alreadyVisited;
+		return new NodeIndex(sent).getNodes().iterator();
 	}
 
 	/**
@@ -18,6 +18,7 @@ package relex.algs;
 
 import relex.ParsedSentence;
 import relex.concurrent.RelexContext;
+import relex.feature.FeatureNode;
 
 /**
  * SentenceAlgorithmApplier is responsible for loading SentenceAlgorithms
@@ -27,55 +28,128 @@ import relex.concurrent.RelexContext;
  * include basic feature tagging and semantic extraction. Optional sets
  * include a Stanford-parser comptibility mode, and a Penn Treebank POS
  * tagging compatibility mode.
+ *
+ * Each set is loaded the first time it is used, so that the optional
+ * sets cost nothing unless asked for.  Once loaded, a set is never
+ * modified, and so a single SentenceAlgorithmApplier may be shared by
+ * any number of threads; getInstance() returns such a shared one.
  */
 public class SentenceAlgorithmApplier
 {
-	private AlgorithmApplier tagger;
-	private AlgorithmApplier penn;
-	private AlgorithmApplier semant;
-	private AlgorithmApplier stanford;
+	private final RuleSet tagger =
+		new RuleSet("relex.tagalgpath", "relex-tagging.algs");
+	private final RuleSet penn =
+		new RuleSet("relex.pennalgpath", "relex-penn-tagging.algs");
+	private final RuleSet semant =
+		new RuleSet("relex.semalgpath", "relex-semantic.algs");
+	private final RuleSet stanford =
+		new RuleSet("relex.sfalgpath", "relex-stanford.algs");
+
+	private static class Holder
+	{
+		static final SentenceAlgorithmApplier instance =
+			new SentenceAlgorithmApplier();
+	}
+
+	/**
+	 * A set of algorithms, loaded from its file the first time get()
+	 * is called.
+	 */
+	private static final class RuleSet
+	{
+		private final String prop;
+		private final String filename;
+		private volatile AlgorithmApplier applier;
+
+		RuleSet(String prop, String filename)
+		{
+			this.prop = prop;
+			this.filename = filename;
+		}
+
+		AlgorithmApplier get()
+		{
+			AlgorithmApplier a = applier;
+			if (a == null)
+			{
+				synchronized (this)
+				{
+					a = applier;
+					if (a == null)
+						applier = a = new AlgorithmApplier(prop, filename);
+				}
+			}
+			return a;
+		}
+	}
 
 	public SentenceAlgorithmApplier()
 	{
-		tagger = new AlgorithmApplier(
-			"relex.tagalgpath", "relex-tagging.algs");
-		semant = new AlgorithmApplier(
-			"relex.semalgpath", "relex-semantic.algs");
-		penn = new AlgorithmApplier(
-			"relex.pennalgpath", "relex-penn-tagging.algs");
-		stanford = new AlgorithmApplier(
-			"relex.sfalgpath", "relex-stanford.algs");
+	}
+
+	/**
+	 * @return an instance shared by the whole process.
+	 */
+	public static SentenceAlgorithmApplier getInstance()
+	{
+		return Holder.instance;
 	}
 
 	public void tagFeatures(ParsedSentence sentence, RelexContext context)
 	{
-		tagger.applyAlgs(sentence, context);
+		tagger.get().applyAlgs(sentence, context);
 	}
 
 	public void extractSemantics(ParsedSentence sentence, RelexContext context)
 	{
-		semant.applyAlgs(sentence, context);
+		semant.get().applyAlgs(sentence, context);
 	}
 
 	public void extractStanford(ParsedSentence sentence, RelexContext context)
 	{
-		stanford.applyAlgs(sentence, context);
+		stanford.get().applyAlgs(sentence, context);
 	}
 
 	public void pennTag(ParsedSentence sentence, RelexContext context)
 	{
-		penn.applyAlgs(sentence, context);
+		penn.get().applyAlgs(sentence, context);
 	}
 
 	// The apply method, for the core relations only.
 	public void applyAlgs(ParsedSentence sentence, RelexContext context)
 	{
-		tagger.applyAlgs(sentence, context);
-		semant.applyAlgs(sentence, context);
+		tagger.get().applyAlgs(sentence, context);
+		semant.get().applyAlgs(sentence, context);
+	}
+
+	/**
+	 * Apply the sets of algorithms asked for, in the order each
+	 * expects the ones before it: the core relations, then Stanford,
+	 * then Penn tagging.  This is what RelationExtractor and the
+	 * concurrent extractors do with each parse, before its phrase
+	 * structure markup.
+	 *
+	 * The flags are those of RelationExtractor.
+	 */
+	public void processParse(ParsedSentence sentence, RelexContext context,
+	                         boolean do_expand_preps, boolean do_apply_algs,
+	                         boolean do_stanford, boolean do_penn_tagging)
+	{
+		if (do_expand_preps)
+			sentence.getLeft().set("expand-preps", new FeatureNode("T"));
+
+		// The actual relation extraction is done here.
+		if (do_apply_algs) applyAlgs(sentence, context);
+		if (do_stanford) extractStanford(sentence, context);
+		if (do_penn_tagging) pennTag(sentence, context);
 	}
 
 	public static void main(String[] args)
 	{
-		new SentenceAlgorithmApplier();
+		SentenceAlgorithmApplier sa = new SentenceAlgorithmApplier();
+		sa.tagger.get();
+		sa.semant.get();
+		sa.penn.get();
+		sa.stanford.get();
 	}
 }
@@ -17,13 +17,16 @@
 package relex.algs;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import relex.ParsedSentence;
 import relex.concurrent.RelexContext;
 import relex.feature.FeatureAction;
 import relex.feature.FeatureNode;
+import relex.feature.FeatureTemplate;
 
 public class TemplateActionAlg extends TemplateMatchingAlg {
 
@@ -44,6 +47,24 @@ public class TemplateActionAlg extends TemplateMatchingAlg {
 		}
 	}
 
+	/**
+	 * Initialize from an already-parsed template and actions, rather
+	 * than from text.
+	 */
+	void init(String sig, FeatureTemplate t, List<FeatureAction> actions)
+	{
+		init(sig, t);
+		featureActions = new ArrayList<FeatureAction>(actions);
+	}
+
+	/**
+	 * @return the actions, in the order in which they are applied.
+	 */
+	List<FeatureAction> getActions()
+	{
+		return Collections.unmodifiableList(featureActions);
+	}
+
 	public String toString()
 	{
 		StringBuffer sb = new StringBuffer(super.toString());
@@ -55,6 +55,15 @@ public abstract class TemplateMatchingAlg extends SentenceAlgorithm {
 		return signature;
 	}
 
+	/**
+	 * Initialize from an already-parsed template, rather than from text.
+	 */
+	void init(String sig, FeatureTemplate t)
+	{
+		signature = sig;
+		setTemplate(t);
+	}
+
 	public int init(String str)
 	{
 		if (!Character.isLetter(str.charAt(0)))
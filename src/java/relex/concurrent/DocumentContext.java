@@ -0,0 +1,165 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import relex.Document;
+import relex.Sentence;
+import relex.anaphora.Antecedents;
+import relex.anaphora.Hobbs;
+
+/**
+ * DocumentContext holds what anaphora resolution remembers of one
+ * document: the sentence history, the antecedents found so far, and
+ * the Document itself.  Documents do not share any of it, so the
+ * sentences of different documents can be resolved at the same time,
+ * on different threads.
+ *
+ * Within a document, anaphora resolution must see the sentences in
+ * order.  ParallelRelationExtractor parses them in parallel all the
+ * same, and hands each to finished() as it is done; the sentences
+ * then go through anaphora resolution in order, each as soon as the
+ * ones before it have.
+ */
+public class DocumentContext
+{
+	private final Document document;
+	private final Antecedents antecedents;
+	private final Hobbs hobbs;
+	private final boolean keepSentences;
+
+	/** Sentences pushed so far; written by the producer only */
+	int pushed;
+
+	// Guarded by this
+	private final HashMap<Integer, Pending> pending;
+	private int resolved;
+	private boolean draining;
+
+	public DocumentContext()
+	{
+		this(true);
+	}
+
+	/**
+	 * @param keepSentences whether to add each sentence to the
+	 *        Document, once it is resolved.  A context that goes on for
+	 *        ever, such as that of an extractor with no documents,
+	 *        should not.
+	 */
+	public DocumentContext(boolean keepSentences)
+	{
+		document = new Document();
+		antecedents = new Antecedents();
+		hobbs = new Hobbs(antecedents);
+		this.keepSentences = keepSentences;
+		pushed = 0;
+		pending = new HashMap<Integer, Pending>();
+		resolved = 0;
+		draining = false;
+	}
+
+	public Document getDocument()
+	{
+		return document;
+	}
+
+	public Antecedents getAntecedents()
+	{
+		return antecedents;
+	}
+
+	/**
+	 * Resolve the anaphora in the next sentence of the document.
+	 * Not thread-safe; finished() calls it in order.
+	 */
+	public void resolve(Sentence sntc)
+	{
+		hobbs.addParse(sntc);
+		hobbs.resolve(sntc);
+	}
+
+	/**
+	 * Sentence seq of the document is done with everything but
+	 * anaphora resolution.  Resolve it, and any after it that were
+	 * waiting for it, in order, and run the then of each.  Whichever
+	 * thread finishes the sentence next in line does the resolving,
+	 * while the others go back to work.
+	 */
+	void finished(int seq, Future<RelexTaskResult> result, boolean doAnaphora, Runnable then)
+	{
+		synchronized (this)
+		{
+			pending.put(new Integer(seq), new Pending(result, doAnaphora, then));
+			if (draining)
+				return;
+			draining = true;
+		}
+		while (true)
+		{
+			Pending p;
+			synchronized (this)
+			{
+				p = pending.remove(new Integer(resolved));
+				if (p == null)
+				{
+					draining = false;
+					return;
+				}
+				resolved++;
+			}
+			try
+			{
+				Sentence sntc = p.result.get().result;
+				if (p.doAnaphora)
+					resolve(sntc);
+				if (keepSentences)
+					document.addSentence(sntc);
+			}
+			catch (ExecutionException e)
+			{
+				// The failure goes to whoever takes the result.
+			}
+			catch (InterruptedException e)
+			{
+				// The result is done; get() does not wait.
+			}
+			catch (RuntimeException e)
+			{
+				System.err.println("Error: Failed to resolve anaphora in document " +
+					document.getID());
+				e.printStackTrace();
+			}
+			p.then.run();
+		}
+	}
+
+	private static final class Pending
+	{
+		final Future<RelexTaskResult> result;
+		final boolean doAnaphora;
+		final Runnable then;
+
+		Pending(Future<RelexTaskResult> result, boolean doAnaphora, Runnable then)
+		{
+			this.result = result;
+			this.doAnaphora = doAnaphora;
+			this.then = then;
+		}
+	}
+}
@@ -19,52 +19,111 @@ package relex.concurrent;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
+import relex.CommandLineArgParser;
 import relex.algs.SentenceAlgorithmApplier;
 import relex.anaphora.Antecedents;
-import relex.anaphora.Hobbs;
 import relex.corpus.DocSplitter;
 import relex.corpus.DocSplitterFactory;
 import relex.morphy.Morphy;
 import relex.morphy.MorphyFactory;
-import relex.parser.RemoteLGParser;
+import relex.parser.IParser;
+import relex.parser.LGParser;
+import relex.parser.MultiProcessLGParser;
+import relex.parser.PooledRemoteLGParser;
 import relex.tree.PhraseMarkup;
 
+/**
+ * ParallelRelationExtractor processes sentences on a pool of threads,
+ * and hands back the results in the order the sentences were pushed.
+ * All threads share one parser, which must be thread-safe: usually
+ * a MultiProcessLGParser, with link-grammar worker processes of its
+ * own (see withWorkers()), or a PooledRemoteLGParser, over one or
+ * more link-grammar servers (see withServers()).
+ *
+ * At most getCapacity() sentences may be pushed and not yet taken;
+ * push() blocks beyond that, until take() makes room.  This bounds
+ * the work queued up, and the results waiting to be taken, so that a
+ * producer faster than the parser, or than the consumer, is held back
+ * rather than filling up memory.
+ *
+ * Results wait in a ReorderBuffer, whose window is that same capacity,
+ * until they are taken.  A sentence that is slow to parse holds back
+ * the ones after it, but only as far as the window; the threads go on
+ * with those meanwhile.  A consumer that does not need the order can
+ * setInOrder(false), and take results as they are done, each with its
+ * RelexTaskResult.index.
+ *
+ * The stages done are set with the do_ flags, as in RelationExtractor;
+ * they are read when a sentence is pushed.  take() should be called
+ * from one thread only.
+ *
+ * Anaphora resolution looks back at the sentences before, in the same
+ * document, and must see them in order; it is done on the threads,
+ * each document on its own (see DocumentContext).  Sentences pushed
+ * with a DocumentContext belong to that document; the others, to one
+ * that lasts until clear() is called.  Many documents can so be
+ * processed at once, while the sentences of each are still resolved
+ * in order; a result is handed out only once it has been.
+ */
 public class ParallelRelationExtractor {
 
 	private static final String DEFAULT_HOST = "localhost";
 	public static final int FIRST_PORT = 9000;
 	public static final int CLIENT_POOL_SIZE = 1;
 
-    private ExecutorService exec;
+	/** Sentences that may wait, per thread, besides those in progress */
+	public static final int DEFAULT_QUEUE_PER_THREAD = 4;
 
-	private BlockingQueue<RelexContext> pool;
+	private ExecutorService exec;
 
-	private LinkedBlockingQueue<Future<RelexTaskResult>> results;
+	/** Shared by all threads: the parser and morphy are thread-safe */
+	private RelexContext context;
+
+	/** A permit for each sentence that may be pushed and not taken */
+	private Semaphore room;
+	private int capacity;
+
+	private ReorderBuffer<Future<RelexTaskResult>> results;
 
 	public int count = 0;
 
-	private boolean stop;
+	/** Taken so far; consumer only */
+	private int taken = 0;
 
-	// Single-threaded processors
-	/** Antecedents used in anaphora resolution */
-	public Antecedents antecedents;
+	private volatile boolean stop;
+
+	/** Apply the relex algs to the parse */
+	public boolean do_apply_algs = true;
+
+	/** Stanford parser compatibility mode */
+	public boolean do_stanford = false;
+
+	/** Penn tagset compatibility mode */
+	public boolean do_penn_tagging = false;
+
+	/** Penn tree-bank style phrase structure markup. */
+	public boolean do_tree_markup = true;
 
 	/** Anaphora resolution */
-	private Hobbs hobbs;
+	public boolean do_anaphora_resolution = true;
 
-	// Thread-safe processors
-	/** Syntactic processing */
-//	private LinkParser linkParser;
+	/** The document of the sentences pushed without one */
+	private DocumentContext document;
 
+	/** Antecedents used in anaphora resolution, in that document */
+	public Antecedents antecedents;
+
+	// Thread-safe processors
 	/** Semantic (RelEx) processing */
 	private SentenceAlgorithmApplier sentenceAlgorithmApplier;
 
@@ -72,73 +131,203 @@ public class ParallelRelationExtractor {
 	private PhraseMarkup phraseMarkup;
 
 	public ParallelRelationExtractor(){
-		initializePool();
-		results = new LinkedBlockingQueue<Future<RelexTaskResult>>();
-//		linkParser = new LinkParser();
-		sentenceAlgorithmApplier = new SentenceAlgorithmApplier();
-		phraseMarkup = new PhraseMarkup();
-		antecedents = new Antecedents();
-		hobbs = new Hobbs(antecedents);
+		this(null, CLIENT_POOL_SIZE);
 	}
 
 	/**
-	 * Initialize the pool of LinkParserClients, creating CLIENT_POOL_SIZE instances,
-	 * which connects to ports FIRST_PORT, FIRST_PORT+1, ..., FIRST_PORT+(CLIENT_POOL_SIZE-1)
+	 * Process sentences on numThreads threads, all sharing the given
+	 * parser, which must be thread-safe, such as a MultiProcessLGParser
+	 * with (at least) numThreads workers.  If the parser is null,
+	 * they share a PooledRemoteLGParser over the servers on ports
+	 * FIRST_PORT, FIRST_PORT+1, ..., FIRST_PORT+(numThreads-1) of
+	 * DEFAULT_HOST.  Up to DEFAULT_QUEUE_PER_THREAD sentences per
+	 * thread may wait.
 	 */
-	private void initializePool() {
-		exec = Executors.newFixedThreadPool(CLIENT_POOL_SIZE); // thread pool
-		pool = new ArrayBlockingQueue<RelexContext>(CLIENT_POOL_SIZE);
+	public ParallelRelationExtractor(IParser parser, int numThreads){
+		this(parser, numThreads, numThreads * DEFAULT_QUEUE_PER_THREAD);
+	}
+
+	/**
+	 * @param queueSize how many sentences may wait to be processed, or
+	 *        to be taken, besides the numThreads being processed.
+	 */
+	public ParallelRelationExtractor(IParser parser, int numThreads, int queueSize){
+		if (numThreads < 1)
+			throw new IllegalArgumentException("numThreads must be at least 1");
+		if (parser == null) {
+			String[] servers = new String[numThreads];
+			for (int i = 0 ; i < numThreads; i++)
+				servers[i] = DEFAULT_HOST + ":" + (FIRST_PORT+i);
+			parser = remoteParser(servers);
+		}
+		exec = Executors.newFixedThreadPool(numThreads);
 		Morphy morphy = MorphyFactory.getImplementation(MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
 		morphy.initialize();
+		context = new RelexContext(parser, morphy);
 
-		 for (int i = 0 ; i < CLIENT_POOL_SIZE; i++){
-//			 LinkParserClient lpc = new LinkParserSocketClient(DEFAULT_HOST, FIRST_PORT+i);
-//			 lpc.setAllowSkippedWords(true);
-			 RemoteLGParser parser = new RemoteLGParser();
-			 parser.getLinkGrammarClient().setHostname(DEFAULT_HOST);
-			 parser.getLinkGrammarClient().setPort(FIRST_PORT+i);
-			 RelexContext context = new RelexContext(parser, morphy);
-			 try {
-				pool.put(context);
-			} catch (InterruptedException e) {
-			}
-		 }
+		capacity = numThreads + Math.max(queueSize, 0);
+		room = new Semaphore(capacity);
+		results = new ReorderBuffer<Future<RelexTaskResult>>(capacity, true);
+		sentenceAlgorithmApplier = SentenceAlgorithmApplier.getInstance();
+		phraseMarkup = new PhraseMarkup();
+		document = new DocumentContext(false);
+		antecedents = document.getAntecedents();
+	}
+
+	/**
+	 * Parse with numThreads link-grammar worker processes of our own.
+	 */
+	public static ParallelRelationExtractor withWorkers(int numThreads, int queueSize){
+		MultiProcessLGParser parser = new MultiProcessLGParser(numThreads);
+		configure(parser);
+		return new ParallelRelationExtractor(parser, numThreads, queueSize);
+	}
+
+	/**
+	 * Parse with the link-grammar servers given as host:port strings.
+	 */
+	public static ParallelRelationExtractor withServers(String[] hostPorts,
+	                                                    int numThreads, int queueSize){
+		return new ParallelRelationExtractor(remoteParser(hostPorts), numThreads, queueSize);
+	}
+
+	private static PooledRemoteLGParser remoteParser(String[] hostPorts){
+		PooledRemoteLGParser parser = new PooledRemoteLGParser();
+		parser.addEndpoints(hostPorts);
+		configure(parser);
+		return parser;
+	}
+
+	/** The same parser settings as RelationExtractor uses. */
+	private static void configure(LGParser parser){
+		parser.getConfig().setStoreConstituentString(true);
+		parser.getConfig().setStoreSense(true);
+		parser.getConfig().setAllowSkippedWords(true);
+	}
+
+	public IParser getParser(){
+		return context.getParser();
+	}
+
+	/**
+	 * @return the most sentences that may be pushed and not yet taken.
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+
+	public boolean isInOrder(){
+		return results.isOrdered();
 	}
 
 	/**
-	 * Submit a new sentence to be processed, blocking if no resources are available.
+	 * Choose whether take() returns results in order of submission
+	 * (the default), or as soon as they are done.  Only allowed while
+	 * there are no results pending.
+	 */
+	public void setInOrder(boolean inOrder){
+		if (inOrder == results.isOrdered())
+			return;
+		if (taken != count)
+			throw new IllegalStateException("Results are pending");
+		results = new ReorderBuffer<Future<RelexTaskResult>>(capacity, inOrder);
+	}
+
+	/**
+	 * Submit a new sentence to be processed, blocking while there are
+	 * getCapacity() sentences pushed and not yet taken.
 	 * Results are obtained calling take(), and are returned in order of submission.
 	 *
 	 * @param sentence The sentence to be processed.
 	 * @throws InterruptedException
 	 */
 	public void push(String sentence) throws InterruptedException{
-		RelexContext context = pool.take();
-		Callable<RelexTaskResult> callable =
-			new RelexTask(count++, sentence,
+		waitForRoom();
+		submit(null, sentence);
+	}
+
+	/**
+	 * Submit the next sentence of the given document.
+	 */
+	public void push(DocumentContext doc, String sentence)
+		throws InterruptedException{
+		waitForRoom();
+		submit(doc, sentence);
+	}
+
+	/**
+	 * Take a permit for a sentence, outside the lock, so that clear()
+	 * and other producers are not held up while waiting for it.
+	 */
+	private void waitForRoom() throws InterruptedException{
+		if (stop)
+			throw new IllegalStateException("ParallelRelationExtractor is shut down");
+		room.acquire();
+	}
+
+	/**
+	 * Number the sentence, and hand it to the threads; a permit has
+	 * been taken for it.
+	 *
+	 * @param given the document, or null for the one clear() started
+	 */
+	private synchronized void submit(DocumentContext given, String sentence){
+		final DocumentContext doc = (given != null) ? given : document;
+		final int index = count;
+		final int docIndex = doc.pushed++;
+		final boolean anaphora = do_anaphora_resolution;
+		final ReorderBuffer<Future<RelexTaskResult>> buffer = results;
+		RelexTask task =
+			new RelexTask(index, sentence,
 					sentenceAlgorithmApplier,
-					phraseMarkup, context, pool);
-		Future<RelexTaskResult> submit = exec.submit(callable);
-        results.add(submit);
+					do_tree_markup ? phraseMarkup : null, context);
+		task.do_apply_algs = do_apply_algs;
+		task.do_stanford = do_stanford;
+		task.do_penn_tagging = do_penn_tagging;
+		FutureTask<RelexTaskResult> future = new FutureTask<RelexTaskResult>(task) {
+			protected void done() {
+				final Future<RelexTaskResult> self = this;
+				doc.finished(docIndex, this, anaphora, new Runnable() {
+					public void run() {
+						buffer.put(index, self);
+					}
+				});
+			}
+		};
+		try {
+			exec.execute(future);
+		} catch (RuntimeException e) {
+			room.release();
+			throw e;
+		}
+		count++;
 	}
 
 	/**
-	 * Return the next result, in order of submission, or blocks until
-	 * it's ready
+	 * Return the next result, in order of submission unless
+	 * setInOrder(false) was called, or blocks until it's ready.
 	 *
-	 * @return The next result
+	 * @return The next result, or null if shutdown() was called, and
+	 *         all results have been taken.
 	 * @throws InterruptedException
 	 * @throws ExecutionException
 	 */
-	protected RelexTaskResult take() throws InterruptedException, ExecutionException {
-		Future<RelexTaskResult> first = results.take();
-		RelexTaskResult taskResult = first.get();
-
-		// Perform anaphora resolution
-		hobbs.addParse(taskResult.result);
-		hobbs.resolve(taskResult.result);
-
-		return taskResult;
+	public RelexTaskResult take() throws InterruptedException, ExecutionException {
+		Future<RelexTaskResult> first;
+		do {
+			// stop is set after the last push, so count is up to date.
+			if (stop && taken == count)
+				return null;
+			first = results.poll(100, TimeUnit.MILLISECONDS);
+		}
+		while (first == null);
+
+		try {
+			return first.get();
+		} finally {
+			taken++;
+			room.release();
+		}
 	}
 
 	/**
@@ -147,12 +336,13 @@ public class ParallelRelationExtractor {
 	 * The Anaphora resolver keeps a list of sentences previously seen,
 	 * so that anaphora resolution can be done. When starting the parse
 	 * of a new text, this cache needs to be cleaned out. This is the
-	 * way to do so.
+	 * way to do so: the sentences pushed after this, without a
+	 * DocumentContext, start a new document.
 	 */
-	public void clear()
+	public synchronized void clear()
 	{
-		antecedents.clear();
-		hobbs = new Hobbs(antecedents);
+		document = new DocumentContext(false);
+		antecedents = document.getAntecedents();
 	}
 
 	/**
@@ -168,71 +358,147 @@ public class ParallelRelationExtractor {
 	 * @return true is no more sentences are accepted (i.e., shutdown() was called)
 	 * and there are no pending results
 	 */
-	protected boolean isRunning() {
-		return !stop || !results.isEmpty();
+	public boolean isRunning() {
+		return !stop || taken != count;
 	}
 
 	/**
-	 * Unit test. Read a text file and process its sentences in parallel.
-	 * Assumes link-grammar servers running on DEFAULT_HOST,
-	 * listening to ports FIRST_PORT, FIRST_PORT+1, ..., FIRST_PORT+(CLIENT_POOL_SIZE-1)
+	 * Unit test. Read a text file and process its sentences in parallel,
+	 * printing the results in order, or, with --unordered, as they are done.  With --workers, parses with that
+	 * many link-grammar worker processes; with --servers, with the given
+	 * link-grammar servers; otherwise, assumes link-grammar servers
+	 * running on DEFAULT_HOST, listening to ports FIRST_PORT,
+	 * FIRST_PORT+1, ..., FIRST_PORT+(threads-1).
 	 *
-	 * @param args The text file to be read
+	 * @param args The text file to be read, and options
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	public static void main(final String[] args) throws IOException, InterruptedException {
+		String callString = "ParallelRelationExtractor file" +
+			" [-a (perform anaphora resolution)]" +
+			" [--lines (each line is a document of its own)]" +
+			" [--penn (generate Penn treebank-style POS tags)]" +
+			" [--queue N (sentences that may wait, default 4 per thread)]" +
+			" [--servers host:port,host:port,...]" +
+			" [--stanford (generate stanford-compatible output)]" +
+			" [-t (do phrase structure markup)]" +
+			" [--threads N (default 1, or the number of servers)]" +
+			" [--unordered (print results as they are done)]" +
+			" [--workers N (parse with N worker processes)]";
+		HashSet<String> flags = new HashSet<String>();
+		flags.add("-a");
+		flags.add("--lines");
+		flags.add("--penn");
+		flags.add("--stanford");
+		flags.add("-t");
+		flags.add("--unordered");
+		HashSet<String> opts = new HashSet<String>();
+		opts.add("--queue");
+		opts.add("--servers");
+		opts.add("--threads");
+		opts.add("--workers");
+		if (args.length < 1 || args[0].startsWith("-")) {
+			System.err.println(callString);
+			return;
+		}
+		Map<String,String> commandMap = CommandLineArgParser.parse(args, opts, flags);
+
 		long t = System.currentTimeMillis();
-		final ParallelRelationExtractor pre = new ParallelRelationExtractor();
+		final ParallelRelationExtractor pre;
+		try {
+			String servers = commandMap.get("--servers");
+			String workers = commandMap.get("--workers");
+			String threads = commandMap.get("--threads");
+			int n = (threads != null) ? Integer.parseInt(threads) :
+				(workers != null) ? Integer.parseInt(workers) :
+				(servers != null) ? servers.split(",").length : CLIENT_POOL_SIZE;
+			String queue = commandMap.get("--queue");
+			int q = (queue != null) ? Integer.parseInt(queue) : n * DEFAULT_QUEUE_PER_THREAD;
+
+			if (workers != null)
+				pre = withWorkers(n, q);
+			else if (servers != null)
+				pre = withServers(servers.split(","), n, q);
+			else
+				pre = new ParallelRelationExtractor(null, n, q);
+		} catch (RuntimeException e) {
+			System.err.println("Unrecognized parameter.");
+			System.err.println(callString);
+			e.printStackTrace();
+			return;
+		}
+		pre.do_anaphora_resolution = commandMap.get("-a") != null;
+		pre.do_tree_markup = commandMap.get("-t") != null || pre.do_anaphora_resolution;
+		pre.do_stanford = commandMap.get("--stanford") != null;
+		pre.do_penn_tagging = commandMap.get("--penn") != null;
+		if (commandMap.get("--unordered") != null)
+			pre.setInOrder(false);
+		final boolean lines = commandMap.get("--lines") != null;
 		System.err.println("Initialization time: "+((System.currentTimeMillis() - t)/1000)+" s");
 
 		final long xt = System.currentTimeMillis();
 		// Producer - submits sentences from a file
 		new Thread(new Runnable(){
 			public void run() {
-		        DocSplitter ds = DocSplitterFactory.create();
+				DocSplitter ds = DocSplitterFactory.create();
 				try {
-					// Read entire file
-					StringBuilder sb = new StringBuilder();
-			        BufferedReader in = new BufferedReader(new FileReader(args[0]));
-			        String line = in.readLine();
-			        while (line!=null){
-			        	sb.append(" "+line+" ");
-			        	line = in.readLine();
-			        }
-			        in.close();
-
-			        // Break text into sentences and submit
-					ds.addText(sb.toString());
-					sb = null;
-
-					String sentence = ds.getNextSentence();
-					while (sentence!=null){
-						pre.push(sentence);
-						sentence = ds.getNextSentence();
+					if (lines) {
+						// One document per line, all processed at once
+						BufferedReader in = new BufferedReader(new FileReader(args[0]));
+						String line = in.readLine();
+						while (line!=null){
+							DocumentContext doc = new DocumentContext();
+							for (String sentence : ds.split(line))
+								pre.push(doc, sentence);
+							line = in.readLine();
+						}
+						in.close();
+					} else {
+						// Read entire file
+						StringBuilder sb = new StringBuilder();
+						BufferedReader in = new BufferedReader(new FileReader(args[0]));
+						String line = in.readLine();
+						while (line!=null){
+							sb.append(" "+line+" ");
+							line = in.readLine();
+						}
+						in.close();
+
+						// Break text into sentences and submit
+						ds.addText(sb.toString());
+						sb = null;
+
+						String sentence = ds.getNextSentence();
+						while (sentence!=null){
+							pre.push(sentence);
+							sentence = ds.getNextSentence();
+						}
 					}
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
-				pre.clear(); // Clear anaphora resolution cache; do this when changing documents
-		        pre.shutdown(); // end all threads in the pool after finishing all requests
+				pre.shutdown(); // end all threads in the pool after finishing all requests
 		}}).start();
 
 		// Consumer - print the results, in the original order
 		new Thread(new Runnable(){
 			public void run() {
 				try {
-					while(pre.isRunning()){
-							System.err.println(pre.take());
+					RelexTaskResult result = pre.take();
+					while (result != null){
+						System.out.println(result);
+						result = pre.take();
 					}
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
+				pre.clear(); // Clear anaphora resolution cache; do this when changing documents
 				System.err.println("Elapsed time: "+((System.currentTimeMillis() - xt)/1000)+" s");
+				if (pre.getParser() instanceof MultiProcessLGParser)
+					((MultiProcessLGParser) pre.getParser()).close();
 			}
 		}).start();
 
 	}
 }
-
-
@@ -0,0 +1,588 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.algs.SentenceAlgorithmApplier;
+import relex.anaphora.Antecedents;
+import relex.anaphora.Hobbs;
+import relex.corpus.DocSplitter;
+import relex.corpus.DocSplitterFactory;
+import relex.morphy.Morphy;
+import relex.morphy.MorphyFactory;
+import relex.output.SimpleView;
+import relex.parser.IParser;
+import relex.parser.MultiProcessLGParser;
+import relex.tree.PhraseMarkup;
+
+/**
+ * RelexPipeline processes sentences in stages, each with a queue and
+ * threads of its own:
+ *
+ * parse    - link-grammar, which waits on a server or a worker process
+ * algs     - the relex algs, and the Stanford and Penn tagging
+ * markup   - the phrase structure markup, and the parse ranking
+ * anaphora - anaphora resolution, one sentence at a time, in order
+ * render   - the output, made by a Renderer, if one is set
+ *
+ * A sentence moves on to the next stage as soon as it is done with one,
+ * so that, while one sentence is being parsed, the ones before it are
+ * having the algs applied, and so on.  The number of threads of each
+ * stage can be tuned on its own, looking at the queue depth and the
+ * service time that each stage reports (see getStages()).  When the
+ * queue of a stage is full, the stage before it waits.
+ *
+ * At most getCapacity() sentences may be pushed and not yet taken;
+ * push() blocks beyond that.  push() and clear() may be called from
+ * several threads; the sentences are numbered in the order push()
+ * takes them.  take() hands back the results in that order, and
+ * should be called from one thread only.
+ *
+ * The do_ flags and the renderer are read by the stages as they go,
+ * and should be set before the first push().
+ */
+public class RelexPipeline
+{
+	/**
+	 * Makes the output of a sentence, once it has been through all
+	 * the other stages.  Called from several threads at once.
+	 */
+	public interface Renderer
+	{
+		public String render(Sentence sntc);
+	}
+
+	/** Apply the relex algs to the parse */
+	public boolean do_apply_algs = true;
+
+	/** Stanford parser compatibility mode */
+	public boolean do_stanford = false;
+
+	/** Penn tagset compatibility mode */
+	public boolean do_penn_tagging = false;
+
+	/** Expand preposition markup into two dependencies. */
+	public boolean do_expand_preps = false;
+
+	/** Penn tree-bank style phrase structure markup. */
+	public boolean do_tree_markup = true;
+
+	/** Anaphora resolution */
+	public boolean do_anaphora_resolution = true;
+
+	private Renderer renderer;
+
+	private final RelexContext context;
+	private final SentenceAlgorithmApplier sentenceAlgorithmApplier;
+	private final PhraseMarkup phraseMarkup;
+
+	// Used by the anaphora stage only
+	private Antecedents antecedents;
+	private Hobbs hobbs;
+
+	private final Stage parse;
+	private final Stage algs;
+	private final Stage markup;
+	private final Stage anaphora;
+	private final Stage render;
+	private final ArrayList<Stage> stages;
+
+	private final int capacity;
+	private final Semaphore room;
+	private final ReorderBuffer<Job> results;
+
+	// count, newDocument and started are written under the lock of
+	// the pipeline, taken by the one thread that takes the results;
+	// count and taken are read by the stages.
+	private volatile int count = 0;
+	private volatile int taken = 0;
+	private boolean newDocument = false;
+	private volatile boolean stop = false;
+	private boolean started = false;
+
+	/**
+	 * @param parser a thread-safe parser, such as a MultiProcessLGParser
+	 *        with at least parseThreads workers
+	 * @param algsThreads the threads of the algs and of the markup stage
+	 * @param queueSize the queue size of each stage
+	 */
+	public RelexPipeline(IParser parser, int parseThreads, int algsThreads,
+	                     int renderThreads, int queueSize)
+	{
+		Morphy morphy = MorphyFactory.getImplementation(MorphyFactory.DEFAULT_MULTI_THREAD_IMPLEMENTATION);
+		morphy.initialize();
+		context = new RelexContext(parser, morphy);
+		sentenceAlgorithmApplier = SentenceAlgorithmApplier.getInstance();
+		phraseMarkup = new PhraseMarkup();
+		antecedents = new Antecedents();
+		hobbs = new Hobbs(antecedents);
+
+		int threads = parseThreads + 2 * algsThreads + 1 + renderThreads;
+		capacity = threads + 5 * queueSize;
+		room = new Semaphore(capacity);
+		results = new ReorderBuffer<Job>(capacity, true);
+
+		render = new Stage("render", renderThreads, queueSize, false, null)
+		{
+			void process(Job job)
+			{
+				if (renderer != null)
+					job.result.output = renderer.render(job.result.result);
+			}
+		};
+		anaphora = new Stage("anaphora", 1, capacity, true, render)
+		{
+			void process(Job job)
+			{
+				if (job.newDocument)
+				{
+					antecedents.clear();
+					hobbs = new Hobbs(antecedents);
+				}
+				if (do_anaphora_resolution)
+				{
+					hobbs.addParse(job.result.result);
+					hobbs.resolve(job.result.result);
+				}
+			}
+		};
+		markup = new Stage("markup", algsThreads, queueSize, false, anaphora)
+		{
+			void process(Job job)
+			{
+				Sentence sntc = job.result.result;
+				if (do_tree_markup)
+				{
+					for (ParsedSentence parse : sntc.getParses())
+						phraseMarkup.markupTree(parse);
+				}
+
+				// Assign a simple parse-ranking score, based on LinkGrammar data.
+				sntc.simpleParseRank();
+			}
+		};
+		algs = new Stage("algs", algsThreads, queueSize, false, markup)
+		{
+			void process(Job job)
+			{
+				for (ParsedSentence parse : job.result.result.getParses())
+					sentenceAlgorithmApplier.processParse(parse, context, do_expand_preps,
+						do_apply_algs, do_stanford, do_penn_tagging);
+			}
+		};
+		parse = new Stage("parse", parseThreads, queueSize, false, algs)
+		{
+			void process(Job job)
+			{
+				Sentence sntc = null;
+				try
+				{
+					sntc = context.getParser().parse(job.result.sentence);
+				}
+				catch (RuntimeException e)
+				{
+					System.err.println("Error: Failed to parse sentence: " + job.result.sentence);
+					e.printStackTrace();
+				}
+				if (sntc == null)
+				{
+					sntc = new Sentence();
+					sntc.setSentence(job.result.sentence);
+				}
+				job.result.result = sntc;
+			}
+		};
+
+		stages = new ArrayList<Stage>();
+		stages.add(parse);
+		stages.add(algs);
+		stages.add(markup);
+		stages.add(anaphora);
+		stages.add(render);
+	}
+
+	public void setRenderer(Renderer renderer)
+	{
+		this.renderer = renderer;
+	}
+
+	public IParser getParser()
+	{
+		return context.getParser();
+	}
+
+	/**
+	 * @return the stages, in order, for their statistics.
+	 */
+	public List<Stage> getStages()
+	{
+		return stages;
+	}
+
+	/**
+	 * @return the most sentences that may be pushed and not yet taken.
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Submit a new sentence to be processed, blocking while there are
+	 * getCapacity() sentences pushed and not yet taken.
+	 */
+	public void push(String sentence) throws InterruptedException
+	{
+		if (stop)
+			throw new IllegalStateException("RelexPipeline is shut down");
+
+		// Wait for room outside the lock, so that clear() and other
+		// producers are not held up meanwhile.
+		room.acquire();
+		Job job;
+		synchronized (this)
+		{
+			if (!started)
+			{
+				started = true;
+				for (Stage s : stages)
+					s.start();
+			}
+			job = new Job(new RelexTaskResult(count, sentence, null), newDocument);
+			newDocument = false;
+			count++;
+		}
+		parse.put(job);
+	}
+
+	/**
+	 * Start a new document: anaphora resolution does not look back
+	 * past this point, for the sentences pushed after it.
+	 */
+	public synchronized void clear()
+	{
+		newDocument = true;
+	}
+
+	/**
+	 * Return the next result, in order of submission, or block until
+	 * it is ready.  Its output is what the renderer made, if any.
+	 *
+	 * @return the next result, or null if shutdown() was called, and
+	 *         all results have been taken.
+	 */
+	public RelexTaskResult take() throws InterruptedException
+	{
+		Job job;
+		do
+		{
+			if (stop && taken == count)
+				return null;
+			job = results.poll(100, TimeUnit.MILLISECONDS);
+		}
+		while (job == null);
+		taken++;
+		room.release();
+		return job.result;
+	}
+
+	/**
+	 * Stop accepting sentences; the threads stop once all those
+	 * already pushed are done.
+	 */
+	public void shutdown()
+	{
+		stop = true;
+	}
+
+	public boolean isRunning()
+	{
+		return !stop || taken != count;
+	}
+
+	public String toString()
+	{
+		StringBuffer sb = new StringBuffer("RelexPipeline: ");
+		sb.append(count - taken).append(" sentences in progress");
+		for (Stage s : stages)
+			sb.append("\n").append(s);
+		return sb.toString();
+	}
+
+	/* ---------------------------------------------------------- */
+
+	private static final class Job
+	{
+		final RelexTaskResult result;
+		final boolean newDocument;
+
+		Job(RelexTaskResult result, boolean newDocument)
+		{
+			this.result = result;
+			this.newDocument = newDocument;
+		}
+	}
+
+	/**
+	 * One stage: a queue, and the threads that work through it.  A
+	 * stage that is in order has one thread, and takes the sentences
+	 * in the order they were pushed, whatever order they come in.
+	 */
+	public abstract class Stage
+	{
+		private final String name;
+		private final int numThreads;
+		private final int queueSize;
+		private final Stage next;
+
+		private final BlockingQueue<Job> queue;
+		private final ReorderBuffer<Job> ordered;
+		private final Thread[] threads;
+
+		private final AtomicInteger depth = new AtomicInteger();
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		Stage(String name, int numThreads, int queueSize, boolean inOrder, Stage next)
+		{
+			if (numThreads < 1)
+				throw new IllegalArgumentException(name + ": needs at least 1 thread");
+			this.name = name;
+			this.numThreads = numThreads;
+			this.queueSize = queueSize;
+			this.next = next;
+			if (inOrder)
+			{
+				queue = null;
+				ordered = new ReorderBuffer<Job>(queueSize, true);
+			}
+			else
+			{
+				queue = new ArrayBlockingQueue<Job>(Math.max(queueSize, 1));
+				ordered = null;
+			}
+			threads = new Thread[numThreads];
+			for (int i = 0; i < numThreads; i++)
+			{
+				threads[i] = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						work();
+					}
+				}, "RelexPipeline " + name + " " + i);
+				threads[i].setDaemon(true);
+			}
+		}
+
+		abstract void process(Job job);
+
+		void start()
+		{
+			for (Thread t : threads)
+				t.start();
+		}
+
+		void put(Job job) throws InterruptedException
+		{
+			depth.incrementAndGet();
+			if (ordered != null)
+				ordered.put(job.result.index.intValue(), job);
+			else
+				queue.put(job);
+		}
+
+		private Job next() throws InterruptedException
+		{
+			if (ordered == null)
+				return queue.poll(100, TimeUnit.MILLISECONDS);
+			return ordered.poll(100, TimeUnit.MILLISECONDS);
+		}
+
+		private void work()
+		{
+			try
+			{
+				while (true)
+				{
+					Job job = next();
+					if (job == null)
+					{
+						// Stop once the last sentence has gone by.
+						if (stop && taken == count)
+							return;
+						continue;
+					}
+					depth.decrementAndGet();
+
+					long start = System.nanoTime();
+					try
+					{
+						process(job);
+					}
+					catch (Exception e)
+					{
+						System.err.println("Error: Failed to process sentence: " +
+							job.result.sentence);
+						e.printStackTrace();
+					}
+					busyNanos.addAndGet(System.nanoTime() - start);
+					processed.incrementAndGet();
+
+					if (next != null)
+						next.put(job);
+					else
+						results.put(job.result.index.intValue(), job);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// Stop.
+			}
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public int getThreads()
+		{
+			return numThreads;
+		}
+
+		/**
+		 * @return the number of sentences waiting for this stage.
+		 */
+		public int getQueueDepth()
+		{
+			return depth.get();
+		}
+
+		public long getProcessed()
+		{
+			return processed.get();
+		}
+
+		/**
+		 * @return the average time this stage spends on a sentence,
+		 *         in milliseconds.
+		 */
+		public double getServiceMillis()
+		{
+			long n = processed.get();
+			return (n == 0) ? 0 : busyNanos.get() / (1.0e6 * n);
+		}
+
+		public String toString()
+		{
+			return name + ": threads=" + numThreads +
+				" queue=" + getQueueDepth() + "/" + queueSize +
+				" processed=" + getProcessed() +
+				" service=" + Math.round(getServiceMillis() * 100) / 100.0 + "ms";
+		}
+	}
+
+	/**
+	 * Unit test. Read a text file, process its sentences with
+	 * link-grammar worker processes, print the relations of each, in
+	 * order, and then the statistics of the stages.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2)
+		{
+			System.err.println("Syntax: RelexPipeline file parseThreads [algsThreads [renderThreads]]");
+			System.exit(-1);
+		}
+		int parseThreads = Integer.parseInt(args[1]);
+		int algsThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+		int renderThreads = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+
+		MultiProcessLGParser parser = new MultiProcessLGParser(parseThreads);
+		parser.getConfig().setStoreConstituentString(true);
+		parser.getConfig().setStoreSense(true);
+		parser.getConfig().setAllowSkippedWords(true);
+		final RelexPipeline pipeline =
+			new RelexPipeline(parser, parseThreads, algsThreads, renderThreads, 16);
+		pipeline.setRenderer(new Renderer()
+		{
+			public String render(Sentence sntc)
+			{
+				if (sntc.getParses().isEmpty())
+					return "";
+				return SimpleView.printRelations(sntc.getParses().get(0));
+			}
+		});
+
+		final String file = args[0];
+		long t = System.currentTimeMillis();
+		new Thread(new Runnable()
+		{
+			public void run()
+			{
+				DocSplitter ds = DocSplitterFactory.create();
+				try
+				{
+					StringBuilder sb = new StringBuilder();
+					BufferedReader in = new BufferedReader(new FileReader(file));
+					String line = in.readLine();
+					while (line != null)
+					{
+						sb.append(" " + line + " ");
+						line = in.readLine();
+					}
+					in.close();
+
+					ds.addText(sb.toString());
+					String sentence = ds.getNextSentence();
+					while (sentence != null)
+					{
+						pipeline.push(sentence);
+						sentence = ds.getNextSentence();
+					}
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+				pipeline.shutdown();
+			}
+		}).start();
+
+		RelexTaskResult result = pipeline.take();
+		while (result != null)
+		{
+			System.out.println(result.index + ": " + result.sentence);
+			System.out.println(result.output);
+			result = pipeline.take();
+		}
+		System.err.println(pipeline);
+		System.err.println("Elapsed time: " + (System.currentTimeMillis() - t) + " ms");
+		parser.close();
+	}
+}
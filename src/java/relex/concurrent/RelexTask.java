@@ -23,7 +23,6 @@ import relex.ParsedSentence;
 import relex.Sentence;
 import relex.algs.SentenceAlgorithmApplier;
 import relex.tree.PhraseMarkup;
-import relex.tree.PhraseTree;
 
 /**
  * Processes a sentence using the given LinkParserClient. When processing is
@@ -42,10 +41,16 @@ public class RelexTask implements Callable<RelexTaskResult>
 	private SentenceAlgorithmApplier sentenceAlgorithmApplier;
 	private PhraseMarkup phraseMarkup;
 
-	// Used in mutual exclusion, must be returned to the pool
+	// Used in mutual exclusion, must be returned to the pool, if any
 	private RelexContext context;
 	private BlockingQueue<RelexContext> pool;
 
+	// Stages, as in RelationExtractor; tree markup is done if
+	// phraseMarkup is not null.
+	public boolean do_apply_algs = true;
+	public boolean do_stanford = false;
+	public boolean do_penn_tagging = false;
+
 	public RelexTask(int index, String sentence,
 			SentenceAlgorithmApplier sentenceAlgorithmApplier,
 			PhraseMarkup phraseMarkup,
@@ -58,6 +63,17 @@ public class RelexTask implements Callable<RelexTaskResult>
 		this.sentence = sentence;
 	}
 
+	/**
+	 * A task with a context of its own, or one that is thread-safe,
+	 * which is not returned to any pool.
+	 */
+	public RelexTask(int index, String sentence,
+			SentenceAlgorithmApplier sentenceAlgorithmApplier,
+			PhraseMarkup phraseMarkup,
+			RelexContext context){
+		this(index, sentence, sentenceAlgorithmApplier, phraseMarkup, context, null);
+	}
+
 	public RelexTaskResult call() {
 		try {
 			if (DEBUG > 0) System.err.println("[" + index + "] Start processing "+ sentence);
@@ -65,6 +81,9 @@ public class RelexTask implements Callable<RelexTaskResult>
 			try {
 				sntc = context.getParser().parse(sentence);//, context.getLinkParserClient());
 			} catch (RuntimeException ex) {
+				sntc = null;
+			}
+			if (sntc == null) {
 				sntc = new Sentence();
 				sntc.setSentence(sentence);
 			}
@@ -74,17 +93,11 @@ public class RelexTask implements Callable<RelexTaskResult>
 			int i = 0;
 			for (ParsedSentence parse : sntc.getParses()) {
 				try {
-					// The actual relation extraction is done here.
-					sentenceAlgorithmApplier.applyAlgs(parse, context);
+					sentenceAlgorithmApplier.processParse(parse, context, false,
+						do_apply_algs, do_stanford, do_penn_tagging);
 
 					// Also do a Penn tree-bank style phrase structure markup.
-					if (phraseMarkup != null)
-					{
-						phraseMarkup.markup(parse);
-						// Repair the entity-mangled tree-bank string.
-						PhraseTree pt = new PhraseTree(parse.getLeft());
-						parse.setPhraseString(pt.toString());
-					}
+					if (phraseMarkup != null) phraseMarkup.markupTree(parse);
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
@@ -92,14 +105,18 @@ public class RelexTask implements Callable<RelexTaskResult>
 					System.err.println("[" + index+ "] end post-processing sentence " +
 							(i++) + "/"+ sntc.getParses().size());
 			}
+			// Assign a simple parse-ranking score, based on LinkGrammar data.
+			sntc.simpleParseRank();
 			return new RelexTaskResult(index, sentence, sntc);
 		} finally {
 			if (DEBUG > 0)
 				System.err.println("[" + index + "] End processing");
-			try {
-				pool.put(context);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			if (pool != null) {
+				try {
+					pool.put(context);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
 			}
 			if (DEBUG > 0) System.err.println("[" + index + "] Release resources");
 		}
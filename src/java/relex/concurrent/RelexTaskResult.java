@@ -28,6 +28,9 @@ public class RelexTaskResult implements Comparable<RelexTaskResult>, Serializabl
 	public String sentence;
 	public Sentence result;
 
+	/** The rendered output, if a RelexPipeline made one */
+	public String output;
+
 	public RelexTaskResult(int index, String sentence,
 	                       Sentence sntc)
 	{
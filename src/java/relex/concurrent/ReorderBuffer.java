@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ReorderBuffer collects items that are finished out of order, each
+ * with its sequence number, and hands them to a consumer either in
+ * sequence, or as they come.
+ *
+ * In sequence, the buffer is a ring of window slots: item seq goes in
+ * slot seq % window, and the consumer empties the slots in turn.  The
+ * producer must make sure that no item is more than window ahead of
+ * the next one to be taken; ParallelRelationExtractor does so by not
+ * letting more than that many sentences be pushed and not taken.
+ *
+ * Putting an item takes no lock: a slot is set, or the item added to
+ * a lock-free queue, and the consumer, if it is waiting, is woken up.
+ * There must be only one consumer.
+ */
+public class ReorderBuffer<T>
+{
+	private final boolean ordered;
+	private final int window;
+
+	/** In sequence: the ring of slots */
+	private final AtomicReferenceArray<T> slots;
+	/** The next sequence number to be taken; consumer only */
+	private long next;
+
+	/** As they come: finished items, oldest first */
+	private final ConcurrentLinkedQueue<T> finished;
+
+	/** The consumer, while it waits */
+	private volatile Thread waiter;
+
+	/**
+	 * @param window the most items that may be put and not taken
+	 * @param ordered true to hand items out in sequence, false to
+	 *        hand them out as they are put
+	 */
+	public ReorderBuffer(int window, boolean ordered)
+	{
+		if (window < 1)
+			throw new IllegalArgumentException("window must be at least 1");
+		this.window = window;
+		this.ordered = ordered;
+		slots = ordered ? new AtomicReferenceArray<T>(window) : null;
+		finished = ordered ? null : new ConcurrentLinkedQueue<T>();
+		next = 0;
+	}
+
+	public boolean isOrdered()
+	{
+		return ordered;
+	}
+
+	public int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * Put a finished item.  May be called from any thread.
+	 */
+	public void put(long seq, T item)
+	{
+		if (item == null)
+			throw new NullPointerException();
+		if (ordered)
+			slots.set((int) (seq % window), item);
+		else
+			finished.add(item);
+
+		Thread w = waiter;
+		if (w != null)
+			LockSupport.unpark(w);
+	}
+
+	/**
+	 * @return the next item, or null if it is not finished yet.
+	 */
+	public T poll()
+	{
+		if (!ordered)
+			return finished.poll();
+
+		int i = (int) (next % window);
+		T item = slots.get(i);
+		if (item == null)
+			return null;
+		slots.set(i, null);
+		next++;
+		return item;
+	}
+
+	/**
+	 * Wait for the next item, up to the given time.
+	 *
+	 * @return the item, or null if the time ran out first.
+	 */
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		T item = poll();
+		if (item != null)
+			return item;
+
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		waiter = Thread.currentThread();
+		try
+		{
+			// The waiter is set before looking again, so that a put in
+			// between unparks it, and the park returns at once.
+			while ((item = poll()) == null)
+			{
+				long left = end - System.nanoTime();
+				if (left <= 0)
+					return null;
+				LockSupport.parkNanos(left);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+			return item;
+		}
+		finally
+		{
+			waiter = null;
+		}
+	}
+}
@@ -43,6 +43,12 @@ public class FeatureAction extends FeaturePathAndTarget
 		// read in the action string
 	}
 
+	public FeatureAction(String path, String action, String target,
+	                     boolean targetIsPath)
+	{
+		super(path, action, target, targetIsPath);
+	}
+
    public Set<String> getPathSeparators()
 	{
 		return actionSeparators;
@@ -137,9 +143,7 @@ public class FeatureAction extends FeaturePathAndTarget
 		// so interpret them both semanticly
 		if ((left != null) && (right != null) && (!left.isEmpty())
 				&& (!right.isEmpty())) {
-			FeaturePath leftParentPath = new FeaturePath(getPath());
-			leftParentPath.removeLastStep();
-			FeatureNode leftParent = f.pathTarget(leftParentPath);
+			FeatureNode leftParent = f.pathTarget(getPath().parent());
 			String leftFeature = getPath().lastStep();
 			SemanticView.appendToSelf(left, right, leftParent, leftFeature);
 			return;
@@ -151,9 +155,7 @@ public class FeatureAction extends FeaturePathAndTarget
 	{
 		if (left == null)
 			return;
-		FeaturePath leftParentPath = new FeaturePath(getPath());
-		leftParentPath.removeLastStep();
-		FeatureNode leftParent = f.pathTarget(leftParentPath);
+		FeatureNode leftParent = f.pathTarget(getPath().parent());
 		String leftFeature = getPath().lastStep();
 		leftParent.set(leftFeature, null);
 	}
@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.feature;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * A FeatureArena collects the FeatureNodes made for one sentence, so
+ * that their storage can be recycled, all at once, when the sentence
+ * is no longer needed.  The feature and parent arrays of the nodes
+ * come from a Pool, and go back to it on release(); the next sentence
+ * then takes them from there, in place of allocating new ones.
+ *
+ * Usage: enter() the arena, on the thread that will build the feature
+ * graph; exit() it when done.  Every FeatureNode constructed on that
+ * thread in between belongs to the arena.  Once nothing refers to the
+ * graph any longer, release() the arena.  After that, the nodes are
+ * dead: using one throws IllegalStateException.  So does following a
+ * pointer to one from a node made outside the arena.  To keep part of
+ * a graph past release, detach() it first.
+ *
+ * An arena, and its Pool, may only be used from one thread at a time.
+ * Nothing changes for nodes made outside of an arena.
+ */
+public final class FeatureArena
+{
+	/**
+	 * Free arrays, by size class. Class c holds arrays of length 1<<c;
+	 * longer arrays are left to the garbage collector.
+	 */
+	public static final class Pool
+	{
+		private static final int CLASSES = 8;
+		private static final int MAX_FREE = 4096;
+
+		private final int[][][] free_keys = new int[CLASSES][][];
+		private final int[] num_free_keys = new int[CLASSES];
+		private final FeatureNode[][][] free_nodes = new FeatureNode[CLASSES][][];
+		private final int[] num_free_nodes = new int[CLASSES];
+
+		/** The node list of the last released arena, for reuse */
+		private FeatureNode[] spare_owned;
+
+		private static int sizeClass(int len)
+		{
+			int c = Integer.numberOfTrailingZeros(len);
+			if (c >= CLASSES || (1 << c) != len) return -1;
+			return c;
+		}
+
+		int[] keys(int len)
+		{
+			int c = sizeClass(len);
+			if (c >= 0 && num_free_keys[c] > 0)
+			{
+				int[][] stack = free_keys[c];
+				int[] a = stack[--num_free_keys[c]];
+				stack[num_free_keys[c]] = null;
+				return a;
+			}
+			return new int[len];
+		}
+
+		FeatureNode[] nodes(int len)
+		{
+			int c = sizeClass(len);
+			if (c >= 0 && num_free_nodes[c] > 0)
+			{
+				FeatureNode[][] stack = free_nodes[c];
+				FeatureNode[] a = stack[--num_free_nodes[c]];
+				stack[num_free_nodes[c]] = null;
+				return a;
+			}
+			return new FeatureNode[len];
+		}
+
+		/** The contents of a need not be cleared. */
+		void free(int[] a)
+		{
+			int c = sizeClass(a.length);
+			if (c < 0 || num_free_keys[c] == MAX_FREE) return;
+			int[][] stack = free_keys[c];
+			if (stack == null || num_free_keys[c] == stack.length)
+			{
+				int[][] grown = new int[(stack == null) ? 16 : 2 * stack.length][];
+				if (stack != null)
+					System.arraycopy(stack, 0, grown, 0, stack.length);
+				free_keys[c] = stack = grown;
+			}
+			stack[num_free_keys[c]++] = a;
+		}
+
+		/** The array must have been cleared to nulls. */
+		void free(FeatureNode[] a)
+		{
+			int c = sizeClass(a.length);
+			if (c < 0 || num_free_nodes[c] == MAX_FREE) return;
+			FeatureNode[][] stack = free_nodes[c];
+			if (stack == null || num_free_nodes[c] == stack.length)
+			{
+				FeatureNode[][] grown = new FeatureNode[(stack == null) ? 16 : 2 * stack.length][];
+				if (stack != null)
+					System.arraycopy(stack, 0, grown, 0, stack.length);
+				free_nodes[c] = stack = grown;
+			}
+			stack[num_free_nodes[c]++] = a;
+		}
+	}
+
+	/** Number of arenas entered, on any thread */
+	private static volatile int num_entered = 0;
+
+	private static final ThreadLocal<FeatureArena> current =
+		new ThreadLocal<FeatureArena>();
+
+	private final Pool pool;
+	private FeatureNode[] owned;
+	private int num_owned;
+	private Thread thread;
+	private FeatureArena outer;
+
+	public FeatureArena(Pool pool)
+	{
+		this.pool = pool;
+		owned = pool.spare_owned;
+		pool.spare_owned = null;
+		if (owned == null)
+			owned = new FeatureNode[256];
+		num_owned = 0;
+		thread = null;
+	}
+
+	/**
+	 * Make this the arena of the current thread, until exit().
+	 */
+	public void enter()
+	{
+		if (thread != null)
+			throw new IllegalStateException("Arena already entered");
+		thread = Thread.currentThread();
+		outer = current.get();
+		current.set(this);
+		synchronized (FeatureArena.class)
+		{
+			num_entered++;
+		}
+	}
+
+	public void exit()
+	{
+		if (thread != Thread.currentThread())
+			throw new IllegalStateException("Arena not entered by this thread");
+		current.set(outer);
+		outer = null;
+		thread = null;
+		synchronized (FeatureArena.class)
+		{
+			num_entered--;
+		}
+	}
+
+	/**
+	 * @return the arena entered by the current thread, if any.
+	 */
+	static FeatureArena current()
+	{
+		if (num_entered == 0) return null;
+		return current.get();
+	}
+
+	/**
+	 * @return true if the storage pool may be used right now, that is,
+	 *         from the thread that entered the arena.
+	 */
+	boolean isCurrent()
+	{
+		return thread == Thread.currentThread();
+	}
+
+	Pool getPool()
+	{
+		return pool;
+	}
+
+	void adopt(FeatureNode f)
+	{
+		if (num_owned == owned.length)
+		{
+			FeatureNode[] grown = new FeatureNode[2 * owned.length];
+			System.arraycopy(owned, 0, grown, 0, num_owned);
+			owned = grown;
+		}
+		owned[num_owned++] = f;
+	}
+
+	/**
+	 * @return the number of nodes that belong to the arena.
+	 */
+	public int size()
+	{
+		return num_owned;
+	}
+
+	/**
+	 * Return the storage of every node of the arena, except detached
+	 * ones, to the pool. The nodes may not be used after this.
+	 */
+	public void release()
+	{
+		if (thread != null)
+			throw new IllegalStateException("Cannot release an entered arena");
+		for (int i = 0; i < num_owned; i++)
+		{
+			FeatureNode f = owned[i];
+			owned[i] = null;
+			if (f.getArena() == this)
+				f.recycle(pool);
+		}
+		num_owned = 0;
+		if (pool.spare_owned == null || pool.spare_owned.length < owned.length)
+			pool.spare_owned = owned;
+	}
+
+	/**
+	 * Take every node connected to f out of whatever arena it belongs
+	 * to, so that it survives the release of the arena, and keeps its
+	 * storage.  The whole connected graph is detached, since a node
+	 * that was kept could otherwise point at one that was emptied.
+	 */
+	public static void detach(FeatureNode f)
+	{
+		IdentityHashMap<FeatureNode,Boolean> seen =
+			new IdentityHashMap<FeatureNode,Boolean>();
+		ArrayList<FeatureNode> todo = new ArrayList<FeatureNode>();
+		todo.add(f);
+		seen.put(f, Boolean.TRUE);
+		while (!todo.isEmpty())
+		{
+			FeatureNode n = todo.remove(todo.size() - 1);
+			n.setArena(null);
+			Iterator<FeatureNode> ps = n.getParents();
+			while (ps.hasNext())
+			{
+				FeatureNode p = ps.next();
+				if (seen.put(p, Boolean.TRUE) == null)
+					todo.add(p);
+			}
+			if (n.isValued()) continue;
+			for (String name : n.getFeatureNames())
+			{
+				FeatureNode t = n.get(name);
+				if (seen.put(t, Boolean.TRUE) == null)
+					todo.add(t);
+			}
+		}
+	}
+}
@@ -16,10 +16,21 @@
 
 package relex.feature;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import relex.output.PrologList;
@@ -59,26 +70,103 @@ public class FeatureNode extends Atom
 	 * This is used to properly implement mergeWith(other: FeatureNode) In this
 	 * case, the other is destroyed, and the parents must be notified in order
 	 * to reset their features to point to the new FeatureNode.
+	 *
+	 * Almost all nodes have only one or two parents, so these are kept
+	 * in a small array, allocated on first use. The few nodes that are
+	 * pointed at from everywhere (the left wall, for instance) switch
+	 * over to an identity hash set once the array gets wide.
 	 */
-	private HashSet<FeatureNode> parents;
+	private transient FeatureNode[] parents;
+	private transient int num_parents;
+	private transient IdentityHashMap<FeatureNode,Boolean> wide_parents;
 
 	/**
 	 * FeatureNodes may store either a set of key-value pairs, where the
 	 * values are other FeatureNodes, or they may store a single string.
 	 * Most access routines to this class will throw an exception if
 	 * the wrong one of these two different things is requested.
+	 *
+	 * The keys are feature names interned in the SymbolTable, stored
+	 * as parallel arrays of ids and targets; keys is null for a
+	 * string-valued node.  Small nodes are searched linearly; wide
+	 * ones get an open-addressed index from key id to array position.
+	 * A name that the SymbolTable had no room for is kept in local,
+	 * at the same position, with -1 in keys; local is null until a
+	 * node has such a name.
+	 *
+	 * The features were once kept in a HashMap, and the algs visit the
+	 * nodes of a parse in the order in which getFeatureNames() returns
+	 * them; that order decides which rule fires first when two could.
+	 * So the arrays are kept in the order in which the HashMap iterated
+	 * them: by hash bucket, and by insertion within a bucket.  bucket_bits
+	 * tracks what the HashMap capacity would have grown to.
 	 */
-	private HashMap<String,FeatureNode> kv_pairs;
+	private transient int[] keys;
+	private transient String[] local;
+	private transient FeatureNode[] targets;
+	private transient int num_keys;
+	private transient byte bucket_bits;
+	private transient int[] key_index;
+	private transient int mod_count;
 	private String value;
 
+	/**
+	 * The serialized form is still that of the HashMap-based node, so
+	 * that the serialVersionUID holds, and data serialized by either
+	 * can be read by the other: the parents as a set, the features as
+	 * a map from name to target (null for a string-valued node), and
+	 * the value.  Symbol ids are only good within one JVM anyway.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("parents", HashSet.class),
+		new ObjectStreamField("kv_pairs", HashMap.class),
+		new ObjectStreamField("value", String.class),
+	};
+
+	/**
+	 * The arena whose pool this node's arrays come from, if it was
+	 * made inside one; see FeatureArena.
+	 */
+	private transient FeatureArena arena;
+
+	/** Storage shared by all nodes that have no features (yet). */
+	private static final int[] NO_KEYS = new int[0];
+
+	/** The keys of a node released with its arena; see checkLive(). */
+	private static final int[] RELEASED = new int[0];
+	private static final FeatureNode[] NO_TARGETS = new FeatureNode[0];
+
+	/** Nodes with more features than this get a key index. */
+	private static final int INDEX_THRESHOLD = 16;
+
+	/** The initial capacity of a HashMap, as a power of two. */
+	private static final byte MIN_BUCKET_BITS = 4;
+
+	/** Nodes with more parents than this keep them in a hash set. */
+	private static final int WIDE_PARENTS = 16;
+
 	/**
 	 * By default, feature structures have no string value
 	 */
 	public FeatureNode()
 	{
-		parents = new HashSet<FeatureNode>();
-		kv_pairs = new HashMap<String,FeatureNode>();
+		parents = null;
+		num_parents = 0;
+		wide_parents = null;
+		keys = NO_KEYS;
+		local = null;
+		targets = NO_TARGETS;
+		num_keys = 0;
+		bucket_bits = MIN_BUCKET_BITS;
+		key_index = null;
 		value = null;
+
+		FeatureArena a = FeatureArena.current();
+		if (a != null)
+		{
+			arena = a;
+			a.adopt(this);
+		}
 	}
 
 	/**
@@ -110,7 +198,72 @@ public class FeatureNode extends Atom
 
 	protected Iterator<FeatureNode> getParents()
 	{
-		return parents.iterator();
+		if (wide_parents != null)
+			return wide_parents.keySet().iterator();
+		if (num_parents == 0)
+			return Collections.<FeatureNode>emptyList().iterator();
+		return Arrays.asList(parents).subList(0, num_parents).iterator();
+	}
+
+	private boolean hasParents()
+	{
+		if (wide_parents != null)
+			return !wide_parents.isEmpty();
+		return num_parents > 0;
+	}
+
+	private void addParent(FeatureNode p)
+	{
+		if (wide_parents != null)
+		{
+			wide_parents.put(p, Boolean.TRUE);
+			return;
+		}
+		for (int i = 0; i < num_parents; i++)
+			if (parents[i] == p) return;
+
+		if (parents == null)
+		{
+			parents = newNodes(2);
+		}
+		else if (num_parents == parents.length)
+		{
+			if (num_parents >= WIDE_PARENTS)
+			{
+				wide_parents = new IdentityHashMap<FeatureNode,Boolean>();
+				for (int i = 0; i < num_parents; i++)
+					wide_parents.put(parents[i], Boolean.TRUE);
+				wide_parents.put(p, Boolean.TRUE);
+				freeNodes(parents, num_parents);
+				parents = null;
+				num_parents = 0;
+				return;
+			}
+			FeatureNode[] grown = newNodes(2 * num_parents);
+			System.arraycopy(parents, 0, grown, 0, num_parents);
+			freeNodes(parents, num_parents);
+			parents = grown;
+		}
+		parents[num_parents++] = p;
+	}
+
+	private void removeParent(FeatureNode p)
+	{
+		if (wide_parents != null)
+		{
+			wide_parents.remove(p);
+			return;
+		}
+		for (int i = 0; i < num_parents; i++)
+		{
+			if (parents[i] == p)
+			{
+				num_parents--;
+				System.arraycopy(parents, i+1, parents, i, num_parents - i);
+				parents[num_parents] = null;
+				return;
+			}
+		}
 	}
 
 	/**
@@ -118,7 +271,20 @@ public class FeatureNode extends Atom
 	 */
 	public boolean isValued()
 	{
-		return kv_pairs == null;
+		if (keys == RELEASED)
+			checkLive();
+		return keys == null;
+	}
+
+	/**
+	 * Fail if the node was emptied by FeatureArena.release(), rather
+	 * than let it pass for an empty node.
+	 */
+	private void checkLive()
+	{
+		if (keys == RELEASED)
+			throw new IllegalStateException(
+				"FeatureNode used after its FeatureArena was released");
 	}
 
 	/**
@@ -126,11 +292,17 @@ public class FeatureNode extends Atom
 	 */
 	public void forceFeatures()
 	{
+		checkLive();
 		if (value != null)
 			throw new RuntimeException(
 					"Must set value to null before forcing features.");
-		if (kv_pairs == null)
-			kv_pairs = new HashMap<String,FeatureNode>();
+		if (keys == null)
+		{
+			keys = NO_KEYS;
+			targets = NO_TARGETS;
+			num_keys = 0;
+			bucket_bits = MIN_BUCKET_BITS;
+		}
 	}
 
 	/**
@@ -138,12 +310,16 @@ public class FeatureNode extends Atom
 	 */
 	public void forceValue(String val)
 	{
-		if (kv_pairs != null) {
-			if (getFeatureNames().size() > 0)
+		checkLive();
+		if (keys != null) {
+			if (num_keys > 0)
 				throw new RuntimeException(
 						"Must clear features before forcing value.");
 		}
-		kv_pairs = null;
+		keys = null;
+		local = null;
+		targets = null;
+		key_index = null;
 		setValue(val);
 	}
 
@@ -154,7 +330,7 @@ public class FeatureNode extends Atom
 	{
 		if (isValued())
 			return value == null;
-		return kv_pairs.size() == 0;
+		return num_keys == 0;
 	}
 
 	/**
@@ -350,15 +526,16 @@ public class FeatureNode extends Atom
 	{
 		if (other == this)
 			return;
-		// Create a new hashset to avoid ConcurrentModificationException.
+		// Copy the parents to avoid ConcurrentModificationException.
 		// That is, we will be modifying parents as we iterate through its
 		// *copy*.
-		Iterator<FeatureNode> i = new HashSet<FeatureNode>(parents).iterator();
-		while (i.hasNext()) {
-			FeatureNode p = i.next();
+		ArrayList<FeatureNode> copy = new ArrayList<FeatureNode>();
+		Iterator<FeatureNode> i = getParents();
+		while (i.hasNext())
+			copy.add(i.next());
+		for (FeatureNode p : copy)
 			p.substitute(this, other);
-		}
-		if (!parents.isEmpty())
+		if (hasParents())
 			throw new RuntimeException("replace self failed");
 	}
 
@@ -380,18 +557,46 @@ public class FeatureNode extends Atom
 			throw new RuntimeException("Cannot set key-value pair for a string-valued FeatureNode");
 		if (key == null)
 			throw new RuntimeException("key must be non-null");
-		FeatureNode oldTarget = get(key);
+
+		int id = SymbolTable.lookup(key);
+		if (id < 0 && target != null)
+			id = SymbolTable.internIfRoom(key);
+		if (id >= 0)
+			set(id, target);
+		else
+			update(findLocal(key), -1, key, target);
+	}
+
+	/**
+	 * Same as set(String, FeatureNode), with the key given by its
+	 * SymbolTable id.
+	 */
+	public void set(int id, FeatureNode target)
+	{
+		if (isValued())
+			throw new RuntimeException("Cannot set key-value pair for a string-valued FeatureNode");
+		update(find(id), id, null, target);
+	}
+
+	/**
+	 * Set the feature at pos, or add it if pos is -1, under the given
+	 * id, or if that is -1, under the given local name.
+	 */
+	private void update(int pos, int id, String name, FeatureNode target)
+	{
+		FeatureNode oldTarget = (pos < 0) ? null : targets[pos];
 		if (target == null) {
-			kv_pairs.remove(key);
+			if (pos >= 0) removeAt(pos);
 		} else {
-			target.parents.add(this);
-			kv_pairs.put(key, target);
+			target.addParent(this);
+			if (pos >= 0) targets[pos] = target;
+			else insert(id, name, target);
 		}
 		if (oldTarget != null) {
 			// If there are no other features pointing to the old target,
 			// remove this from the list of oldTarget's parents.
-			if (!kv_pairs.containsValue(oldTarget))
-				oldTarget.parents.remove(this);
+			if (!containsTarget(oldTarget))
+				oldTarget.removeParent(this);
 		}
 	}
 
@@ -408,7 +613,101 @@ public class FeatureNode extends Atom
 			throw new RuntimeException("String-valued FeatureNodes have no keys.");
 		if (key == null)
 			throw new RuntimeException("Key was null");
-		return kv_pairs.get(key);
+		int pos = find(key);
+		return (pos < 0) ? null : targets[pos];
+	}
+
+	/**
+	 * Same as get(String), with the key given by its SymbolTable id.
+	 */
+	public FeatureNode get(int id)
+	{
+		if (isValued())
+			throw new RuntimeException("String-valued FeatureNodes have no keys.");
+		int pos = find(id);
+		return (pos < 0) ? null : targets[pos];
+	}
+
+	/**
+	 * @return the number of features of this node.
+	 */
+	public int getFeatureCount()
+	{
+		if (isValued())
+			throw new RuntimeException("valued FeatureNodes have no features");
+		return num_keys;
+	}
+
+	/**
+	 * @return the SymbolTable id of the i'th feature, in the order of
+	 *         getFeatureNames(), or -1 if the name is not in the table.
+	 */
+	public int getFeatureId(int i)
+	{
+		if (i >= num_keys)
+			throw new IndexOutOfBoundsException("No feature " + i);
+		if (keys[i] < 0)
+			return SymbolTable.lookup(local[i]);
+		return keys[i];
+	}
+
+	/**
+	 * @return the target of the i'th feature, in the order of
+	 *         getFeatureNames().
+	 */
+	public FeatureNode getFeatureTarget(int i)
+	{
+		if (i >= num_keys)
+			throw new IndexOutOfBoundsException("No feature " + i);
+		return targets[i];
+	}
+
+	/**
+	 * Make a new node with the same features as this one, at the cost
+	 * of copying two arrays, rather than of adding the features one at
+	 * a time.  A string-valued target is copied, as a new node with
+	 * the same value (and no truth value); any other target is shared
+	 * with this node, and is for the caller to set as needed.
+	 */
+	public FeatureNode copyFeatures()
+	{
+		if (isValued())
+			throw new RuntimeException("valued FeatureNodes have no features");
+		FeatureNode copy = new FeatureNode();
+		if (num_keys == 0)
+			return copy;
+
+		// Sized as insert() would have.
+		int cap = 4;
+		while (cap < num_keys) cap <<= 1;
+		FeatureArena a = copy.arena;
+		if (a != null && a.isCurrent())
+		{
+			copy.keys = a.getPool().keys(cap);
+			copy.targets = a.getPool().nodes(cap);
+		}
+		else
+		{
+			copy.keys = new int[cap];
+			copy.targets = new FeatureNode[cap];
+		}
+		System.arraycopy(keys, 0, copy.keys, 0, num_keys);
+		if (local != null)
+		{
+			copy.local = new String[cap];
+			System.arraycopy(local, 0, copy.local, 0, num_keys);
+		}
+		copy.num_keys = num_keys;
+		copy.bucket_bits = bucket_bits;
+		for (int i = 0; i < num_keys; i++)
+		{
+			FeatureNode t = targets[i];
+			if (t.isValued())
+				t = new FeatureNode(t.getValue());
+			t.addParent(copy);
+			copy.targets[i] = t;
+		}
+		return copy;
 	}
 
 	// Like "get" but makes the feature node if it doesn't exist.
@@ -423,7 +722,9 @@ public class FeatureNode extends Atom
 	}
 
 	/**
-	 * Returns the set of keys in this FeatureNode
+	 * Returns the set of keys in this FeatureNode. The set is a view:
+	 * it reflects later changes, and adding or removing features while
+	 * iterating over it throws ConcurrentModificationException.
 	 *
 	 * @return the set of feature names
 	 */
@@ -431,7 +732,381 @@ public class FeatureNode extends Atom
 	{
 		if (isValued())
 			throw new RuntimeException("valued FeatureNodes have no features");
-		return kv_pairs.keySet();
+		return new FeatureNames();
+	}
+
+	private final class FeatureNames extends AbstractSet<String>
+	{
+		public int size()
+		{
+			return num_keys;
+		}
+
+		public boolean contains(Object o)
+		{
+			if (!(o instanceof String) || isValued())
+				return false;
+			return find((String) o) >= 0;
+		}
+
+		public Iterator<String> iterator()
+		{
+			return new Iterator<String>()
+			{
+				private int next = 0;
+				private int expected = mod_count;
+
+				public boolean hasNext()
+				{
+					return next < num_keys;
+				}
+
+				public String next()
+				{
+					if (expected != mod_count)
+						throw new ConcurrentModificationException();
+					if (next >= num_keys)
+						throw new NoSuchElementException();
+					return name(next++);
+				}
+
+				public void remove()
+				{
+					if (next == 0)
+						throw new IllegalStateException();
+					if (expected != mod_count)
+						throw new ConcurrentModificationException();
+					next--;
+					update(next, keys[next], null, null);
+					expected = mod_count;
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return the name of the i'th feature.
+	 */
+	private String name(int i)
+	{
+		if (keys[i] < 0)
+			return local[i];
+		return SymbolTable.name(keys[i]);
+	}
+
+	/**
+	 * @return the position of the named key in the keys array, or -1.
+	 */
+	private int find(String name)
+	{
+		int id = SymbolTable.lookup(name);
+		if (id >= 0)
+			return find(id);
+		return findLocal(name);
+	}
+
+	/**
+	 * @return the position of the name among the local names, or -1.
+	 */
+	private int findLocal(String name)
+	{
+		if (local == null)
+			return -1;
+		for (int i = 0; i < num_keys; i++)
+			if (keys[i] < 0 && local[i].equals(name)) return i;
+		return -1;
+	}
+
+	/**
+	 * @return the position of the key id in the keys array, or -1.
+	 */
+	private int find(int id)
+	{
+		int pos = findId(id);
+		// The name may have been set here before it made the table.
+		if (pos < 0 && local != null)
+			pos = findLocal(SymbolTable.name(id));
+		return pos;
+	}
+
+	private int findId(int id)
+	{
+		if (num_keys > INDEX_THRESHOLD)
+		{
+			if (key_index == null)
+				buildIndex();
+			int mask = key_index.length - 1;
+			for (int h = hash(id) & mask; ; h = (h + 1) & mask)
+			{
+				int slot = key_index[h];
+				if (slot == 0) return -1;
+				if (keys[slot - 1] == id) return slot - 1;
+			}
+		}
+		for (int i = 0; i < num_keys; i++)
+			if (keys[i] == id) return i;
+		return -1;
+	}
+
+	private boolean containsTarget(FeatureNode f)
+	{
+		for (int i = 0; i < num_keys; i++)
+			if (targets[i] == f) return true;
+		return false;
+	}
+
+	/**
+	 * @return the HashMap bucket of the name, for the current capacity.
+	 */
+	private int bucket(String name)
+	{
+		int h = name.hashCode();
+		return (h ^ (h >>> 16)) & ((1 << bucket_bits) - 1);
+	}
+
+	private void insert(int id, String name, FeatureNode target)
+	{
+		if (num_keys == keys.length)
+		{
+			int cap = (num_keys == 0) ? 4 : 2 * num_keys;
+			int[] k;
+			FeatureNode[] t;
+			FeatureArena a = arena;
+			if (a != null && a.isCurrent())
+			{
+				k = a.getPool().keys(cap);
+				t = a.getPool().nodes(cap);
+			}
+			else
+			{
+				k = new int[cap];
+				t = new FeatureNode[cap];
+			}
+			System.arraycopy(keys, 0, k, 0, num_keys);
+			System.arraycopy(targets, 0, t, 0, num_keys);
+			if (num_keys > 0 && a != null && a.isCurrent())
+			{
+				a.getPool().free(keys);
+				freeNodes(targets, num_keys);
+			}
+			keys = k;
+			targets = t;
+			if (local != null)
+			{
+				String[] l = new String[cap];
+				System.arraycopy(local, 0, l, 0, num_keys);
+				local = l;
+			}
+		}
+		if (id < 0 && local == null)
+			local = new String[keys.length];
+		if (id >= 0)
+			name = SymbolTable.name(id);
+
+		// Goes after everything in the same or an earlier bucket.
+		int b = bucket(name);
+		int pos = num_keys;
+		while (pos > 0 && bucket(name(pos - 1)) > b)
+			pos--;
+		System.arraycopy(keys, pos, keys, pos+1, num_keys - pos);
+		System.arraycopy(targets, pos, targets, pos+1, num_keys - pos);
+		keys[pos] = id;
+		targets[pos] = target;
+		if (local != null)
+		{
+			System.arraycopy(local, pos, local, pos+1, num_keys - pos);
+			local[pos] = (id < 0) ? name : null;
+		}
+		num_keys++;
+
+		// A HashMap doubles once it is three-quarters full; the order
+		// then becomes that of a stable sort on the new buckets.
+		if (num_keys > (3 << bucket_bits) / 4)
+		{
+			bucket_bits++;
+			rebucket();
+		}
+		key_index = null;
+		mod_count++;
+	}
+
+	private FeatureNode[] newNodes(int len)
+	{
+		FeatureArena a = arena;
+		if (a != null && a.isCurrent())
+			return a.getPool().nodes(len);
+		return new FeatureNode[len];
+	}
+
+	/**
+	 * Hand an array that is no longer in use back to the arena pool,
+	 * if there is one; the first n entries may be non-null.
+	 */
+	private void freeNodes(FeatureNode[] old, int n)
+	{
+		FeatureArena a = arena;
+		if (a != null && a.isCurrent())
+		{
+			Arrays.fill(old, 0, n, null);
+			a.getPool().free(old);
+		}
+	}
+
+	FeatureArena getArena()
+	{
+		return arena;
+	}
+
+	void setArena(FeatureArena a)
+	{
+		arena = a;
+	}
+
+	/**
+	 * Give the storage of this node back to the pool, leaving the
+	 * node unusable. Called by FeatureArena.release() only.
+	 */
+	void recycle(FeatureArena.Pool pool)
+	{
+		if (keys != null && keys.length > 0)
+		{
+			Arrays.fill(targets, 0, num_keys, null);
+			pool.free(keys);
+			pool.free(targets);
+		}
+		if (parents != null)
+		{
+			Arrays.fill(parents, 0, num_parents, null);
+			pool.free(parents);
+		}
+		parents = null;
+		num_parents = 0;
+		wide_parents = null;
+		keys = RELEASED;
+		local = null;
+		targets = NO_TARGETS;
+		num_keys = 0;
+		bucket_bits = MIN_BUCKET_BITS;
+		key_index = null;
+		value = null;
+		arena = null;
+		mod_count++;
+	}
+
+	private void rebucket()
+	{
+		for (int i = 1; i < num_keys; i++)
+		{
+			int id = keys[i];
+			String l = (local == null) ? null : local[i];
+			FeatureNode t = targets[i];
+			int b = bucket(name(i));
+			int j = i;
+			while (j > 0 && bucket(name(j - 1)) > b)
+			{
+				keys[j] = keys[j - 1];
+				targets[j] = targets[j - 1];
+				if (local != null) local[j] = local[j - 1];
+				j--;
+			}
+			keys[j] = id;
+			targets[j] = t;
+			if (local != null) local[j] = l;
+		}
+	}
+
+	private void removeAt(int pos)
+	{
+		num_keys--;
+		System.arraycopy(keys, pos+1, keys, pos, num_keys - pos);
+		System.arraycopy(targets, pos+1, targets, pos, num_keys - pos);
+		targets[num_keys] = null;
+		if (local != null)
+		{
+			System.arraycopy(local, pos+1, local, pos, num_keys - pos);
+			local[num_keys] = null;
+		}
+		key_index = null;
+		mod_count++;
+	}
+
+	private static int hash(int id)
+	{
+		return id * 0x9E3779B9 >>> 16;
+	}
+
+	private void buildIndex()
+	{
+		int cap = 64;
+		while (cap < 4 * num_keys) cap <<= 1;
+		key_index = new int[cap];
+		int mask = cap - 1;
+		for (int i = 0; i < num_keys; i++)
+		{
+			int h = hash(keys[i]) & mask;
+			while (key_index[h] != 0)
+				h = (h + 1) & mask;
+			key_index[h] = i + 1;
+		}
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		HashSet<FeatureNode> p = new HashSet<FeatureNode>();
+		Iterator<FeatureNode> i = getParents();
+		while (i.hasNext())
+			p.add(i.next());
+
+		HashMap<String,FeatureNode> kv = null;
+		if (keys != null)
+		{
+			kv = new HashMap<String,FeatureNode>();
+			for (int j = 0; j < num_keys; j++)
+				kv.put(name(j), targets[j]);
+		}
+
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("parents", p);
+		fields.put("kv_pairs", kv);
+		fields.put("value", value);
+		out.writeFields();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream.GetField fields = in.readFields();
+		value = (String) fields.get("value", null);
+
+		// The parents and targets may not be fully read in yet, so
+		// they are only stored here, never asked for anything.
+		parents = null;
+		num_parents = 0;
+		wide_parents = null;
+		HashSet<FeatureNode> p = (HashSet<FeatureNode>) fields.get("parents", null);
+		if (p != null)
+			for (FeatureNode f : p)
+				addParent(f);
+
+		HashMap<String,FeatureNode> kv = (HashMap<String,FeatureNode>) fields.get("kv_pairs", null);
+		local = null;
+		key_index = null;
+		if (kv == null)
+		{
+			keys = null;
+			targets = null;
+			return;
+		}
+		keys = NO_KEYS;
+		targets = NO_TARGETS;
+		num_keys = 0;
+		bucket_bits = MIN_BUCKET_BITS;
+		for (Map.Entry<String,FeatureNode> e : kv.entrySet())
+		{
+			int id = SymbolTable.internIfRoom(e.getKey());
+			insert(id, e.getKey(), e.getValue());
+		}
 	}
 
 	/**
@@ -582,18 +1257,19 @@ public class FeatureNode extends Atom
 	public FeatureNode pathTarget(FeaturePath path)
 	{
 		FeatureNode cur = this;
-		Iterator<String> feats = path.iterator();
-		while (feats.hasNext() && cur != null) {
+		int n = path.size();
+		for (int i = 0; i < n && cur != null; i++) {
 			if (cur.isValued())
 				return null;
-			cur = cur.get(feats.next());
+			int pos = cur.find(path.step(i));
+			cur = (pos < 0) ? null : cur.targets[pos];
 		}
 		return cur;
 	}
 
 	public FeatureNode pathTarget(String str)
 	{
-		return pathTarget(new FeaturePath(str));
+		return pathTarget(FeaturePath.compile(str));
 	}
 
 	/**
@@ -610,8 +1286,7 @@ public class FeatureNode extends Atom
 
 	public String pathValue(String str)
 	{
-		FeaturePath path = new FeaturePath(str);
-		FeatureNode target = pathTarget(path);
+		FeatureNode target = pathTarget(FeaturePath.compile(str));
 		if (target == null) return null;
 		if (!target.isValued()) return null;
 		return target.getValue();
@@ -626,13 +1301,13 @@ public class FeatureNode extends Atom
 	                     boolean forceTarget)
 	{
 		FeatureNode cur = this;
-		Iterator<String> feats = path.iterator();
-		while (feats.hasNext()) {
+		int n = path.size();
+		for (int i = 0; i < n; i++) {
 			FeatureNode last = cur;
-			String name = feats.next();
+			int name = path.step(i);
 			cur = cur.get(name);
 			if (cur == null) {
-				if (feats.hasNext()) {
+				if (i + 1 < n) {
 					cur = new FeatureNode();
 				} else {
 					cur = target;
@@ -16,30 +16,52 @@
 
 package relex.feature;
 
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * FeaturePath can either store two paths: <a b c> = <x y z>
  *
  * Or it can be a simple path with a target string: <a b c> = hello
+ *
+ * A FeaturePath is immutable. Its steps are held as SymbolTable ids,
+ * so that walking it through a feature structure needs no string
+ * hashing or comparison.  Paths that are looked up by string over
+ * and over (e.g. FeatureNode.pathValue("<ref name>")) should be
+ * obtained from compile(), which parses each distinct string only
+ * once.
  */
 public class FeaturePath
 {
+	/** Cap on the number of distinct path strings cached by compile(). */
+	private static final int MAX_CACHED = 8192;
+
+	private static final ConcurrentHashMap<String,FeaturePath> cache =
+		new ConcurrentHashMap<String,FeaturePath>();
+
 	/**
-	 * The sequence of feature names in the path.
+	 * The sequence of feature names in the path, as symbol ids.
 	 */
-	private ArrayList<String> path;
+	private final int[] steps;
+
+	/** The path with the last step removed; made on demand. */
+	private FeaturePath parent;
 
 	protected FeaturePath()
 	{
-		path = new ArrayList<String>();
+		steps = new int[0];
+	}
+
+	private FeaturePath(int[] s)
+	{
+		steps = s;
 	}
 
 	public FeaturePath(String str)
 	{
-		this();
 		if (str.charAt(0) != '<')
 			throw new RuntimeException("invalid feature path init string: " + str);
 
@@ -47,27 +69,77 @@ public class FeaturePath
 			throw new RuntimeException("invalid feature path init string: " + str);
 
 		StringTokenizer st = new StringTokenizer(str.substring(1, str.indexOf('>')));
-		while (st.hasMoreTokens()) path.add(st.nextToken());
+		steps = new int[st.countTokens()];
+		for (int i = 0; i < steps.length; i++)
+			steps[i] = SymbolTable.intern(st.nextToken());
 	}
 
 	public FeaturePath(FeaturePath other)
 	{
-		this(other.toString());
+		steps = other.steps;
+	}
+
+	/**
+	 * @return the compiled path for the string, shared with every
+	 *         other caller that asked for the same string.
+	 */
+	public static FeaturePath compile(String str)
+	{
+		FeaturePath p = cache.get(str);
+		if (p != null)
+			return p;
+		p = new FeaturePath(str);
+
+		// Paths built on the fly from open-ended data would grow the
+		// cache without bound; past the cap, don't bother caching.
+		if (cache.size() < MAX_CACHED)
+			cache.put(str, p);
+		return p;
 	}
 
 	public int size()
 	{
-		return path.size();
+		return steps.length;
+	}
+
+	/**
+	 * @return the SymbolTable id of the i'th feature name in the path.
+	 */
+	public int step(int i)
+	{
+		return steps[i];
 	}
 
 	public String lastStep()
 	{
-		return path.get(path.size() - 1).toString();
+		return SymbolTable.name(steps[steps.length - 1]);
+	}
+
+	/**
+	 * @return the path without its last step.
+	 */
+	public FeaturePath parent()
+	{
+		FeaturePath p = parent;
+		if (p == null)
+		{
+			int[] s = new int[steps.length - 1];
+			System.arraycopy(steps, 0, s, 0, s.length);
+			p = new FeaturePath(s);
+			parent = p;
+		}
+		return p;
+	}
+
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof FeaturePath)) return false;
+		return Arrays.equals(steps, ((FeaturePath) o).steps);
 	}
 
-	public void removeLastStep()
+	public int hashCode()
 	{
-		path.remove(path.size() - 1);
+		return Arrays.hashCode(steps);
 	}
 
 	public String toString()
@@ -82,7 +154,27 @@ public class FeaturePath
 
 	public Iterator<String> iterator()
 	{
-		return path.iterator();
+		return new Iterator<String>()
+		{
+			private int next = 0;
+
+			public boolean hasNext()
+			{
+				return next < steps.length;
+			}
+
+			public String next()
+			{
+				if (next >= steps.length)
+					throw new NoSuchElementException();
+				return SymbolTable.name(steps[next++]);
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException("FeaturePath is immutable");
+			}
+		};
 	}
 
 	// unit-test function
@@ -90,8 +182,7 @@ public class FeaturePath
 	{
 		FeaturePath fp = new FeaturePath("<a b c d>");
 		System.out.println(fp);
-		FeaturePath fp2 = new FeaturePath(fp);
-		fp2.removeLastStep();
+		FeaturePath fp2 = fp.parent();
 		System.out.println(fp2);
 	}
 }
@@ -86,6 +86,24 @@ public class FeaturePathAndTarget
 		this(other.toString());
 	}
 
+	/**
+	 * Build from parts that have already been parsed, e.g. by an
+	 * earlier call to the string constructor, without any regular
+	 * expression matching.
+	 */
+	public FeaturePathAndTarget(String path, String sep, String target,
+	                            boolean targetIsPath) {
+		setPath(path);
+		if (targetIsPath) {
+			targetString = null;
+			targetPath = new FeaturePath(target);
+		} else {
+			targetString = target;
+			targetPath = null;
+		}
+		separator = sep;
+	}
+
 	// Subclasses should override
 	public Set<String> getPathSeparators() {
 		return pathSeparators;
@@ -134,7 +152,7 @@ public class FeaturePathAndTarget
 	}
 
 	public void removeLastStep() {
-		path.removeLastStep();
+		path = path.parent();
 	}
 
 	public boolean isPathPair() {
@@ -16,9 +16,12 @@
 
 package relex.feature;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 
@@ -28,46 +31,118 @@ public class FeatureTemplate
 
 	private ArrayList<FeaturePathAndTarget> pathsAndTargs;
 
-//	private HashMap<String,FeatureNode> vars;
+	/**
+	 * The pathsAndTargs, compiled once when the template is built,
+	 * so that matching does no string splitting or regex compilation.
+	 */
+	private Test[] tests;
+
+	/** The names of the $variables bound by the template, by slot. */
+	private String[] varNames;
+
+	/**
+	 * Scratch space for variable bindings during a match attempt.
+	 * Most attempts fail, so a map of the bindings is only built for
+	 * a successful match.
+	 */
+	private static final ThreadLocal<FeatureNode[]> frame =
+		new ThreadLocal<FeatureNode[]>()
+		{
+			protected FeatureNode[] initialValue()
+			{
+				return new FeatureNode[8];
+			}
+		};
 
 	/**
-	 * if test begins with "\" it is interpretted as a regular expression
-	 * (unless it begins with "\\" in which case the first character is removed)
+	 * A |-separated disjunction of target strings, compiled.  Plain
+	 * alternatives are looked up in a set; regex alternatives are
+	 * tried in turn.
 	 *
-	 * Also "\." is replaced with "[a-z\*]"
+	 * If an alternative begins with "\" it is interpretted as a regular
+	 * expression (unless it begins with "\\" in which case the first
+	 * character is removed).  Also "\." is replaced with "[a-z\*]"
 	 */
-	private boolean matchesVal(String test, String val)
+	public static final class Disjunction
 	{
-		if (test.charAt(0) == '\\') {
-			test = test.substring(1);
-			if (test.charAt(0) != '\\') {
-				test = test.replaceAll("\\\\.", "[a-z\\*]");
-				// System.err.println(test + " --- " + val + " --- " +
-				// Pattern.matches(test,val));
-				return Pattern.matches(test, val); // interprets test as a regex
+		private final HashSet<String> literals;
+		private final Pattern[] patterns;
+
+		public Disjunction(String pathTarget)
+		{
+			literals = new HashSet<String>();
+			ArrayList<Pattern> pats = new ArrayList<Pattern>();
+			String[] toks = pathTarget.split("[ ]*\\|[ ]*");
+			for (int i = 0; i < toks.length; i++)
+			{
+				String test = toks[i];
+				if (test.length() > 0 && test.charAt(0) == '\\') {
+					test = test.substring(1);
+					if (test.length() == 0 || test.charAt(0) != '\\') {
+						test = test.replaceAll("\\\\.", "[a-z\\*]");
+						pats.add(Pattern.compile(test));
+						continue;
+					}
+				}
+				literals.add(test);
 			}
+			patterns = pats.toArray(new Pattern[pats.size()]);
+		}
+
+		public boolean matches(String val)
+		{
+			if (literals.contains(val))
+				return true;
+			for (int i = 0; i < patterns.length; i++)
+				if (patterns[i].matcher(val).matches())
+					return true;
+			return false;
 		}
-		return test.equals(val);
 	}
 
-	private boolean matchesString(FeatureNode target, String pathTarget, Map<String,FeatureNode> vars)
+	/**
+	 * A single FeaturePathAndTarget, compiled.
+	 */
+	private static final class Test
 	{
-		// if path target is a variable name, set that variable name to the
-		// FeatureNode target
-		if (pathTarget.charAt(0) == '$') {
-			vars.put(pathTarget.substring(1), target);
-			return true;
+		static final int PATH_PAIR = 0;
+		static final int EMPTY = 1;
+		static final int VARIABLE = 2;
+		static final int VALUE = 3;
+
+		final boolean negated;
+		final int kind;
+		final FeaturePath path;
+		final FeaturePath targetPath;
+		final int slot;
+		final Disjunction values;
+
+		Test(FeaturePathAndTarget pt, int kind, int slot)
+		{
+			negated = pt.getSeparator().equals("!=");
+			this.kind = kind;
+			path = pt.getPath();
+			targetPath = pt.getTargetPath();
+			this.slot = slot;
+			values = (kind == VALUE) ? new Disjunction(pt.getTargetString()) : null;
 		}
-		// otherwise, interpret path target as a disjunction of strings
-		// separated by | characters.
-		if (!target.isValued())
-			return false;
-		String valString = target.getValue().toString();
-		String[] toks = pathTarget.split("[ ]*\\|[ ]*");
-		for (int i = 0; i < toks.length; i++)
-			if (matchesVal(toks[i], valString))
-				return true;
-		return false;
+	}
+
+	/**
+	 * Returns true if val matches one of the |-separated alternatives
+	 * of a template target string, using the same rules as match().
+	 */
+	public static boolean matchesDisjunction(String pathTarget, String val)
+	{
+		return new Disjunction(pathTarget).matches(val);
+	}
+
+	/**
+	 * @return the path-and-target tests of this template, in order.
+	 */
+	public List<FeaturePathAndTarget> getPathsAndTargets()
+	{
+		return Collections.unmodifiableList(pathsAndTargs);
 	}
 
 	public FeatureNode val(String varName, Map<String,FeatureNode> vars)
@@ -75,62 +150,100 @@ public class FeatureTemplate
 		return vars.get(varName);
 	}
 
+	private void compile()
+	{
+		HashMap<String,Integer> slots = new HashMap<String,Integer>();
+		ArrayList<String> names = new ArrayList<String>();
+		tests = new Test[pathsAndTargs.size()];
+		for (int i = 0; i < tests.length; i++)
+		{
+			FeaturePathAndTarget pt = pathsAndTargs.get(i);
+			int kind;
+			int slot = -1;
+			if (pt.isPathPair()) {
+				kind = Test.PATH_PAIR;
+			} else if (pt.getTargetString().equals(NULL_STRING)) {
+				kind = Test.EMPTY;
+			} else if (pt.getTargetString().charAt(0) == '$') {
+				kind = Test.VARIABLE;
+				String name = pt.getTargetString().substring(1);
+				Integer s = slots.get(name);
+				if (s == null) {
+					s = Integer.valueOf(names.size());
+					slots.put(name, s);
+					names.add(name);
+				}
+				slot = s.intValue();
+			} else {
+				kind = Test.VALUE;
+			}
+			tests[i] = new Test(pt, kind, slot);
+		}
+		varNames = names.toArray(new String[names.size()]);
+	}
+
 	// Iterate through the pathAndTargs, making sure each matches f
 	public Map<String,FeatureNode> match(FeatureNode f)
 	{
-		boolean matched = true;
-		Iterator<FeaturePathAndTarget> i = pathsAndTargs.iterator();
-		Map<String,FeatureNode> vars = new HashMap<String,FeatureNode>();
-		// vars.clear();
-		while (matched && i.hasNext()) {
-			FeaturePathAndTarget pathAndTarget = i.next();
-			if (pathAndTarget.getSeparator().equals("=")) {
-				matched = match(f, pathAndTarget, vars);
-			}
-			if (pathAndTarget.getSeparator().equals("!=")) {
-				matched = !match(f, pathAndTarget, vars);
+		FeatureNode[] vars = null;
+		if (varNames.length > 0) {
+			vars = frame.get();
+			if (vars.length < varNames.length) {
+				vars = new FeatureNode[varNames.length];
+				frame.set(vars);
 			}
+			for (int i = 0; i < varNames.length; i++)
+				vars[i] = null;
+		}
+
+		for (int i = 0; i < tests.length; i++) {
+			Test t = tests[i];
+			if (match(f, t, vars) == t.negated)
+				return null;
 		}
-/*		if (!matched)
-			vars.clear();
-		return matched; */
-		return matched ? vars : null;
+
+		HashMap<String,FeatureNode> bound = new HashMap<String,FeatureNode>();
+		for (int i = 0; i < varNames.length; i++)
+			if (vars[i] != null)
+				bound.put(varNames[i], vars[i]);
+		return bound;
 	}
 
-	private boolean match(FeatureNode f, FeaturePathAndTarget pathAndTarget, Map<String,FeatureNode> vars)
+	private boolean match(FeatureNode f, Test t, FeatureNode[] vars)
 	{
 		// get the target of the path in F
-		FeaturePath path = pathAndTarget.getPath();
-		FeatureNode fTarget = f.pathTarget(path);
-		if (fTarget == null) {
-			if (!pathAndTarget.isPathPair()
-					&& pathAndTarget.getTargetString().equals(NULL_STRING))
-				return true;
-			return false;
-		}
-		if (pathAndTarget.isPathPair()) {
-			// If path is a pair, make sure that F has both paths
-			// and that their destination are equal.
-			FeaturePath path2 = pathAndTarget.getTargetPath();
-			FeatureNode fTarget2 = f.pathTarget(path2);
-			if (fTarget.isValued() && fTarget2.isValued())
+		FeatureNode fTarget = f.pathTarget(t.path);
+		if (fTarget == null)
+			return t.kind == Test.EMPTY;
+
+		switch (t.kind) {
+			case Test.PATH_PAIR:
 			{
-				return (fTarget.getValue() == fTarget2.getValue());
+				// If path is a pair, make sure that F has both paths
+				// and that their destination are equal.
+				FeatureNode fTarget2 = f.pathTarget(t.targetPath);
+				if (fTarget.isValued() && fTarget2.isValued())
+				{
+					return (fTarget.getValue() == fTarget2.getValue());
+				}
+				return fTarget.equiv(fTarget2);
 			}
-			return fTarget.equiv(fTarget2);
-		} else {
-			// Otherwise, test if F's target matches the path's.
-			String pathTarg = pathAndTarget.getTargetString();
-			if (pathTarg.equals(NULL_STRING))
+			case Test.EMPTY:
 				// only empty string would match null
 				return (fTarget.isEmpty() || (fTarget.isValued() && fTarget
 						.getValue().length() == 0));
-			if (!matchesString(fTarget, pathTarg, vars)) {
-				return false;
-			}
+			case Test.VARIABLE:
+				// if path target is a variable name, set that variable
+				// name to the FeatureNode target
+				vars[t.slot] = fTarget;
+				return true;
+			default:
+				// otherwise, interpret path target as a disjunction of
+				// strings separated by | characters.
+				if (!fTarget.isValued())
+					return false;
+				return t.values.matches(fTarget.getValue());
 		}
-
-		return true;
 	}
 
 	public String toString(Map<String,FeatureNode> vars)
@@ -153,13 +266,14 @@ public class FeatureTemplate
 	public FeatureTemplate()
 	{
 		pathsAndTargs = new ArrayList<FeaturePathAndTarget>();
-		//vars = new HashMap<String, FeatureNode>();
+		compile();
 	}
 
 	public FeatureTemplate(ArrayList<FeaturePathAndTarget> pathAndTargVec)
 	{
 		this();
 		pathsAndTargs.addAll(pathAndTargVec);
+		compile();
 	}
 
 	public FeatureTemplate(String str)
@@ -171,6 +285,7 @@ public class FeatureTemplate
 			if (!line.substring(0, 2).equals("//"))
 				pathsAndTargs.add(new FeaturePathAndTarget(lines[i]));
 		}
+		compile();
 	}
 
 	public static void main(String[] args)
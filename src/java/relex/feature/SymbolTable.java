@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.feature;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The global table of feature names.  Each distinct feature name
+ * ("str", "POS", "linkL0", ...) is assigned a small integer id, the
+ * first time it is seen; FeatureNode stores its keys as these ids.
+ *
+ * Ids are only meaningful within a single JVM; they are never
+ * serialized.  The table is safe for concurrent use, and lookups
+ * do not lock.
+ *
+ * Names are never dropped from the table.  Most feature names are a
+ * fixed vocabulary, that of the rules (whose paths are interned
+ * unconditionally) and of the code; but some are made from the data
+ * (PrepositionLinkAlg keys on the preposition itself), and those
+ * would grow the table without bound.  So names set on a node are
+ * interned only while the table has fewer than DATA_LIMIT names;
+ * past that, FeatureNode keeps the name itself (see internIfRoom()).
+ */
+public final class SymbolTable
+{
+	private static final ConcurrentHashMap<String,Integer> ids =
+		new ConcurrentHashMap<String,Integer>();
+
+	/** Names, indexed by id. Replaced, never modified, when grown. */
+	private static volatile String[] names = new String[512];
+
+	private static volatile int count = 0;
+
+	/** Past this many names, only intern() adds to the table. */
+	public static final int DATA_LIMIT = 8192;
+
+	private SymbolTable() {}
+
+	/**
+	 * @return the id of the feature name, assigning a new one if
+	 *         the name has not been seen before.
+	 */
+	public static int intern(String name)
+	{
+		Integer id = ids.get(name);
+		if (id != null)
+			return id.intValue();
+		return add(name);
+	}
+
+	/**
+	 * @return the id of the feature name, assigning a new one only if
+	 *         the table holds fewer than DATA_LIMIT names; else -1.
+	 */
+	public static int internIfRoom(String name)
+	{
+		Integer id = ids.get(name);
+		if (id != null)
+			return id.intValue();
+		if (count >= DATA_LIMIT)
+			return -1;
+		return add(name);
+	}
+
+	/**
+	 * @return the id of the feature name, or -1 if the name has never
+	 *         been interned (in which case no node can have it).
+	 */
+	public static int lookup(String name)
+	{
+		Integer id = ids.get(name);
+		if (id == null)
+			return -1;
+		return id.intValue();
+	}
+
+	/**
+	 * @return the feature name with the given id.
+	 */
+	public static String name(int id)
+	{
+		return names[id];
+	}
+
+	/**
+	 * @return the number of distinct feature names seen so far.
+	 */
+	public static synchronized int size()
+	{
+		return count;
+	}
+
+	private static synchronized int add(String name)
+	{
+		Integer id = ids.get(name);
+		if (id != null)
+			return id.intValue();
+
+		String[] n = names;
+		if (count == n.length)
+		{
+			String[] grown = new String[2 * n.length];
+			System.arraycopy(n, 0, grown, 0, n.length);
+			names = grown;
+			n = grown;
+		}
+		// Store the name before publishing the id.
+		n[count] = name;
+		ids.put(name, Integer.valueOf(count));
+		return count++;
+	}
+}
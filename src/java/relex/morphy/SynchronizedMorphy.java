@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.morphy;
+
+/**
+ * Makes a single-threaded Morphy safe to share between threads, by
+ * letting one in at a time.
+ */
+public class SynchronizedMorphy implements Morphy
+{
+	private final Morphy morphy;
+
+	public SynchronizedMorphy(Morphy morphy)
+	{
+		this.morphy = morphy;
+	}
+
+	public synchronized void initialize()
+	{
+		morphy.initialize();
+	}
+
+	public synchronized Morphed morph(String word)
+	{
+		return morphy.morph(word);
+	}
+}
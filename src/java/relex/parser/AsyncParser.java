@@ -0,0 +1,343 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import relex.Sentence;
+
+/**
+ * AsyncParser runs the parses of another IParser on a pool of
+ * threads, and hands back a Future for each, so that the caller need
+ * not wait for it.  Sentences queue up in the pool without holding a
+ * thread; the parser itself blocks, so each parse that is running
+ * does.  A sentence still waiting when its deadline passes is not
+ * parsed at all.
+ *
+ * A parse may be given a time limit.  When the wrapped parser is an
+ * LGParser, link-grammar is told to stop by then, and what it found
+ * by that time is the result.  Should the parser still not be done
+ * GRACE_MILLIS after the deadline, the future gives up on it: it then
+ * holds a Sentence with no parses.  Either way, the Sentence is marked
+ * as timed out (see Sentence.isTimedOut()); running out of time is not
+ * an error.
+ *
+ * Cancelling a future, or giving up on it, interrupts the thread
+ * parsing it; a sentence that has not been started yet is never
+ * parsed.  The interrupt stops a RemoteLGParser waiting on its server.
+ * A MultiProcessLGParser kills the worker process parsing the sentence,
+ * so that link-grammar stops at once, and its reply is never taken for
+ * that of another sentence; the worker is started again on next use,
+ * which costs a JVM start and a dictionary load.  A LocalLGParser
+ * cannot be interrupted, and stops at the deadline.
+ *
+ * The wrapped parser must be thread-safe, if there is more than one
+ * thread.
+ */
+public class AsyncParser
+{
+	/**
+	 * How long after the deadline a parse is given up on.
+	 * link-grammar counts its time limit in whole seconds, and still
+	 * has to build the linkages once the time is up.
+	 */
+	public static final long GRACE_MILLIS = 1000;
+
+	private final IParser parser;
+	private final ExecutorService exec;
+	private final ScheduledExecutorService timer;
+
+	public AsyncParser(IParser parser, int numThreads)
+	{
+		this(parser, Executors.newFixedThreadPool(numThreads));
+	}
+
+	public AsyncParser(IParser parser, ExecutorService exec)
+	{
+		this.parser = parser;
+		this.exec = exec;
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "AsyncParser timer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public IParser getParser()
+	{
+		return parser;
+	}
+
+	public Future<Sentence> parse(String text)
+	{
+		return parse(text, 0);
+	}
+
+	/**
+	 * @param timeoutMillis the time limit, from now; none if not positive
+	 */
+	public Future<Sentence> parse(String text, long timeoutMillis)
+	{
+		final long deadline = (0 < timeoutMillis) ?
+			System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+		final ParseFuture f = new ParseFuture(text, deadline);
+		if (deadline != Long.MAX_VALUE)
+		{
+			f.setTimeout(timer.schedule(new Runnable()
+			{
+				public void run()
+				{
+					f.expire();
+				}
+			}, timeoutMillis + GRACE_MILLIS, TimeUnit.MILLISECONDS));
+		}
+		f.setTask(exec.submit(f));
+		return f;
+	}
+
+	/**
+	 * Stop the threads, once the sentences already handed in are
+	 * done.  The wrapped parser is left open.
+	 */
+	public void close()
+	{
+		exec.shutdown();
+		timer.shutdown();
+	}
+
+	/* ---------------------------------------------------------- */
+
+	private Sentence parseNow(String text, long deadline)
+	{
+		Sentence sntc;
+		if (deadline != Long.MAX_VALUE && parser instanceof LGParser)
+		{
+			ParseRecord rec = ((LGParser) parser).parseRecord(text, deadline);
+			sntc = (rec == null) ? null : rec.toSentence();
+		}
+		else
+		{
+			sntc = parser.parse(text);
+		}
+		if (sntc == null)
+			throw new ParseException("No answer from the parser: " + text);
+		if (deadline <= System.currentTimeMillis())
+			sntc.setTimedOut(true);
+		return sntc;
+	}
+
+	/**
+	 * The future of one sentence.  It is done when the parse is,
+	 * when it is given up on, or when it is cancelled, whichever
+	 * comes first.
+	 */
+	private final class ParseFuture implements Future<Sentence>, Runnable
+	{
+		private final String text;
+		private final long deadline;
+
+		// Guarded by this
+		private Future<?> task;
+		private Future<?> timeout;
+		private boolean done;
+		private boolean cancelled;
+		private Sentence result;
+		private Throwable error;
+
+		ParseFuture(String text, long deadline)
+		{
+			this.text = text;
+			this.deadline = deadline;
+		}
+
+		public void run()
+		{
+			if (isDone())
+				return;
+
+			// Shed sentences that waited in line past their deadline.
+			if (deadline <= System.currentTimeMillis())
+			{
+				finish(unparsed(), null);
+				return;
+			}
+			try
+			{
+				finish(parseNow(text, deadline), null);
+			}
+			catch (Throwable t)
+			{
+				finish(null, t);
+			}
+		}
+
+		/** The deadline has passed, and then some. */
+		void expire()
+		{
+			if (finish(unparsed(), null))
+				stop(true);
+		}
+
+		private Sentence unparsed()
+		{
+			Sentence sntc = new Sentence();
+			sntc.setSentence(text);
+			sntc.setTimedOut(true);
+			return sntc;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			synchronized (this)
+			{
+				if (done)
+					return false;
+				cancelled = true;
+				done = true;
+				notifyAll();
+			}
+			stop(mayInterruptIfRunning);
+			return true;
+		}
+
+		/**
+		 * @return true if this did it, false if the future was done
+		 *         already.
+		 */
+		private boolean finish(Sentence sntc, Throwable t)
+		{
+			Future<?> tm;
+			synchronized (this)
+			{
+				if (done)
+					return false;
+				result = sntc;
+				error = t;
+				done = true;
+				notifyAll();
+				tm = timeout;
+			}
+			if (tm != null)
+				tm.cancel(false);
+			return true;
+		}
+
+		/** Stop the parse, and the timer. */
+		private void stop(boolean interrupt)
+		{
+			Future<?> tk, tm;
+			synchronized (this)
+			{
+				tk = task;
+				tm = timeout;
+			}
+			if (tk != null)
+				tk.cancel(interrupt);
+			if (tm != null)
+				tm.cancel(false);
+		}
+
+		synchronized void setTask(Future<?> t)
+		{
+			task = t;
+			if (cancelled)
+				t.cancel(true);
+		}
+
+		synchronized void setTimeout(Future<?> t)
+		{
+			timeout = t;
+		}
+
+		public synchronized boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		public synchronized boolean isDone()
+		{
+			return done;
+		}
+
+		public synchronized Sentence get()
+			throws InterruptedException, ExecutionException
+		{
+			while (!done)
+				wait();
+			return outcome();
+		}
+
+		public synchronized Sentence get(long t, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException
+		{
+			long end = System.currentTimeMillis() + unit.toMillis(t);
+			while (!done)
+			{
+				long left = end - System.currentTimeMillis();
+				if (left <= 0)
+					throw new TimeoutException();
+				wait(left);
+			}
+			return outcome();
+		}
+
+		private Sentence outcome() throws ExecutionException
+		{
+			if (cancelled)
+				throw new CancellationException();
+			if (error != null)
+				throw new ExecutionException(error);
+			return result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length < 2)
+		{
+			System.out.println("Syntax: AsyncParser timeoutMillis sentence ...");
+			System.exit(-1);
+		}
+		long timeout = Long.parseLong(args[0]);
+		LocalLGParser lgp = new LocalLGParser();
+		lgp.getConfig().setAllowSkippedWords(true);
+		AsyncParser parser = new AsyncParser(lgp, 1);
+
+		List<Future<Sentence>> futures = new ArrayList<Future<Sentence>>();
+		for (int i = 1; i < args.length; i++)
+			futures.add(parser.parse(args[i], timeout));
+		for (int i = 1; i < args.length; i++)
+		{
+			Sentence sntc = futures.get(i-1).get();
+			System.out.println((sntc.isTimedOut() ? "TIMED OUT, " : "") +
+				sntc.getParses().size() + " parse(s): " + args[i]);
+		}
+		parser.close();
+	}
+}
@@ -0,0 +1,487 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import relex.Sentence;
+
+/**
+ * CachingParser remembers the results of another IParser, so that a
+ * sentence that has been seen before is not parsed again.  Corpora
+ * are full of repeats: boilerplate, greetings, headlines.
+ *
+ * In front of an LGParser, the cache keeps the ParseRecord of each
+ * text, keyed by the text, with leading, trailing and repeated
+ * whitespace removed, together with the parser settings that change
+ * what a parse looks like (see ParseKey).  A hit rebuilds the Sentence
+ * from the record, for the text at hand, so that texts differing only
+ * in whitespace share an entry, yet each gets its own sentence string
+ * and character offsets.  In front of any other parser, the cache
+ * keeps the Sentence itself, and so is keyed by the exact text.
+ *
+ * Entries are kept in serialized form; every hit hands out a fresh
+ * deep copy, with new sentence, parse and word ids, so the caller
+ * (and the algs) may modify it as they please.  Serialization also
+ * gives the weight of an entry, its size in bytes.
+ *
+ * The cache is split into segments, each its own LRU list under its
+ * own lock, so that threads sharing a CachingParser seldom contend.
+ * Both the number of entries and their total weight are bounded;
+ * the least recently used entries of a segment are evicted first.
+ *
+ * Whether CachingParser itself is thread-safe is up to the parser it
+ * wraps; the cache is.
+ */
+public class CachingParser implements IBatchParser
+{
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	public static final long DEFAULT_MAX_WEIGHT = 64L * 1024 * 1024;
+
+	private static final int SEGMENTS = 16;
+
+	private final IParser parser;
+	/** The parser, if its ParseRecords can be cached; else null */
+	private final LGParser recorder;
+	private final Segment[] segments;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong uncacheable = new AtomicLong();
+
+	public CachingParser(IParser parser)
+	{
+		this(parser, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_WEIGHT);
+	}
+
+	/**
+	 * @param maxEntries the most sentences to keep
+	 * @param maxWeight  the most bytes of serialized sentences to keep
+	 */
+	public CachingParser(IParser parser, int maxEntries, long maxWeight)
+	{
+		if (maxEntries < 1 || maxWeight < 1)
+			throw new IllegalArgumentException("Cache bounds must be positive");
+		this.parser = parser;
+		recorder = (parser instanceof LGParser) ? (LGParser) parser : null;
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(
+				(maxEntries + SEGMENTS - 1) / SEGMENTS,
+				(maxWeight + SEGMENTS - 1) / SEGMENTS);
+	}
+
+	public IParser getParser()
+	{
+		return parser;
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		String key = key(text);
+		Sentence sntc = lookup(key, text);
+		if (sntc != null)
+			return sntc;
+
+		if (recorder != null)
+		{
+			ParseRecord rec = recorder.parseRecord(text);
+			if (rec == null)
+				return null;
+			remember(key, freeze(rec));
+			return rec.toSentence();
+		}
+		sntc = parser.parse(text);
+		if (sntc != null)
+			remember(key, freeze(sntc));
+		return sntc;
+	}
+
+	/**
+	 * The sentences found in the cache are handed out as by parse();
+	 * the others are passed on to the wrapped parser, in one batch if
+	 * it is an IBatchParser, else one by one.
+	 */
+	public List<Sentence> parseBatch(List<String> texts)
+	{
+		int n = texts.size();
+		String[] keys = new String[n];
+		ArrayList<Sentence> out = new ArrayList<Sentence>(n);
+		ArrayList<String> missed = new ArrayList<String>();
+		for (int i = 0; i < n; i++)
+		{
+			keys[i] = key(texts.get(i));
+			Sentence sntc = lookup(keys[i], texts.get(i));
+			if (sntc == null)
+				missed.add(texts.get(i));
+			out.add(sntc);
+		}
+		if (missed.isEmpty())
+			return out;
+
+		if (recorder != null)
+		{
+			Iterator<ParseRecord> parsed = recorder.parseRecords(missed).iterator();
+			for (int i = 0; i < n; i++)
+			{
+				if (out.get(i) != null)
+					continue;
+				ParseRecord rec = parsed.next();
+				if (rec == null)
+					continue;
+				remember(keys[i], freeze(rec));
+				out.set(i, rec.toSentence());
+			}
+			return out;
+		}
+
+		Iterator<Sentence> parsed = parseEach(missed).iterator();
+		for (int i = 0; i < n; i++)
+		{
+			if (out.get(i) != null)
+				continue;
+			Sentence sntc = parsed.next();
+			if (sntc != null)
+				remember(keys[i], freeze(sntc));
+			out.set(i, sntc);
+		}
+		return out;
+	}
+
+	/**
+	 * @return the sentences of the wrapped parser, as by parseBatch().
+	 */
+	private List<Sentence> parseEach(List<String> texts)
+	{
+		if (parser instanceof IBatchParser)
+			return ((IBatchParser) parser).parseBatch(texts);
+
+		ArrayList<Sentence> out = new ArrayList<Sentence>(texts.size());
+		for (String text : texts)
+		{
+			Sentence sntc = null;
+			try
+			{
+				sntc = parser.parse(text);
+			}
+			catch (RuntimeException e)
+			{
+				LGParser.reportFailure(text, e);
+			}
+			out.add(sntc);
+		}
+		return out;
+	}
+
+	/**
+	 * @return a copy of the cached sentence, for the text, or null on
+	 *         a miss.
+	 */
+	private Sentence lookup(String key, String text)
+	{
+		Segment seg = segmentFor(key);
+		byte[] bytes = seg.get(key);
+		if (bytes != null)
+		{
+			Sentence copy = null;
+			if (recorder != null)
+			{
+				ParseRecord rec = thawRecord(bytes);
+				if (rec != null)
+				{
+					// Same key, but the whitespace may differ; the
+					// character offsets must be those of this text.
+					rec.text = text;
+					copy = rec.toSentence();
+				}
+			}
+			else
+			{
+				copy = thaw(bytes);
+				// A copy is a different sentence, and needs its own ids.
+				if (copy != null)
+					copy.setParses(copy.getParses());
+			}
+			if (copy != null)
+			{
+				hits.incrementAndGet();
+				return copy;
+			}
+			seg.remove(key);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @param bytes the entry, or null if it could not be serialized.
+	 */
+	private void remember(String key, byte[] bytes)
+	{
+		if (bytes == null)
+			uncacheable.incrementAndGet();
+		else
+			evictions.addAndGet(segmentFor(key).put(key, bytes));
+	}
+
+	/**
+	 * @return the cache key of the text, under the current settings
+	 *         of the parser: whitespace is normalized only where the
+	 *         cache keeps ParseRecords.
+	 */
+	protected String key(String text)
+	{
+		if (recorder != null)
+			return ParseKey.of(parser, text);
+		return ParseKey.exact(parser, text);
+	}
+
+	private Segment segmentFor(String key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * @return the sentence, serialized; or null if it cannot be.
+	 */
+	private static byte[] freeze(Sentence sntc)
+	{
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bos);
+			out.writeObject(sntc);
+			out.close();
+			return bos.toByteArray();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		catch (StackOverflowError e)
+		{
+			// A very long sentence; not worth caching anyway.
+			return null;
+		}
+	}
+
+	/**
+	 * @return the record, in the binary form of ParseStore.
+	 */
+	private static byte[] freeze(ParseRecord rec)
+	{
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bos);
+			rec.writeTo(out);
+			out.close();
+			return bos.toByteArray();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private static ParseRecord thawRecord(byte[] bytes)
+	{
+		try
+		{
+			return ParseRecord.readFrom(
+				new DataInputStream(new ByteArrayInputStream(bytes)));
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	private static Sentence thaw(byte[] bytes)
+	{
+		try
+		{
+			ObjectInputStream in =
+				new ObjectInputStream(new ByteArrayInputStream(bytes));
+			return (Sentence) in.readObject();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		catch (ClassNotFoundException e)
+		{
+			return null;
+		}
+	}
+
+	/* ---------------------------------------------------------- */
+	/* Statistics */
+
+	public long getHitCount()
+	{
+		return hits.get();
+	}
+
+	public long getMissCount()
+	{
+		return misses.get();
+	}
+
+	public long getEvictionCount()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of parses that could not be cached, because
+	 *         they could not be serialized.
+	 */
+	public long getUncacheableCount()
+	{
+		return uncacheable.get();
+	}
+
+	public double getHitRate()
+	{
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total == 0) ? 0.0 : ((double) h) / total;
+	}
+
+	/**
+	 * @return the number of sentences in the cache.
+	 */
+	public int size()
+	{
+		int n = 0;
+		for (Segment seg : segments)
+			n += seg.size();
+		return n;
+	}
+
+	/**
+	 * @return the total size, in bytes, of the sentences in the cache.
+	 */
+	public long getWeight()
+	{
+		long w = 0;
+		for (Segment seg : segments)
+			w += seg.getWeight();
+		return w;
+	}
+
+	public void clear()
+	{
+		for (Segment seg : segments)
+			seg.clear();
+	}
+
+	public String toString()
+	{
+		return "CachingParser: " + size() + " entries, " + getWeight() +
+			" bytes, hits=" + getHitCount() + " misses=" + getMissCount() +
+			" evictions=" + getEvictionCount() +
+			" uncacheable=" + getUncacheableCount();
+	}
+
+	/* ---------------------------------------------------------- */
+
+	/**
+	 * One LRU list, and its bounds.
+	 */
+	private static final class Segment
+	{
+		private final int maxEntries;
+		private final long maxWeight;
+		private final LinkedHashMap<String,byte[]> map;
+		private long weight;
+
+		Segment(int maxEntries, long maxWeight)
+		{
+			this.maxEntries = maxEntries;
+			this.maxWeight = maxWeight;
+			map = new LinkedHashMap<String,byte[]>(16, 0.75f, true);
+			weight = 0;
+		}
+
+		synchronized byte[] get(String key)
+		{
+			return map.get(key);
+		}
+
+		synchronized void remove(String key)
+		{
+			byte[] old = map.remove(key);
+			if (old != null) weight -= old.length;
+		}
+
+		/**
+		 * @return the number of entries evicted to make room.
+		 */
+		synchronized int put(String key, byte[] bytes)
+		{
+			// Too big to ever fit; don't flush the segment for it.
+			if (bytes.length > maxWeight)
+				return 0;
+
+			byte[] old = map.put(key, bytes);
+			if (old != null) weight -= old.length;
+			weight += bytes.length;
+
+			int evicted = 0;
+			Iterator<Map.Entry<String,byte[]>> it = map.entrySet().iterator();
+			while (map.size() > maxEntries || weight > maxWeight)
+			{
+				Map.Entry<String,byte[]> eldest = it.next();
+				weight -= eldest.getValue().length;
+				it.remove();
+				evicted++;
+			}
+			return evicted;
+		}
+
+		synchronized int size()
+		{
+			return map.size();
+		}
+
+		synchronized long getWeight()
+		{
+			return weight;
+		}
+
+		synchronized void clear()
+		{
+			map.clear();
+			weight = 0;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.List;
+
+import relex.Sentence;
+
+/**
+ * A parser that can be handed many texts at once.  Kept apart from
+ * IParser, so that parsers written against IParser need not change.
+ */
+public interface IBatchParser extends IParser
+{
+	/**
+	 * Parse each of the texts, as parse() does, but in one go, so that
+	 * whatever it costs to set up a parse is paid once for the batch,
+	 * and so that a parser that can work on several texts at once may
+	 * do so.
+	 *
+	 * A text that fails does not fail the batch: the error is reported
+	 * on stderr, and the text gets null in place of its Sentence.
+	 *
+	 * @param texts The texts/sentences to parse.
+	 * @return The parse results, in the order of the texts.
+	 */
+	List<Sentence> parseBatch(List<String> texts);
+}
@@ -17,14 +17,22 @@
 
 package relex.parser;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
 import org.linkgrammar.LGConfig;
 
-public abstract class LGParser implements IParser
+import relex.Sentence;
+
+public abstract class LGParser implements IBatchParser
 {
 	protected LGConfig _config = new LGConfig();
 	protected String _dict_path = null;
 	protected String _lang = "en";
 	protected int _max_linkages = 1000; // consistent with jni-client.h in link-graammar
+	protected int _rank_linkages = 0;
 
 	public LGConfig getConfig()
 	{
@@ -41,15 +49,160 @@ public abstract class LGParser implements IParser
 		_dict_path = path;
 	}	
 	
+	public String getDictPath()
+	{
+		return _dict_path;
+	}
+
 	public void setLanguage(String lang)
 	{
 		_lang = lang;
 	}	
 	
+	public String getLanguage()
+	{
+		return _lang;
+	}
+
 	public void setMaxLinkages(int ml)
 	{
 		_max_linkages = ml;
 	}	
 	
+	public int getMaxLinkages()
+	{
+		return _max_linkages;
+	}
+
+	/**
+	 * Rank up to this many linkages by their costs, before any of
+	 * them is built, and build only the best getConfig().getMaxLinkages()
+	 * of them, best first.  The ranking is that of simpleRankParse()
+	 * in ParsedSentence, so these are the parses that would have come
+	 * out on top anyway, had they all been built.  Zero, the default,
+	 * turns ranking off: the first linkages are built, in the order
+	 * link-grammar returns them.
+	 */
+	public void setRankLinkages(int n)
+	{
+		_rank_linkages = n;
+	}
+
+	public int getRankLinkages()
+	{
+		return _rank_linkages;
+	}
+
+	/**
+	 * @return the indexes of the best (highest ranked) k of the first
+	 *         n linkages, best first; ties go to the earlier linkage.
+	 */
+	protected static int[] best(final double[] rank, int n, int k)
+	{
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = new Integer(i);
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				double ra = rank[a.intValue()];
+				double rb = rank[b.intValue()];
+				if (ra > rb) return -1;
+				if (ra < rb) return +1;
+				return a.compareTo(b);
+			}
+		});
+		int[] top = new int[Math.min(n, k)];
+		for (int i = 0; i < top.length; i++)
+			top[i] = order[i].intValue();
+		return top;
+	}
+
 	public abstract String getVersion();
+
+	/**
+	 * Parse the text, and return the raw linkage data, before it is
+	 * converted to RelEx representation.  parse() is the same as
+	 * parseRecord() followed by ParseRecord.toSentence().
+	 */
+	public abstract ParseRecord parseRecord(String text) throws ParseException;
+
+	public List<Sentence> parseBatch(List<String> texts)
+	{
+		List<ParseRecord> recs = parseRecords(texts);
+		ArrayList<Sentence> out = new ArrayList<Sentence>(recs.size());
+		for (ParseRecord rec : recs)
+			out.add((rec == null) ? null : rec.toSentence());
+		return out;
+	}
+
+	/**
+	 * Parse each of the texts, as parseRecord() does, and return the
+	 * raw linkage data, in order; null for a text that failed, as
+	 * parseBatch() does.  By default, the texts are parsed one after
+	 * the other.
+	 */
+	public List<ParseRecord> parseRecords(List<String> texts)
+	{
+		ArrayList<ParseRecord> out = new ArrayList<ParseRecord>(texts.size());
+		for (String text : texts)
+		{
+			ParseRecord rec = null;
+			try
+			{
+				rec = parseRecord(text);
+			}
+			catch (RuntimeException e)
+			{
+				reportFailure(text, e);
+			}
+			out.add(rec);
+		}
+		return out;
+	}
+
+	protected static void reportFailure(String text, Throwable t)
+	{
+		System.err.println("Error: Failed to parse: " + text);
+		t.printStackTrace();
+	}
+
+	/**
+	 * Like parseRecord(text), but give up by the deadline, a time as
+	 * given by System.currentTimeMillis(): link-grammar is told to
+	 * stop then, and hands back what it found by that time.  The
+	 * deadline can only shorten getConfig().getMaxParseSeconds().
+	 * By default, the deadline is ignored.
+	 */
+	public ParseRecord parseRecord(String text, long deadline) throws ParseException
+	{
+		return parseRecord(text);
+	}
+
+	/**
+	 * @return the whole seconds left until the deadline, at least one,
+	 *         and no more than max, unless max is not positive.
+	 */
+	protected static int secondsLeft(long deadline, int max)
+	{
+		long left = (deadline - System.currentTimeMillis() + 999) / 1000;
+		if (0 < max && max < left)
+			return max;
+		return (int) Math.max(1, Math.min(left, Integer.MAX_VALUE));
+	}
+
+	protected static LGConfig copyConfig(LGConfig config)
+	{
+		LGConfig copy = new LGConfig();
+		copy.setMaxLinkages(config.getMaxLinkages());
+		copy.setMaxParseSeconds(config.getMaxParseSeconds());
+		copy.setMaxCost(config.getMaxCost());
+		copy.setAllowSkippedWords(config.isAllowSkippedWords());
+		copy.setStoreConstituentString(config.isStoreConstituentString());
+		copy.setStoreDiagramString(config.isStoreDiagramString());
+		copy.setStoreSense(config.isStoreSense());
+		copy.setDictionaryLocation(config.getDictionaryLocation());
+		return copy;
+	}
 }
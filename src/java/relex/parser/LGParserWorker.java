@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * The main class of the worker processes started by MultiProcessLGParser.
+ * A worker connects back to its parent over a loopback socket, and
+ * then parses, with a LocalLGParser, each sentence it is sent, and
+ * sends back the ParseRecord.  It exits when told to, or when the
+ * parent goes away.  Link-grammar loads its dictionary only once, so
+ * a worker keeps to the language and dictionary it was first sent;
+ * the parent starts a new worker to change them.
+ *
+ * Usage: java relex.parser.LGParserWorker port token
+ */
+public class LGParserWorker
+{
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 2)
+		{
+			System.err.println("Usage: LGParserWorker port token");
+			System.exit(1);
+		}
+		serve(args, new LocalLGParser());
+	}
+
+	/**
+	 * Connect to the parent, and parse what it sends with the given
+	 * parser, until told to quit.  Tests pass a parser of their own.
+	 */
+	static void serve(String[] args, LocalLGParser parser) throws IOException
+	{
+		Socket socket = new Socket(InetAddress.getByName("127.0.0.1"),
+			Integer.parseInt(args[0]));
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(socket.getOutputStream()));
+		out.writeUTF(args[1]);
+		out.flush();
+
+		byte[] settings = null;
+		try
+		{
+			while (true)
+			{
+				byte op = in.readByte();
+				if (op == MultiProcessLGParser.QUIT)
+					break;
+
+				byte[] s = new byte[in.readInt()];
+				in.readFully(s);
+				byte[] text = null;
+				if (op == MultiProcessLGParser.PARSE)
+				{
+					text = new byte[in.readInt()];
+					in.readFully(text);
+				}
+
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(4096);
+				DataOutputStream reply = new DataOutputStream(bos);
+				try
+				{
+					if (!Arrays.equals(s, settings))
+					{
+						MultiProcessLGParser.readSettings(s, parser);
+						parser.init();
+						settings = s;
+					}
+					if (op == MultiProcessLGParser.VERSION)
+						reply.writeUTF(String.valueOf(parser.getVersion()));
+					else
+						parser.parseRecord(new String(text, "UTF-8")).writeTo(reply);
+					out.writeByte(MultiProcessLGParser.OK);
+				}
+				catch (Throwable t)
+				{
+					bos.reset();
+					reply.writeUTF(String.valueOf(t));
+					out.writeByte(MultiProcessLGParser.FAILED);
+				}
+				reply.close();
+				out.writeInt(bos.size());
+				bos.writeTo(out);
+				out.flush();
+			}
+		}
+		catch (EOFException e)
+		{
+			// The parent went away.
+		}
+		parser.close();
+		socket.close();
+		System.exit(0);
+	}
+}
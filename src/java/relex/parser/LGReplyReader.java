@@ -0,0 +1,587 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * LGReplyReader decodes the JSON reply of a link-grammar server as it
+ * comes off the socket, straight into a ParseRecord.  Unlike
+ * JSONReader, it builds no tree of maps and lists to be picked apart
+ * afterwards: it pulls one token at a time, decodes the UTF-8 bytes
+ * itself into a char buffer that is reused, and only makes a String
+ * for a value it keeps.  Words and link labels come up over and over,
+ * from linkage to linkage and sentence to sentence, so short strings
+ * are looked up in a small cache first, by their chars, and the same
+ * String is handed back.
+ *
+ * The reply looks like this; keys it does not know are skipped.  Words
+ * and link labels may not be null; the constituent string may.
+ *
+ * {"numSkippedWords":0,
+ *  "linkages":[{"words":["LEFT-WALL","this",...],
+ *               "disjunctCost":0, "linkageCost":4, "numViolations":0,
+ *               "constituentString":"(S (NP this) ...)",
+ *               "links":[{"label":"Wd","left":0,"right":1,
+ *                         "leftLabel":"Wd","rightLabel":"Wd"}, ...]},
+ *              ...]}
+ *
+ * A reader is meant to be kept, and reset() for each reply, so that
+ * its buffers and cache are reused.  It is not thread-safe.
+ */
+public class LGReplyReader
+{
+	/** Strings longer than this are not cached */
+	private static final int MAX_CACHED = 32;
+	private static final int CACHE_SIZE = 1024;
+
+	private InputStream in;
+	private final byte[] bytes = new byte[8192];
+	private int pos;
+	private int end;
+
+	/** The current char, or -1 at the end of the stream */
+	private int c;
+	/** The second half of a surrogate pair, if one is due next */
+	private int pending;
+
+	private char[] chars = new char[256];
+	private int len;
+
+	private final String[] cache = new String[CACHE_SIZE];
+
+	// The linkage being read, reused from one to the next
+	private final ArrayList<String> words = new ArrayList<String>();
+	private int numLinks;
+	private int[] linkLeft = new int[64];
+	private int[] linkRight = new int[64];
+	private String[] linkLLabel = new String[64];
+	private String[] linkRLabel = new String[64];
+	private String[] linkLabel = new String[64];
+
+	public LGReplyReader()
+	{
+	}
+
+	public LGReplyReader(InputStream in)
+	{
+		reset(in);
+	}
+
+	/**
+	 * Start on a new reply.
+	 */
+	public void reset(InputStream in)
+	{
+		this.in = in;
+		pos = 0;
+		end = 0;
+		pending = -1;
+		c = ' ';
+	}
+
+	/**
+	 * Read the whole reply.  All the linkages are kept; numLinkages
+	 * is their number.
+	 */
+	public ParseRecord read(String text) throws IOException
+	{
+		ParseRecord rec = new ParseRecord(text);
+		next();
+		expect('{');
+		if (!endOf('}'))
+		{
+			do
+			{
+				readKey();
+				if (keyIs("numSkippedWords"))
+					rec.numSkippedWords = readInt();
+				else if (keyIs("linkages"))
+					readLinkages(rec);
+				else
+					skipValue();
+			}
+			while (more('}'));
+		}
+		rec.numLinkages = rec.linkages.size();
+		return rec;
+	}
+
+	private void readLinkages(ParseRecord rec) throws IOException
+	{
+		expect('[');
+		if (endOf(']'))
+			return;
+		do
+		{
+			rec.linkages.add(readLinkage());
+		}
+		while (more(']'));
+	}
+
+	private ParseRecord.LinkageRecord readLinkage() throws IOException
+	{
+		words.clear();
+		numLinks = 0;
+		String constituentString = null;
+		int disjunctCost = 0;
+		int linkCost = 0;
+		int numViolations = 0;
+
+		expect('{');
+		if (!endOf('}'))
+		{
+			do
+			{
+				readKey();
+				if (keyIs("words"))
+					readWords();
+				else if (keyIs("links"))
+					readLinks();
+				else if (keyIs("disjunctCost"))
+					disjunctCost = readInt();
+				else if (keyIs("linkageCost") || keyIs("linkCost"))
+					linkCost = readInt();
+				else if (keyIs("numViolations"))
+					numViolations = readInt();
+				else if (keyIs("constituentString"))
+					constituentString = readNullableString();
+				else
+					skipValue();
+			}
+			while (more('}'));
+		}
+
+		ParseRecord.LinkageRecord lkg =
+			new ParseRecord.LinkageRecord(words.size(), numLinks);
+		words.toArray(lkg.words);
+		System.arraycopy(linkLeft, 0, lkg.linkLeft, 0, numLinks);
+		System.arraycopy(linkRight, 0, lkg.linkRight, 0, numLinks);
+		System.arraycopy(linkLLabel, 0, lkg.linkLLabel, 0, numLinks);
+		System.arraycopy(linkRLabel, 0, lkg.linkRLabel, 0, numLinks);
+		System.arraycopy(linkLabel, 0, lkg.linkLabel, 0, numLinks);
+		lkg.constituentString = constituentString;
+		lkg.disjunctCost = disjunctCost;
+		lkg.linkCost = linkCost;
+		lkg.numViolations = numViolations;
+		return lkg;
+	}
+
+	private void readWords() throws IOException
+	{
+		expect('[');
+		if (endOf(']'))
+			return;
+		do
+		{
+			words.add(readString());
+		}
+		while (more(']'));
+	}
+
+	private void readLinks() throws IOException
+	{
+		expect('[');
+		if (endOf(']'))
+			return;
+		do
+		{
+			if (numLinks == linkLeft.length)
+				growLinks();
+			int l = numLinks++;
+			linkLeft[l] = 0;
+			linkRight[l] = 0;
+			linkLLabel[l] = null;
+			linkRLabel[l] = null;
+			linkLabel[l] = null;
+
+			expect('{');
+			if (endOf('}'))
+				continue;
+			do
+			{
+				readKey();
+				if (keyIs("left"))
+					linkLeft[l] = readInt();
+				else if (keyIs("right"))
+					linkRight[l] = readInt();
+				else if (keyIs("label"))
+					linkLabel[l] = readString();
+				else if (keyIs("leftLabel"))
+					linkLLabel[l] = readString();
+				else if (keyIs("rightLabel"))
+					linkRLabel[l] = readString();
+				else
+					skipValue();
+			}
+			while (more('}'));
+		}
+		while (more(']'));
+	}
+
+	private void growLinks()
+	{
+		int n = 2 * linkLeft.length;
+		int[] il = new int[n];
+		System.arraycopy(linkLeft, 0, il, 0, numLinks);
+		linkLeft = il;
+		int[] ir = new int[n];
+		System.arraycopy(linkRight, 0, ir, 0, numLinks);
+		linkRight = ir;
+		String[] sl = new String[n];
+		System.arraycopy(linkLLabel, 0, sl, 0, numLinks);
+		linkLLabel = sl;
+		String[] sr = new String[n];
+		System.arraycopy(linkRLabel, 0, sr, 0, numLinks);
+		linkRLabel = sr;
+		String[] s = new String[n];
+		System.arraycopy(linkLabel, 0, s, 0, numLinks);
+		linkLabel = s;
+	}
+
+	/* ---------------------------------------------------------- */
+	/* Tokens */
+
+	private void readKey() throws IOException
+	{
+		skipWhiteSpace();
+		if (c != '"')
+			throw error("a key");
+		readChars();
+		expect(':');
+	}
+
+	private boolean keyIs(String name)
+	{
+		if (len != name.length())
+			return false;
+		for (int i = 0; i < len; i++)
+			if (chars[i] != name.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return true, and step past it, if the next token is the given
+	 *         closing bracket; false if something else comes first.
+	 */
+	private boolean endOf(char close) throws IOException
+	{
+		skipWhiteSpace();
+		if (c != close)
+			return false;
+		next();
+		return true;
+	}
+
+	/**
+	 * After a member of an object or array: step past the comma and
+	 * return true, or past the closing bracket and return false.
+	 */
+	private boolean more(char close) throws IOException
+	{
+		skipWhiteSpace();
+		if (c == ',')
+		{
+			next();
+			return true;
+		}
+		if (c == close)
+		{
+			next();
+			return false;
+		}
+		throw error("',' or '" + close + "'");
+	}
+
+	private void expect(char ch) throws IOException
+	{
+		skipWhiteSpace();
+		if (c != ch)
+			throw error("'" + ch + "'");
+		next();
+	}
+
+	private String readNullableString() throws IOException
+	{
+		skipWhiteSpace();
+		if (c == 'n')
+		{
+			literal("null");
+			return null;
+		}
+		return readString();
+	}
+
+	private String readString() throws IOException
+	{
+		skipWhiteSpace();
+		if (c != '"')
+			throw error("a string");
+		readChars();
+		return (len <= MAX_CACHED) ? cached() : new String(chars, 0, len);
+	}
+
+	/**
+	 * Read a string, from its opening quote, into chars.
+	 */
+	private void readChars() throws IOException
+	{
+		len = 0;
+		next();
+		while (c != '"')
+		{
+			if (c < 0)
+				throw new EOFException("Reply from link-grammar server ends in a string");
+			if (c == '\\')
+			{
+				next();
+				switch (c)
+				{
+					case 'b': add('\b'); break;
+					case 'f': add('\f'); break;
+					case 'n': add('\n'); break;
+					case 'r': add('\r'); break;
+					case 't': add('\t'); break;
+					case 'u': add(unicode()); break;
+					case -1:
+						throw new EOFException("Reply from link-grammar server ends in a string");
+					default: add((char) c); break;  // '"', '\\', '/'
+				}
+			}
+			else
+			{
+				add((char) c);
+			}
+			next();
+		}
+		next();
+	}
+
+	private void add(char ch)
+	{
+		if (len == chars.length)
+		{
+			char[] bigger = new char[2 * len];
+			System.arraycopy(chars, 0, bigger, 0, len);
+			chars = bigger;
+		}
+		chars[len++] = ch;
+	}
+
+	private char unicode() throws IOException
+	{
+		int value = 0;
+		for (int i = 0; i < 4; i++)
+		{
+			next();
+			int d = Character.digit((char) c, 16);
+			if (c < 0 || d < 0)
+				throw error("a hex digit");
+			value = (value << 4) + d;
+		}
+		return (char) value;
+	}
+
+	/**
+	 * @return the String with the chars read, from the cache if it is
+	 *         there.
+	 */
+	private String cached()
+	{
+		int h = 0;
+		for (int i = 0; i < len; i++)
+			h = 31 * h + chars[i];
+		int slot = (h ^ (h >>> 16)) & (CACHE_SIZE - 1);
+		String s = cache[slot];
+		if (s != null && s.length() == len)
+		{
+			int i = 0;
+			while (i < len && s.charAt(i) == chars[i])
+				i++;
+			if (i == len)
+				return s;
+		}
+		s = new String(chars, 0, len);
+		cache[slot] = s;
+		return s;
+	}
+
+	/**
+	 * Read a number, and return its integer part.
+	 */
+	private int readInt() throws IOException
+	{
+		skipWhiteSpace();
+		boolean negative = false;
+		if (c == '-')
+		{
+			negative = true;
+			next();
+		}
+		if (c < '0' || c > '9')
+			throw error("a number");
+		long value = 0;
+		len = 0;
+		while ('0' <= c && c <= '9')
+		{
+			value = 10 * value + (c - '0');
+			add((char) c);
+			next();
+		}
+		if (c != '.' && c != 'e' && c != 'E')
+			return (int) (negative ? -value : value);
+
+		// A fraction or an exponent: rare enough to let Double do it.
+		while (('0' <= c && c <= '9') || c == '.' ||
+		       c == 'e' || c == 'E' || c == '+' || c == '-')
+		{
+			add((char) c);
+			next();
+		}
+		double d = Double.parseDouble(new String(chars, 0, len));
+		return (int) (negative ? -d : d);
+	}
+
+	private void skipValue() throws IOException
+	{
+		skipWhiteSpace();
+		switch (c)
+		{
+			case '"':
+				readChars();
+				break;
+			case '{':
+				next();
+				if (endOf('}'))
+					break;
+				do
+				{
+					readKey();
+					skipValue();
+				}
+				while (more('}'));
+				break;
+			case '[':
+				next();
+				if (endOf(']'))
+					break;
+				do
+				{
+					skipValue();
+				}
+				while (more(']'));
+				break;
+			case 't':
+				literal("true");
+				break;
+			case 'f':
+				literal("false");
+				break;
+			case 'n':
+				literal("null");
+				break;
+			default:
+				readInt();
+		}
+	}
+
+	private void literal(String word) throws IOException
+	{
+		for (int i = 0; i < word.length(); i++)
+		{
+			if (c != word.charAt(i))
+				throw error("'" + word + "'");
+			next();
+		}
+	}
+
+	private void skipWhiteSpace() throws IOException
+	{
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t')
+			next();
+	}
+
+	private IOException error(String what)
+	{
+		if (c < 0)
+			return new EOFException("Reply from link-grammar server ends early: expected " + what);
+		return new IOException("Malformed reply from link-grammar server: expected " +
+			what + ", found '" + (char) c + "'");
+	}
+
+	/* ---------------------------------------------------------- */
+	/* UTF-8 */
+
+	private int readByte() throws IOException
+	{
+		if (pos == end)
+		{
+			end = in.read(bytes, 0, bytes.length);
+			pos = 0;
+			if (end <= 0)
+			{
+				end = 0;
+				return -1;
+			}
+		}
+		return bytes[pos++] & 0xff;
+	}
+
+	private int continuation() throws IOException
+	{
+		int b = readByte();
+		if ((b & 0xc0) != 0x80)
+			throw new IOException("Malformed UTF-8 in reply from link-grammar server");
+		return b & 0x3f;
+	}
+
+	/**
+	 * Move on to the next char.
+	 */
+	private void next() throws IOException
+	{
+		if (pending >= 0)
+		{
+			c = pending;
+			pending = -1;
+			return;
+		}
+		int b = readByte();
+		if (b < 0x80)
+		{
+			c = b;
+		}
+		else if (b < 0xe0)
+		{
+			c = ((b & 0x1f) << 6) | continuation();
+		}
+		else if (b < 0xf0)
+		{
+			c = ((b & 0x0f) << 12) | (continuation() << 6) | continuation();
+		}
+		else
+		{
+			int cp = ((b & 0x07) << 18) | (continuation() << 12) |
+				(continuation() << 6) | continuation();
+			cp -= 0x10000;
+			c = 0xd800 + (cp >>> 10);
+			pending = 0xdc00 + (cp & 0x3ff);
+		}
+	}
+}
@@ -17,23 +17,16 @@
 package relex.parser;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import org.linkgrammar.LGService;
 import org.linkgrammar.LinkGrammar;
 
 import relex.ParsedSentence;
 import relex.Sentence;
-import relex.feature.FeatureNode;
-import relex.feature.LinkView;
-import relex.feature.LinkableView;
-import relex.stats.SimpleTruthValue;
 
 public class LocalLGParser extends LGParser
 {
 	private static final int verbosity = 0;
-	private static final double min_score = -0.001;
-	private static final double score_bump = 0.001;
 
 	private ThreadLocal<Boolean> initialized = new ThreadLocal<Boolean>()
 	{
@@ -81,16 +74,39 @@ public class LocalLGParser extends LGParser
 	}
 
 	public Sentence parse(String sentence) throws ParseException
+	{
+		return parseRecord(sentence).toSentence();
+	}
+
+	public ParseRecord parseRecord(String sentence, long deadline) throws ParseException
+	{
+		if (!initialized.get())
+			init();
+		int max = _config.getMaxParseSeconds();
+		int seconds = secondsLeft(deadline, max);
+		if (seconds == max)
+			return parseRecord(sentence);
+
+		LinkGrammar.setMaxParseSeconds(seconds);
+		try
+		{
+			return parseRecord(sentence);
+		}
+		finally
+		{
+			LinkGrammar.setMaxParseSeconds(max);
+		}
+	}
+
+	public ParseRecord parseRecord(String sentence) throws ParseException
 	{
 		if (!initialized.get())
 			init();
 		Long starttime;
 		if (verbosity > 0) starttime = System.currentTimeMillis();
 
-		Sentence sntc = new Sentence();
+		ParseRecord rec = new ParseRecord(sentence);
 
-		boolean ignoreFirst = false; // true if first word is LEFT-WALL
-		boolean ignoreLast = false;  // true if first word is RIGHT_WALL
 		if (verbosity >= 5) System.err.println("about to parse [" + sentence + "]");
 		LinkGrammar.parse(sentence);
 		if (verbosity >= 5) System.err.println("parsed [" + sentence + "]");
@@ -98,154 +114,58 @@ public class LocalLGParser extends LGParser
 		int numParses = LinkGrammar.getNumLinkages();
 		if (verbosity >= 5) System.err.println("found " + numParses + " parse(s)");
 
-		ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
-
 		if ((numParses < 1) ||
 		    (!_config.isAllowSkippedWords() && LinkGrammar.getNumSkippedWords() > 0))
 		{
 			System.err.println("Warning: No parses found for:\n" +
 			     sentence);
-			return sntc;
+			return rec;
 		}
 
-		for (int i = 0; i < numParses && i < _config.getMaxLinkages(); i++)
+		rec.numLinkages = numParses;
+		rec.numSkippedWords = LinkGrammar.getNumSkippedWords();
+		int[] order = selectLinkages(numParses, rec.numSkippedWords);
+		for (int i : order)
 		{
 			if (verbosity >= 5) System.err.println("making linkage for parse " + i);
 			LinkGrammar.makeLinkage(i);
 
-			if (verbosity >= 5) System.err.println("making sentence for parse " + i);
-			ParsedSentence s = new ParsedSentence(sentence);
-
-			// Add words
 			int numWords = LinkGrammar.getNumWords();
-			FeatureNode lastFN = null;
-			FeatureNode leftWall = null;
-			/*
-			 * Note that we should adjust cNumWords to count the words in the
-			 * sentence -- this will have other consequences when we try to do
-			 * partial parses -- must take this action carefully
-			 */
-
-			/*
-			 * In order to find the start character of each word/token, we need
-			 * to keep track of previous instances of the word (in case the same
-			 * word appears more than once in the sentence). The variables
-			 * "index" and "timesTokenSeen" are used for this:
-			 */
-			int startChar = 0;
-			HashMap<String,Integer> timesTokenSeen = new HashMap<String,Integer>();
-
-			int skip_count = 0;
-			int[] skip_map = new int[numWords];
+			int numLinks = LinkGrammar.getNumLinks();
+			ParseRecord.LinkageRecord lkg =
+				new ParseRecord.LinkageRecord(numWords, numLinks);
+
+			// Add words. Empty ones (Russian suffixes) are kept too;
+			// the record holds just what the parser gave.
+			int length = 0;
 			for (int w = 0; w < numWords; w++)
 			{
 				String wordString = LinkGrammar.getLinkageWord(w);
-				if (verbosity >= 5) System.err.println(" Processing Word " + wordString);
-
-				// In Russian, some words (suffixes) can be zero-length.
-				if (0 == wordString.length())
-				{
-					skip_count ++;
-					skip_map[w] = w-skip_count;
-					continue;
-				}
-				skip_map[w] = w-skip_count;
-
-				if (wordString.equals("RIGHT-WALL"))
-				{
-					ignoreLast = true;
-				}
-				else
-				{
-					FeatureNode fn = new FeatureNode();
-					if (wordString.equals("LEFT-WALL")) leftWall = fn;
-					// LEFT-WALL should always be first word, so throw an
-					// exception if it was not.
-					if (leftWall == null)
-						throw new RuntimeException("Invalid parse: " +
-							"first word is not left wall");
-
-					// Set the word and part-of-speech
-					LinkableView.setWordAndPos(fn, wordString);
-
-					// Create a feature "this" which points to the linkable
-					fn.set("this", fn);
-
-					// set "wall" to point to the left wall
-					fn.set("wall", leftWall);
-					if (lastFN != null)
-					{
-						LinkableView.setNext(lastFN, fn);
-						LinkableView.setPrev(fn, lastFN);
-					}
-
-					// XXX This should be removed, it really doesn't belong here.
-					if (Character.isUpperCase(wordString.charAt(0)))
-						LinkableView.setEntityFlag(fn);
-
-					s.addWord(fn);
-
-					// Add char-index information to the feature node
-					// FYI, the JNI call (*env)->NewStringUTF(env, str);
-					// will return NULL if str is utf8-encoded Japanese or Chinese. Go figure.
-					String tokenString = wordString;
-					if (null != tokenString) tokenString = tokenString.toLowerCase(); // normalize cases
-					else tokenString = "";
-
-					// System.err.println("DOING INFO FOR " + tokenString);
-					String sentenceString = sentence.toLowerCase();
-					Integer timesSeenInt = timesTokenSeen.get(tokenString);
-					int timesSeen = (timesSeenInt == null ? 0 : timesSeenInt.intValue());
-
-					// "x<=" means we will do at least once
-					for (int x = 0; x <= timesSeen; x++)
-					{
-						startChar = sentenceString.indexOf(tokenString,startChar);
-					}
-
-					timesTokenSeen.put(tokenString, new Integer(timesSeen + 1));
-					int endChar = (startChar >= 0 ? startChar + tokenString.length() : -1);
-					// System.err.println("INFO IS " + startChar + "," + endChar);
-					LinkableView.setCharIndices(fn, startChar, endChar, w-skip_count);
-
-					// Increment index to start looking for next tokenString
-					// after the current one. Use "max" to prevent decreasing
-					// index in the case the tokenString end is -1
-					startChar = Math.max(startChar, endChar);
-					lastFN = fn;
-				}
+				if (0 < wordString.length()) length++;
+				lkg.words[w] = wordString;
 			}
 
-			if (verbosity >= 5) System.err.println("Done with parse " + i);
-
-			// set meta data
-			FeatureNode meta = new FeatureNode();
-			meta.set("num_skipped_words", new FeatureNode(Integer.toString(
-					LinkGrammar.getNumSkippedWords())));
-			meta.set("disjunct_cost", new FeatureNode(Integer.toString(
-					LinkGrammar.getLinkageDisjunctCost())));
-			meta.set("link_cost", new FeatureNode(Integer.toString(
-					LinkGrammar.getLinkageLinkCost())));
-			meta.set("num_violations", new FeatureNode(Integer.toString(
-					LinkGrammar.getLinkageNumViolations())));
-			s.setMetaData(meta);
-
-			// add linkage and tree structure
-			if (verbosity >= 5) System.err.println("Adding Linkage Structure");
-			addLinkageStructure(s, ignoreFirst, ignoreLast, _config.isStoreSense(), skip_map);
-			if (_config.isStoreConstituentString())
+			for (int l = 0; l < numLinks; l++)
 			{
-				if (verbosity >= 5) System.err.println("Adding Tree Structure");
-				s.setPhraseString(LinkGrammar.getConstituentString());
+				lkg.linkLeft[l] = LinkGrammar.getLinkLWord(l);
+				lkg.linkRight[l] = LinkGrammar.getLinkRWord(l);
+				lkg.linkLLabel[l] = LinkGrammar.getLinkLLabel(l);
+				lkg.linkRLabel[l] = LinkGrammar.getLinkRLabel(l);
+				lkg.linkLabel[l] = LinkGrammar.getLinkLabel(l);
 			}
-			if (verbosity >= 5) System.err.println("Ready To Finish");
+			lkg.linkString = LinkGrammar.getLinkString();
+			lkg.disjunctCost = LinkGrammar.getLinkageDisjunctCost();
+			lkg.linkCost = LinkGrammar.getLinkageLinkCost();
+			lkg.numViolations = LinkGrammar.getLinkageNumViolations();
 
-			// add to return list
-			parses.add(s);
-		}
+			if (_config.isStoreSense())
+				addSenses(lkg, length);
+			if (_config.isStoreConstituentString())
+				lkg.constituentString = LinkGrammar.getConstituentString();
 
-		sntc.setParses(parses);
-		sntc.setNumParses(LinkGrammar.getNumLinkages());
+			if (verbosity >= 5) System.err.println("Done with parse " + i);
+			rec.linkages.add(lkg);
+		}
 
 		if (verbosity > 0)
 		{
@@ -255,105 +175,63 @@ public class LocalLGParser extends LGParser
 		}
 		if (verbosity >= 5) System.err.println("Done with parse");
 
-		return sntc;
+		return rec;
 	}
 
-	private void addLinkageStructure(ParsedSentence s,
-	                                 boolean ignoreFirst,
-	                                 boolean ignoreLast,
-	                                 boolean load_senses,
-	                                 int[] skip_map)
+	/**
+	 * @return the linkages to build, in order.  If ranking is on,
+	 *         only the costs of the linkages are looked at, and the
+	 *         best ones picked; nothing else is extracted for them.
+	 */
+	private int[] selectLinkages(int numParses, int numSkipped)
 	{
-		// Russian sentences can have 'blank words' in them which we skip.
-		// That means that the count of actual non-empty words no longer
-		// matches the link-parser count.  Technically, this is a link-parser
-		// bug, but fixing it would require a major re-write of the parser.
-		// int length = LinkGrammar.getNumWords();
-		int length = skip_map[skip_map.length-1] + 1;
-		int numLinks = LinkGrammar.getNumLinks();
-		s.setLinkString(LinkGrammar.getLinkString());
-		for (int i = 0; i < numLinks; i++)
+		int k = Math.min(numParses, _config.getMaxLinkages());
+		if (_rank_linkages <= 0)
 		{
-			boolean bad = false;
-			int left = LinkGrammar.getLinkLWord(i);
-			int right = LinkGrammar.getLinkRWord(i);
-			left = skip_map[left];
-			right = skip_map[right];
-			if (ignoreLast && (right == length - 1))
-			{
-				bad = true;
-			}
-			if (ignoreFirst)
-			{
-				if (left == 0) bad = true;
-				--left;
-				--right;
-			}
-			if (!bad)
-			{
-				/*
-				 * System.err.println("ADDING LINK " + left + "," + right);
-				 * System.err.println("labels: " + cLinkLLabel(i) + ":" +
-				 * cLinkRLabel(i) + ":" + cLinkLabel(i) + ":");
-				 */
-				FeatureNode f = new FeatureNode();
-				LinkView.setLinkFeatures(f,
-						LinkGrammar.getLinkLLabel(i),
-						LinkGrammar.getLinkRLabel(i),
-						LinkGrammar.getLinkLabel(i),
-						s.getWordAsNode(left),
-						s.getWordAsNode(right)
-				);
-			}
+			int[] order = new int[k];
+			for (int i = 0; i < k; i++)
+				order[i] = i;
+			return order;
 		}
 
-		if (load_senses)
+		int n = Math.min(numParses, Math.max(_rank_linkages, k));
+		double[] rank = new double[n];
+		for (int i = 0; i < n; i++)
 		{
-			for (int i = 0; i < length-1; i++)
+			LinkGrammar.makeLinkage(i);
+			rank[i] = ParsedSentence.simpleRank(numSkipped,
+				LinkGrammar.getLinkageDisjunctCost(),
+				LinkGrammar.getLinkageLinkCost());
+		}
+		return best(rank, n, k);
+	}
+
+	/**
+	 * Record the disjunct and the word senses of all but the last of
+	 * the (non-empty) words.
+	 */
+	private void addSenses(ParseRecord.LinkageRecord lkg, int length)
+	{
+		int n = Math.max(length-1, 0);
+		lkg.disjuncts = new String[n];
+		lkg.senses = new String[n][];
+		lkg.senseScores = new double[n][];
+		ArrayList<String> senses = new ArrayList<String>();
+		for (int i = 0; i < n; i++)
+		{
+			lkg.disjuncts[i] = LinkGrammar.getLinkageDisjunct(i);
+
+			senses.clear();
+			String sense = LinkGrammar.getLinkageSense(i, 0);
+			while (sense != null)
 			{
-				// We'll hang disjunct and senses right off the word node.
-				FeatureNode f = s.getWordAsNode(i);
-				String dj = LinkGrammar.getLinkageDisjunct(i);
-				if (dj != null)
-				{
-					f.set("DISJUNCT", new FeatureNode(dj));
-				}
-
-				// Get the total weight of all senses, for normalization.
-				int n = 0;
-				String sense = LinkGrammar.getLinkageSense(i,n);
-				double tot = 0.0;
-				while (sense != null)
-				{
-					double score = LinkGrammar.getLinkageSenseScore(i,n);
-					if (score > min_score)
-					{
-						if (0.0 >= score) score = score_bump;
-						tot += score;
-					}
-					n++;
-					sense = LinkGrammar.getLinkageSense(i,n);
-				}
-
-				// Tag words with word-senses, Use truth values to store
-				// the weight (as a confidence value).
-				n = 0;
-				sense = LinkGrammar.getLinkageSense(i,n);
-				while (sense != null)
-				{
-					double score = LinkGrammar.getLinkageSenseScore(i,n);
-					if (score > min_score)
-					{
-						if (0.0 >= score) score = score_bump;
-						SimpleTruthValue stv = new SimpleTruthValue(1.0, score/tot);
-						FeatureNode sns = new FeatureNode(sense);
-						sns.setTruthValue(stv);
-						f.set("DISJUNCT"+n, sns);
-					}
-					n++;
-					sense = LinkGrammar.getLinkageSense(i,n);
-				}
+				senses.add(sense);
+				sense = LinkGrammar.getLinkageSense(i, senses.size());
 			}
+			lkg.senses[i] = senses.toArray(new String[senses.size()]);
+			lkg.senseScores[i] = new double[senses.size()];
+			for (int k = 0; k < senses.size(); k++)
+				lkg.senseScores[i][k] = LinkGrammar.getLinkageSenseScore(i, k);
 		}
 	}
 
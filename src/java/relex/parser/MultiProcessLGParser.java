@@ -0,0 +1,881 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import relex.Sentence;
+
+/**
+ * MultiProcessLGParser parses with a pool of worker processes, each a
+ * JVM running LGParserWorker, that is, a LocalLGParser.  The link-grammar
+ * library keeps its sentence and linkage in global state, so that one
+ * process can only parse one sentence at a time; with N workers, N
+ * sentences are parsed at once, and a single host can keep all of its
+ * cores busy without link-grammar servers having to be started by hand.
+ *
+ * The workers are started with the same java, classpath and library
+ * path as this process, on first use, and talk to it over loopback
+ * sockets.  Each request carries the current parser settings, so that
+ * setConfig() and the like take effect as usual.  Link-grammar loads
+ * its dictionary only once per process, so a worker that is asked
+ * for another language or dictionary is started again.  Replies are
+ * read, as they come in, by a thread per worker.  A worker that dies,
+ * or stops answering, is killed and started again, and the sentence
+ * is tried once more (unless it was the one that timed out).  The
+ * counts kept per worker are shown by toString().
+ *
+ * Unlike LocalLGParser, this parser is thread-safe: each call to parse()
+ * takes an idle worker, waiting for one if need be.  A thread that is
+ * interrupted while it waits for a reply gets a ParseException, with
+ * its interrupt status set again, and the worker it was waiting on is
+ * killed: the reply would otherwise be taken for that of the next
+ * sentence the worker is sent.
+ */
+public class MultiProcessLGParser extends LGParser
+{
+	static final byte PARSE = 1;
+	static final byte VERSION = 2;
+	static final byte QUIT = 3;
+
+	static final byte OK = 0;
+	static final byte FAILED = 1;
+
+	/** How long to wait for a new worker to connect */
+	private static final int START_TIMEOUT_MILLIS = 60000;
+
+	/** Added to the maximum parse time, before a worker is given up on */
+	private static final int GRACE_SECONDS = 30;
+
+	/** Texts sent to a worker at a time, by parseRecords() */
+	private static final int AHEAD = 2;
+
+	/** For the tokens the workers must show to connect */
+	private static final SecureRandom random = new SecureRandom();
+
+	private final int numWorkers;
+	/** The main class of the worker processes */
+	private final Class<?> workerClass;
+	private final ArrayList<String> jvmArgs;
+	private final ArrayList<Worker> workers;
+	private final LinkedBlockingQueue<Worker> idle;
+	private volatile boolean closed;
+
+	public MultiProcessLGParser()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public MultiProcessLGParser(int numWorkers)
+	{
+		this(numWorkers, LGParserWorker.class);
+	}
+
+	/**
+	 * For tests: workers that run another main class, which speaks
+	 * the protocol of LGParserWorker.
+	 */
+	MultiProcessLGParser(int numWorkers, Class<?> workerClass)
+	{
+		if (numWorkers < 1)
+			throw new IllegalArgumentException("Need at least one worker");
+		this.numWorkers = numWorkers;
+		this.workerClass = workerClass;
+		jvmArgs = new ArrayList<String>();
+		workers = new ArrayList<Worker>();
+		idle = new LinkedBlockingQueue<Worker>();
+		for (int i = 0; i < numWorkers; i++)
+		{
+			Worker w = new Worker(i);
+			workers.add(w);
+			idle.add(w);
+		}
+		closed = false;
+	}
+
+	public int getNumWorkers()
+	{
+		return numWorkers;
+	}
+
+	/**
+	 * Extra arguments for the worker JVMs, such as "-Xmx1g".  Only
+	 * workers started afterwards get them.
+	 */
+	public void setJvmArgs(List<String> args)
+	{
+		synchronized (jvmArgs)
+		{
+			jvmArgs.clear();
+			jvmArgs.addAll(args);
+		}
+	}
+
+	public Sentence parse(String sentence) throws ParseException
+	{
+		return parseRecord(sentence).toSentence();
+	}
+
+	public ParseRecord parseRecord(String sentence) throws ParseException
+	{
+		return parseRecordWithin(sentence, _config.getMaxParseSeconds());
+	}
+
+	public ParseRecord parseRecord(String sentence, long deadline) throws ParseException
+	{
+		return parseRecordWithin(sentence,
+			secondsLeft(deadline, _config.getMaxParseSeconds()));
+	}
+
+	private ParseRecord parseRecordWithin(String sentence, int maxParseSeconds)
+	{
+		byte[] text;
+		try
+		{
+			text = sentence.getBytes("UTF-8");
+		}
+		catch (IOException e)
+		{
+			throw new ParseException(sentence, e);
+		}
+		DataInputStream reply = call(PARSE, text, sentence, maxParseSeconds);
+		try
+		{
+			return ParseRecord.readFrom(reply);
+		}
+		catch (IOException e)
+		{
+			throw new ParseException(sentence, e);
+		}
+	}
+
+	/**
+	 * The texts are spread over all the workers that are idle, one at
+	 * least.  Each worker is sent AHEAD texts at a time, so that it has
+	 * the next one at hand as soon as it is done with one.  Should a
+	 * worker fail, the texts it still had are parsed again, one by one.
+	 */
+	public List<ParseRecord> parseRecords(List<String> texts)
+	{
+		if (closed)
+			throw new ParseException("Parser closed");
+		int n = texts.size();
+		if (n == 0)
+			return new ArrayList<ParseRecord>();
+		Batch batch = new Batch(texts);
+		try
+		{
+			batch.workers.add(idle.take());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ParseException("Thread interrupted.", e);
+		}
+		idle.drainTo(batch.workers, n - 1);
+		batch.begin();
+		try
+		{
+			for (int k = 0; k < AHEAD; k++)
+				for (int w = 0; w < batch.workers.size(); w++)
+					batch.feed(w);
+			while (batch.receive())
+				continue;
+		}
+		finally
+		{
+			batch.abandon();
+			// Those that failed are started again on next use.
+			for (Worker w : batch.workers)
+				w.listener = null;
+			idle.addAll(batch.workers);
+		}
+
+		ArrayList<ParseRecord> out = new ArrayList<ParseRecord>(n);
+		for (int i = 0; i < n; i++)
+		{
+			// Also those never sent, if every worker failed.
+			if (batch.again[i] || i >= batch.next)
+			{
+				try
+				{
+					batch.recs[i] = parseRecord(texts.get(i));
+				}
+				catch (RuntimeException e)
+				{
+					reportFailure(texts.get(i), e);
+				}
+			}
+			out.add(batch.recs[i]);
+		}
+		return out;
+	}
+
+	public String getVersion()
+	{
+		try
+		{
+			return call(VERSION, null, "version", _config.getMaxParseSeconds()).readUTF();
+		}
+		catch (IOException e)
+		{
+			throw new ParseException("version", e);
+		}
+	}
+
+	/**
+	 * Send a request to an idle worker, restarting it, and trying
+	 * again, if it fails.  The worker is given maxParseSeconds in place
+	 * of the configured time limit.
+	 * @return the reply
+	 */
+	private DataInputStream call(byte op, byte[] text, String what, int maxParseSeconds)
+	{
+		if (closed)
+			throw new ParseException("Parser closed");
+		byte[] settings = writeSettings(this, maxParseSeconds);
+		String lexicon = lexicon(this);
+		int timeout = 1000 * (maxParseSeconds + GRACE_SECONDS);
+
+		Worker w;
+		try
+		{
+			w = idle.take();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ParseException("Thread interrupted.", e);
+		}
+		try
+		{
+			for (int attempt = 0; ; attempt++)
+			{
+				try
+				{
+					return w.call(op, settings, lexicon, text, timeout);
+				}
+				catch (IOException e)
+				{
+					w.fail(e);
+					if (attempt > 0 || e instanceof SocketTimeoutException)
+						throw new ParseException(what, e);
+				}
+				catch (InterruptedException e)
+				{
+					// The reply is still to come, and would be taken for
+					// that of the next request; the worker is killed.
+					w.fail(new IOException("Thread interrupted"));
+					Thread.currentThread().interrupt();
+					throw new ParseException("Thread interrupted.", e);
+				}
+			}
+		}
+		finally
+		{
+			idle.add(w);
+		}
+	}
+
+	/**
+	 * Stop all workers.  Must not be called while sentences are still
+	 * being parsed.
+	 */
+	public void close()
+	{
+		closed = true;
+		for (Worker w : workers)
+			w.stop();
+	}
+
+	public String toString()
+	{
+		StringBuffer sb = new StringBuffer("MultiProcessLGParser: ");
+		sb.append(numWorkers).append(" workers");
+		for (Worker w : workers)
+			sb.append("\n").append(w);
+		return sb.toString();
+	}
+
+	/**
+	 * The state of parseRecords(): the workers taken for it, the texts
+	 * sent to each and not yet answered, oldest first, and the workers
+	 * that have replies in, as they come in.
+	 */
+	private final class Batch
+	{
+		final List<String> texts;
+		final ParseRecord[] recs;
+		final boolean[] again;
+		final ArrayList<Worker> workers;
+		final ArrayList<LinkedList<Integer>> pending;
+		final LinkedBlockingQueue<Worker> arrivals;
+		/** When each worker started on its oldest text, about */
+		long[] since;
+		final byte[] settings;
+		final String lexicon;
+		final int timeout;
+		int next;
+
+		Batch(List<String> texts)
+		{
+			this.texts = texts;
+			recs = new ParseRecord[texts.size()];
+			again = new boolean[texts.size()];
+			workers = new ArrayList<Worker>();
+			pending = new ArrayList<LinkedList<Integer>>();
+			arrivals = new LinkedBlockingQueue<Worker>();
+			settings = writeSettings(MultiProcessLGParser.this,
+				_config.getMaxParseSeconds());
+			lexicon = lexicon(MultiProcessLGParser.this);
+			timeout = 1000 * (_config.getMaxParseSeconds() + GRACE_SECONDS);
+			next = 0;
+		}
+
+		/** Call once the workers are in. */
+		void begin()
+		{
+			for (int w = 0; w < workers.size(); w++)
+			{
+				pending.add(new LinkedList<Integer>());
+				workers.get(w).listener = arrivals;
+			}
+			since = new long[workers.size()];
+		}
+
+		/** Send the next text, if any, to worker w. */
+		void feed(int w)
+		{
+			if (next >= texts.size() || pending.get(w) == null)
+				return;
+			if (pending.get(w).isEmpty())
+				since[w] = System.currentTimeMillis();
+			int i = next++;
+			byte[] text;
+			try
+			{
+				text = texts.get(i).getBytes("UTF-8");
+			}
+			catch (IOException e)
+			{
+				reportFailure(texts.get(i), e);
+				return;
+			}
+			pending.get(w).add(i);
+			try
+			{
+				workers.get(w).send(PARSE, settings, lexicon, text);
+			}
+			catch (IOException e)
+			{
+				fail(w, e);
+			}
+		}
+
+		/**
+		 * Wait for a reply, from whichever worker is first to have one,
+		 * and send that worker the next text.  Waiting on one worker
+		 * at a time would leave the others idle behind a slow text.
+		 * @return false if there was nothing to wait for.
+		 */
+		boolean receive()
+		{
+			while (true)
+			{
+				// Wait no longer than until the first worker times out.
+				long first = Long.MAX_VALUE;
+				for (int w = 0; w < pending.size(); w++)
+				{
+					LinkedList<Integer> p = pending.get(w);
+					if (p != null && !p.isEmpty())
+						first = Math.min(first, since[w] + timeout);
+				}
+				if (first == Long.MAX_VALUE)
+					return false;
+
+				Worker arrived;
+				try
+				{
+					arrived = arrivals.poll(first - System.currentTimeMillis(),
+						TimeUnit.MILLISECONDS);
+				}
+				catch (InterruptedException e)
+				{
+					// abandon() gives up on the workers still busy.
+					Thread.currentThread().interrupt();
+					throw new ParseException("Thread interrupted.", e);
+				}
+				if (arrived != null)
+				{
+					int w = workers.indexOf(arrived);
+					// Left over from a worker that was given up on, or
+					// one that went away with nothing left to answer.
+					LinkedList<Integer> p = pending.get(w);
+					if (p == null || p.isEmpty())
+						continue;
+					receive(w);
+					return true;
+				}
+
+				long now = System.currentTimeMillis();
+				for (int w = 0; w < pending.size(); w++)
+				{
+					LinkedList<Integer> p = pending.get(w);
+					if (p != null && !p.isEmpty() && since[w] + timeout <= now)
+					{
+						// As in call(), a text that timed out is not tried again.
+						reportFailure(texts.get(p.removeFirst()),
+							new SocketTimeoutException("Worker timed out"));
+						fail(w, new SocketTimeoutException("Worker timed out"));
+						return true;
+					}
+				}
+			}
+		}
+
+		private void receive(int w)
+		{
+			int i = pending.get(w).removeFirst();
+			since[w] = System.currentTimeMillis();
+			DataInputStream reply;
+			try
+			{
+				reply = workers.get(w).receive(timeout);
+			}
+			catch (ParseException e)
+			{
+				// The worker is fine; the text was not.
+				reportFailure(texts.get(i), e);
+				feed(w);
+				return;
+			}
+			catch (IOException e)
+			{
+				again[i] = true;
+				fail(w, e);
+				return;
+			}
+			catch (InterruptedException e)
+			{
+				// Its reply is still queued; abandon() would not see
+				// the worker as busy, were this its last text.
+				fail(w, new IOException("Thread interrupted"));
+				Thread.currentThread().interrupt();
+				throw new ParseException("Thread interrupted.", e);
+			}
+			try
+			{
+				recs[i] = ParseRecord.readFrom(reply);
+			}
+			catch (IOException e)
+			{
+				reportFailure(texts.get(i), e);
+			}
+			feed(w);
+		}
+
+		/**
+		 * Give up on the workers that still have texts; what they
+		 * would send back can no longer be told apart.
+		 */
+		void abandon()
+		{
+			for (int w = 0; w < pending.size(); w++)
+			{
+				if (pending.get(w) != null && !pending.get(w).isEmpty())
+					fail(w, new IOException("Batch abandoned"));
+			}
+		}
+
+		/** Worker w broke; its texts are to be parsed again. */
+		private void fail(int w, IOException e)
+		{
+			workers.get(w).fail(e);
+			for (int i : pending.get(w))
+				again[i] = true;
+			pending.set(w, null);
+		}
+	}
+
+	/* ---------------------------------------------------------- */
+	/* Settings, as sent to the workers */
+
+	static byte[] writeSettings(LGParser p, int maxParseSeconds)
+	{
+		try
+		{
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bos);
+			writeString(out, p.getLanguage());
+			writeString(out, p.getDictPath());
+			out.writeInt(p.getMaxLinkages());
+			out.writeInt(p.getRankLinkages());
+			out.writeInt(p.getConfig().getMaxLinkages());
+			out.writeInt(maxParseSeconds);
+			out.writeDouble(p.getConfig().getMaxCost());
+			out.writeBoolean(p.getConfig().isAllowSkippedWords());
+			out.writeBoolean(p.getConfig().isStoreConstituentString());
+			out.writeBoolean(p.getConfig().isStoreSense());
+			out.close();
+			return bos.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);  // cannot happen
+		}
+	}
+
+	/**
+	 * @return what a worker process can only be set to when started.
+	 */
+	static String lexicon(LGParser p)
+	{
+		return p.getLanguage() + "\n" + p.getDictPath();
+	}
+
+	static void readSettings(byte[] settings, LGParser p) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(settings));
+		p.setLanguage(readString(in));
+		p.setDictPath(readString(in));
+		p.setMaxLinkages(in.readInt());
+		p.setRankLinkages(in.readInt());
+		p.getConfig().setMaxLinkages(in.readInt());
+		p.getConfig().setMaxParseSeconds(in.readInt());
+		p.getConfig().setMaxCost(in.readDouble());
+		p.getConfig().setAllowSkippedWords(in.readBoolean());
+		p.getConfig().setStoreConstituentString(in.readBoolean());
+		p.getConfig().setStoreSense(in.readBoolean());
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		if (!in.readBoolean()) return null;
+		return in.readUTF();
+	}
+
+	/* ---------------------------------------------------------- */
+
+	/**
+	 * The reply to one request: its status and body, or what went wrong
+	 * in reading it.
+	 */
+	private static final class Reply
+	{
+		final byte status;
+		final byte[] body;
+		final IOException error;
+
+		Reply(byte status, byte[] body, IOException error)
+		{
+			this.status = status;
+			this.body = body;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * One worker process, and what is known about its health.  Only
+	 * the thread that took it from the idle queue may use it.
+	 */
+	private final class Worker
+	{
+		private final int id;
+		private Process process;
+		private Socket socket;
+		private DataOutputStream out;
+		/** The language and dictionary the process was started with */
+		private String lexicon;
+
+		/** Replies of the current process, as they are read */
+		private volatile LinkedBlockingQueue<Reply> replies;
+		/** If set, told each time a reply comes in */
+		volatile LinkedBlockingQueue<Worker> listener;
+
+		private volatile int requests;
+		private volatile int failures;
+		private volatile int starts;
+		private volatile String lastError;
+
+		Worker(int id)
+		{
+			this.id = id;
+		}
+
+		DataInputStream call(byte op, byte[] settings, String lexicon,
+		                     byte[] text, int timeout)
+			throws IOException, InterruptedException
+		{
+			send(op, settings, lexicon, text);
+			return receive(timeout);
+		}
+
+		/**
+		 * Send a request, without waiting for the reply.  The worker
+		 * takes requests in turn, so several may be sent ahead; the
+		 * replies come back in the same order.
+		 */
+		void send(byte op, byte[] settings, String lexicon, byte[] text)
+			throws IOException
+		{
+			if (socket != null && !lexicon.equals(this.lexicon))
+				stop();
+			if (socket == null)
+				start(lexicon);
+			requests++;
+			out.writeByte(op);
+			out.writeInt(settings.length);
+			out.write(settings);
+			if (text != null)
+			{
+				out.writeInt(text.length);
+				out.write(text);
+			}
+			out.flush();
+		}
+
+		/**
+		 * @return the reply to the oldest request not yet answered,
+		 *         waiting no longer than the timeout for it.
+		 * @throws IOException if the worker is gone, or timed out.
+		 * @throws InterruptedException if the thread was interrupted;
+		 *         the reply is then still to come, and the worker must
+		 *         not be used again before it is killed.
+		 */
+		DataInputStream receive(int timeout)
+			throws IOException, InterruptedException
+		{
+			Reply reply = replies.poll(timeout, TimeUnit.MILLISECONDS);
+			if (reply == null)
+				throw new SocketTimeoutException("Worker timed out");
+			if (reply.error != null)
+				throw reply.error;
+			DataInputStream r = new DataInputStream(new ByteArrayInputStream(reply.body));
+			if (reply.status != OK)
+			{
+				// The worker is fine; the request was not.
+				throw new ParseException(r.readUTF());
+			}
+			return r;
+		}
+
+		private void start(String lexicon) throws IOException
+		{
+			String token = Long.toHexString(random.nextLong());
+			ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+			try
+			{
+				ArrayList<String> cmd = new ArrayList<String>();
+				cmd.add(System.getProperty("java.home") + File.separator +
+					"bin" + File.separator + "java");
+				synchronized (jvmArgs)
+				{
+					cmd.addAll(jvmArgs);
+				}
+				cmd.add("-cp");
+				cmd.add(System.getProperty("java.class.path"));
+				String libs = System.getProperty("java.library.path");
+				if (libs != null)
+					cmd.add("-Djava.library.path=" + libs);
+				cmd.add(workerClass.getName());
+				cmd.add(Integer.toString(server.getLocalPort()));
+				cmd.add(token);
+
+				ProcessBuilder pb = new ProcessBuilder(cmd);
+				pb.redirectErrorStream(true);
+				process = pb.start();
+				starts++;
+				drain(process);
+
+				server.setSoTimeout(START_TIMEOUT_MILLIS);
+				socket = server.accept();
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+				out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				socket.setSoTimeout(START_TIMEOUT_MILLIS);
+				if (!token.equals(in.readUTF()))
+					throw new IOException("Unexpected connection to worker port");
+
+				// Timeouts are up to those who wait for the replies.
+				socket.setSoTimeout(0);
+				replies = new LinkedBlockingQueue<Reply>();
+				listen(in, replies);
+				this.lexicon = lexicon;
+			}
+			catch (IOException e)
+			{
+				kill();
+				throw e;
+			}
+			finally
+			{
+				server.close();
+			}
+		}
+
+		/**
+		 * Copy what the worker prints to our stderr, so that it never
+		 * blocks on a full pipe.
+		 */
+		private void drain(final Process p)
+		{
+			Thread t = new Thread("lg-worker-" + id + "-output")
+			{
+				public void run()
+				{
+					try
+					{
+						BufferedReader r = new BufferedReader(
+							new InputStreamReader(p.getInputStream()));
+						String line;
+						while ((line = r.readLine()) != null)
+							System.err.println("[lg-worker " + id + "] " + line);
+					}
+					catch (IOException e) {}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/**
+		 * Read the replies of the process into the queue, until it
+		 * goes away.
+		 */
+		private void listen(final DataInputStream in,
+		                    final LinkedBlockingQueue<Reply> queue)
+		{
+			Thread t = new Thread("lg-worker-" + id + "-replies")
+			{
+				public void run()
+				{
+					try
+					{
+						while (true)
+						{
+							byte status = in.readByte();
+							byte[] body = new byte[in.readInt()];
+							in.readFully(body);
+							deliver(queue, new Reply(status, body, null));
+						}
+					}
+					catch (IOException e)
+					{
+						deliver(queue, new Reply(FAILED, null, e));
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+
+		private void deliver(LinkedBlockingQueue<Reply> queue, Reply reply)
+		{
+			queue.add(reply);
+			// Not if the process has been killed, and replaced.
+			LinkedBlockingQueue<Worker> l = listener;
+			if (l != null && queue == replies)
+				l.add(this);
+		}
+
+		/**
+		 * The worker crashed or hung; kill it. It will be started
+		 * again on next use.
+		 */
+		void fail(IOException e)
+		{
+			failures++;
+			lastError = String.valueOf(e);
+			System.err.println("Warning: Restarting link-grammar worker " +
+				id + ": " + e);
+			kill();
+		}
+
+		private void kill()
+		{
+			try
+			{
+				if (socket != null) socket.close();
+			}
+			catch (IOException e) {}
+			socket = null;
+			out = null;
+			replies = null;
+			lexicon = null;
+			if (process != null) process.destroy();
+			process = null;
+		}
+
+		/**
+		 * Tell the worker to quit, and see that it does.
+		 */
+		void stop()
+		{
+			try
+			{
+				if (out != null)
+				{
+					out.writeByte(QUIT);
+					out.flush();
+				}
+			}
+			catch (IOException e) {}
+			kill();
+		}
+
+		public String toString()
+		{
+			return "worker " + id + ": " + (socket != null ? "running" : "stopped") +
+				", requests=" + requests + " failures=" + failures +
+				" starts=" + starts +
+				(lastError != null ? " last error: " + lastError : "");
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		MultiProcessLGParser lp = new MultiProcessLGParser(2);
+		Sentence sntc = lp.parse("Mike saw the man with the telescope.");
+		System.err.println("FOUND " + sntc.getParses().size() + " sentence(s)");
+		System.err.println(lp);
+		lp.close();
+	}
+}
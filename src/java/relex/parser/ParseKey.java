@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import org.linkgrammar.LGConfig;
+
+/**
+ * The key under which a parse is remembered, by CachingParser and by
+ * ParseStore: the text, with leading, trailing and repeated whitespace
+ * removed, together with the parser settings that change what a parse
+ * looks like: language, dictionary, maximum numbers of linkages, how
+ * many linkages are ranked, maximum cost, whether skipped words are
+ * allowed, and what is stored.
+ *
+ * Texts that differ only in whitespace share a key, and so a parse;
+ * but not a Sentence, whose text and character offsets are those of
+ * the one text.  Only a ParseRecord, given the text at hand, can be
+ * shared so; what remembers whole Sentences must use exact() keys.
+ */
+class ParseKey
+{
+	static String of(IParser parser, String text)
+	{
+		StringBuffer sb = settings(parser, text);
+
+		// Normalize whitespace.
+		boolean started = false;
+		boolean space = false;
+		for (int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c))
+			{
+				space = true;
+				continue;
+			}
+			if (space && started)
+				sb.append(' ');
+			space = false;
+			started = true;
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the key, with the text as it is.
+	 */
+	static String exact(IParser parser, String text)
+	{
+		return settings(parser, text).append(text).toString();
+	}
+
+	private static StringBuffer settings(IParser parser, String text)
+	{
+		if (parser instanceof ReplayParser)
+			parser = ((ReplayParser) parser).getParser();
+
+		StringBuffer sb = new StringBuffer(text.length() + 48);
+		if (parser instanceof LGParser)
+		{
+			LGParser lgp = (LGParser) parser;
+			LGConfig cfg = lgp.getConfig();
+			sb.append(lgp.getLanguage()).append('|');
+			sb.append(lgp.getDictPath()).append('|');
+			sb.append(lgp.getMaxLinkages()).append('|');
+			sb.append(cfg.getMaxLinkages()).append('|');
+			sb.append(lgp.getRankLinkages()).append('|');
+			sb.append(cfg.getMaxCost()).append('|');
+			sb.append(cfg.isAllowSkippedWords() ? 'S' : '-');
+			sb.append(cfg.isStoreSense() ? 'W' : '-');
+			sb.append(cfg.isStoreConstituentString() ? 'C' : '-');
+			sb.append('|');
+		}
+		return sb;
+	}
+}
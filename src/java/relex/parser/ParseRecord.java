@@ -0,0 +1,466 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.feature.FeatureNode;
+import relex.feature.LinkView;
+import relex.feature.LinkableView;
+import relex.stats.SimpleTruthValue;
+
+/**
+ * ParseRecord holds the raw output of link-grammar for one sentence:
+ * for each linkage, the words, the links, the costs, and, if they
+ * were asked for, the disjuncts, senses and constituent string.  It
+ * is what LocalLGParser and RemoteLGParser extract from the parser,
+ * before any FeatureNode is made; toSentence() then builds the RelEx
+ * representation from it.
+ *
+ * Because a record is just data, it can be written out and read back
+ * (see ParseStore), and the Sentence rebuilt later without parsing
+ * again.
+ */
+public class ParseRecord
+{
+	private static final boolean verbosity = false;
+	private static final double min_score = -0.001;
+	private static final double score_bump = 0.001;
+
+	/** Bumped whenever the format written by writeTo() changes. */
+	static final int FORMAT_VERSION = 1;
+
+	/**
+	 * The raw data of one linkage.  Words are as link-grammar gave
+	 * them, walls and empty words included; link ends index them.
+	 */
+	public static class LinkageRecord
+	{
+		String[] words;
+		int[] linkLeft;
+		int[] linkRight;
+		String[] linkLLabel;
+		String[] linkRLabel;
+		String[] linkLabel;
+		String linkString;
+		String constituentString;
+		int disjunctCost;
+		int linkCost;
+		int numViolations;
+
+		/** Per non-empty word but the last; null if not loaded */
+		String[] disjuncts;
+		String[][] senses;
+		double[][] senseScores;
+
+		LinkageRecord(int numWords, int numLinks)
+		{
+			words = new String[numWords];
+			linkLeft = new int[numLinks];
+			linkRight = new int[numLinks];
+			linkLLabel = new String[numLinks];
+			linkRLabel = new String[numLinks];
+			linkLabel = new String[numLinks];
+		}
+
+		public int getNumWords()
+		{
+			return words.length;
+		}
+
+		public int getNumLinks()
+		{
+			return linkLeft.length;
+		}
+	}
+
+	String text;
+	int numSkippedWords;
+	int numLinkages;
+	ArrayList<LinkageRecord> linkages;
+
+	public ParseRecord(String text)
+	{
+		this.text = text;
+		numSkippedWords = 0;
+		numLinkages = 0;
+		linkages = new ArrayList<LinkageRecord>();
+	}
+
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * @return the linkages kept, which may be fewer than the parser
+	 *         found.
+	 */
+	public List<LinkageRecord> getLinkages()
+	{
+		return linkages;
+	}
+
+	/* ---------------------------------------------------------- */
+
+	/**
+	 * Build the RelEx representation of the parses.
+	 */
+	public Sentence toSentence()
+	{
+		Sentence sntc = new Sentence();
+		sntc.setSentence(text);
+		if (linkages.isEmpty())
+			return sntc;
+
+		// The words of the linkages are mostly the same, and so is
+		// where they are found in the text.
+		TokenAligner aligner = new TokenAligner(text);
+		HashMap<String,FeatureNode> skeleton = new HashMap<String,FeatureNode>();
+		ArrayList<ParsedSentence> parses = new ArrayList<ParsedSentence>();
+		for (LinkageRecord lkg : linkages)
+			parses.add(toParsedSentence(lkg, aligner, skeleton));
+
+		// The links go in only once all the words are made, since the
+		// words of one linkage are copied for the next.
+		for (int i = 0; i < parses.size(); i++)
+		{
+			LinkageRecord lkg = linkages.get(i);
+			ParsedSentence s = parses.get(i);
+			addLinkageStructure(s, lkg);
+			if (lkg.constituentString != null)
+				s.setPhraseString(lkg.constituentString);
+			if (verbosity) System.err.println("Built parse of: " + text);
+		}
+
+		sntc.setParses(parses);
+		sntc.setNumParses(numLinkages);
+		return sntc;
+	}
+
+	/**
+	 * Make the words of the linkage, and its meta data.  A word that
+	 * was already made for an earlier linkage, in the same place, is
+	 * copied from it: all but its links to other words are the same.
+	 *
+	 * @param skeleton the words made so far, by position in the
+	 *        sentence, place in the text, and word string.
+	 */
+	private ParsedSentence toParsedSentence(LinkageRecord lkg,
+	                                        TokenAligner aligner,
+	                                        HashMap<String,FeatureNode> skeleton)
+	{
+		ParsedSentence s = new ParsedSentence(text);
+		String[] words = lkg.words;
+		int numWords = words.length;
+		FeatureNode lastFN = null;
+		FeatureNode leftWall = null;
+		aligner.reset();
+
+		int skip_count = 0;
+		for (int w = 0; w < numWords; w++)
+		{
+			String wordString = words[w];
+
+			// In Russian, some words (suffixes) can be zero-length.
+			if (0 == wordString.length())
+			{
+				skip_count ++;
+				continue;
+			}
+
+			if (wordString.equals("RIGHT-WALL"))
+				continue;
+
+			int index = w - skip_count;
+			int startChar = aligner.align(wordString);
+			String key = index + " " + startChar + " " + wordString;
+			FeatureNode like = skeleton.get(key);
+			if (like != null)
+			{
+				FeatureNode fn = like.copyFeatures();
+				if (wordString.equals("LEFT-WALL")) leftWall = fn;
+				if (leftWall == null)
+					throw new RuntimeException("Invalid parse: " +
+						"first word is not left wall");
+				fn.set("this", fn);
+				fn.set("wall", leftWall);
+				LinkableView.setPrev(fn, lastFN);
+				if (lastFN != null)
+					LinkableView.setNext(lastFN, fn);
+				s.addWord(fn);
+				lastFN = fn;
+				continue;
+			}
+
+			FeatureNode fn = new FeatureNode();
+			if (wordString.equals("LEFT-WALL")) leftWall = fn;
+			// LEFT-WALL should always be first word, so throw an
+			// exception if it was not.
+			if (leftWall == null)
+				throw new RuntimeException("Invalid parse: " +
+					"first word is not left wall");
+
+			// Set the word and part-of-speech
+			LinkableView.setWordAndPos(fn, wordString);
+
+			// Create a feature "this" which points to the linkable
+			fn.set("this", fn);
+
+			// set "wall" to point to the left wall
+			fn.set("wall", leftWall);
+			if (lastFN != null)
+			{
+				LinkableView.setNext(lastFN, fn);
+				LinkableView.setPrev(fn, lastFN);
+			}
+
+			// XXX This should be removed, it really doesn't belong here.
+			if (Character.isUpperCase(wordString.charAt(0)))
+				LinkableView.setEntityFlag(fn);
+
+			s.addWord(fn);
+
+			// Add char-index information to the feature node
+			int endChar = (startChar >= 0 ? startChar + aligner.length(wordString) : -1);
+			LinkableView.setCharIndices(fn, startChar, endChar, index);
+			lastFN = fn;
+			skeleton.put(key, fn);
+		}
+
+		// A copied last word may have had a next one.
+		if (lastFN != null)
+			LinkableView.setNext(lastFN, null);
+
+		// set meta data
+		FeatureNode meta = new FeatureNode();
+		meta.set("num_skipped_words", new FeatureNode(Integer.toString(numSkippedWords)));
+		meta.set("disjunct_cost", new FeatureNode(Integer.toString(lkg.disjunctCost)));
+		meta.set("link_cost", new FeatureNode(Integer.toString(lkg.linkCost)));
+		meta.set("num_violations", new FeatureNode(Integer.toString(lkg.numViolations)));
+		s.setMetaData(meta);
+		return s;
+	}
+
+	private void addLinkageStructure(ParsedSentence s, LinkageRecord lkg)
+	{
+		// Russian sentences can have 'blank words' in them which we skip.
+		// That means that the count of actual non-empty words no longer
+		// matches the link-parser count.  Technically, this is a link-parser
+		// bug, but fixing it would require a major re-write of the parser.
+		boolean ignoreLast = false;  // true if last word is RIGHT-WALL
+		int skip_count = 0;
+		int[] skip_map = new int[lkg.words.length];
+		for (int w = 0; w < lkg.words.length; w++)
+		{
+			if (0 == lkg.words[w].length()) skip_count ++;
+			else if (lkg.words[w].equals("RIGHT-WALL")) ignoreLast = true;
+			skip_map[w] = w-skip_count;
+		}
+		int length = skip_map[skip_map.length-1] + 1;
+		if (lkg.linkString != null)
+			s.setLinkString(lkg.linkString);
+		for (int i = 0; i < lkg.linkLeft.length; i++)
+		{
+			int left = skip_map[lkg.linkLeft[i]];
+			int right = skip_map[lkg.linkRight[i]];
+			if (ignoreLast && (right == length - 1))
+				continue;
+
+			FeatureNode f = new FeatureNode();
+			LinkView.setLinkFeatures(f,
+					lkg.linkLLabel[i],
+					lkg.linkRLabel[i],
+					lkg.linkLabel[i],
+					s.getWordAsNode(left),
+					s.getWordAsNode(right)
+			);
+		}
+
+		if (lkg.disjuncts == null)
+			return;
+
+		for (int i = 0; i < lkg.disjuncts.length; i++)
+		{
+			// We'll hang disjunct and senses right off the word node.
+			FeatureNode f = s.getWordAsNode(i);
+			String dj = lkg.disjuncts[i];
+			if (dj != null)
+			{
+				f.set("DISJUNCT", new FeatureNode(dj));
+			}
+
+			// Get the total weight of all senses, for normalization.
+			String[] senses = lkg.senses[i];
+			double[] scores = lkg.senseScores[i];
+			double tot = 0.0;
+			for (int n = 0; n < senses.length; n++)
+			{
+				double score = scores[n];
+				if (score > min_score)
+				{
+					if (0.0 >= score) score = score_bump;
+					tot += score;
+				}
+			}
+
+			// Tag words with word-senses, Use truth values to store
+			// the weight (as a confidence value).
+			for (int n = 0; n < senses.length; n++)
+			{
+				double score = scores[n];
+				if (score > min_score)
+				{
+					if (0.0 >= score) score = score_bump;
+					SimpleTruthValue stv = new SimpleTruthValue(1.0, score/tot);
+					FeatureNode sns = new FeatureNode(senses[n]);
+					sns.setTruthValue(stv);
+					f.set("DISJUNCT"+n, sns);
+				}
+			}
+		}
+	}
+
+	/* ---------------------------------------------------------- */
+	/* Binary form, for ParseStore */
+
+	public void writeTo(DataOutput out) throws IOException
+	{
+		writeString(out, text);
+		out.writeInt(numSkippedWords);
+		out.writeInt(numLinkages);
+		out.writeInt(linkages.size());
+		for (LinkageRecord lkg : linkages)
+		{
+			out.writeInt(lkg.words.length);
+			for (String w : lkg.words)
+				writeString(out, w);
+			out.writeInt(lkg.linkLeft.length);
+			for (int i = 0; i < lkg.linkLeft.length; i++)
+			{
+				out.writeInt(lkg.linkLeft[i]);
+				out.writeInt(lkg.linkRight[i]);
+				writeString(out, lkg.linkLLabel[i]);
+				writeString(out, lkg.linkRLabel[i]);
+				writeString(out, lkg.linkLabel[i]);
+			}
+			writeString(out, lkg.linkString);
+			writeString(out, lkg.constituentString);
+			out.writeInt(lkg.disjunctCost);
+			out.writeInt(lkg.linkCost);
+			out.writeInt(lkg.numViolations);
+
+			if (lkg.disjuncts == null)
+			{
+				out.writeInt(-1);
+				continue;
+			}
+			out.writeInt(lkg.disjuncts.length);
+			for (int i = 0; i < lkg.disjuncts.length; i++)
+			{
+				writeString(out, lkg.disjuncts[i]);
+				out.writeInt(lkg.senses[i].length);
+				for (int n = 0; n < lkg.senses[i].length; n++)
+				{
+					writeString(out, lkg.senses[i][n]);
+					out.writeDouble(lkg.senseScores[i][n]);
+				}
+			}
+		}
+	}
+
+	public static ParseRecord readFrom(DataInput in) throws IOException
+	{
+		ParseRecord rec = new ParseRecord(readString(in));
+		rec.numSkippedWords = in.readInt();
+		rec.numLinkages = in.readInt();
+		int nl = in.readInt();
+		for (int k = 0; k < nl; k++)
+		{
+			String[] words = new String[in.readInt()];
+			for (int w = 0; w < words.length; w++)
+				words[w] = readString(in);
+			LinkageRecord lkg = new LinkageRecord(words.length, in.readInt());
+			lkg.words = words;
+			for (int i = 0; i < lkg.linkLeft.length; i++)
+			{
+				lkg.linkLeft[i] = in.readInt();
+				lkg.linkRight[i] = in.readInt();
+				lkg.linkLLabel[i] = readString(in);
+				lkg.linkRLabel[i] = readString(in);
+				lkg.linkLabel[i] = readString(in);
+			}
+			lkg.linkString = readString(in);
+			lkg.constituentString = readString(in);
+			lkg.disjunctCost = in.readInt();
+			lkg.linkCost = in.readInt();
+			lkg.numViolations = in.readInt();
+
+			int nd = in.readInt();
+			if (nd >= 0)
+			{
+				lkg.disjuncts = new String[nd];
+				lkg.senses = new String[nd][];
+				lkg.senseScores = new double[nd][];
+				for (int i = 0; i < nd; i++)
+				{
+					lkg.disjuncts[i] = readString(in);
+					int ns = in.readInt();
+					lkg.senses[i] = new String[ns];
+					lkg.senseScores[i] = new double[ns];
+					for (int n = 0; n < ns; n++)
+					{
+						lkg.senses[i][n] = readString(in);
+						lkg.senseScores[i][n] = in.readDouble();
+					}
+				}
+			}
+			rec.linkages.add(lkg);
+		}
+		return rec;
+	}
+
+	/**
+	 * Like writeUTF, but without the 64K limit (the link diagram of a
+	 * long sentence can exceed it), and allowing null.
+	 */
+	static void writeString(DataOutput out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static String readString(DataInput in) throws IOException
+	{
+		int len = in.readInt();
+		if (len < 0) return null;
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+}
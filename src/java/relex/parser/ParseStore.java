@@ -0,0 +1,428 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * ParseStore keeps ParseRecords on disk, so that a corpus, once
+ * parsed, can be run through RelEx again (with new rules, say) without
+ * parsing it again.  See ReplayParser.
+ *
+ * The store is a directory of segment files, parses-00000.seg and on.
+ * Records are only ever appended, to the last segment, until it grows
+ * past the segment size, when a new one is started.  Segments are read
+ * through memory maps; many threads may read at once.
+ *
+ * Each segment starts with a magic number and the format version; then
+ * come the records, each: its length, a CRC-32 of the rest, the 64-bit
+ * hash of the key, the key, and the ParseRecord.  The index, from key
+ * hash to record location, is held in memory only, and is rebuilt when
+ * the store is opened, by scanning the segments.  A record written
+ * later overrides one written earlier under the same key.
+ *
+ * Only the end of the last segment is ever being written, so only
+ * there can a crash leave a torn record; damaged data there is cut
+ * off.  A damaged record anywhere else is skipped, with a warning,
+ * and if the records that follow it cannot be found, the store is
+ * not opened.
+ */
+public class ParseStore implements Closeable
+{
+	public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+	private static final int MAGIC = 0x524c5850; // "RLXP"
+	private static final int FORMAT_VERSION = 2;
+	private static final int HEADER = 8;
+
+	/** Length, CRC and hash */
+	private static final int FRAME = 16;
+
+	private final File dir;
+	private final long segmentSize;
+	private final ArrayList<Segment> segments;
+
+	/**
+	 * Open-addressing hash table, from key hash to location, which is
+	 * the segment number in the top bits and the offset in the low 40.
+	 * A location of zero marks an empty slot; no record is at offset 0.
+	 */
+	private long[] hashes;
+	private long[] locations;
+	private int count;
+
+	public ParseStore(File dir) throws IOException
+	{
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public ParseStore(File dir, long segmentSize) throws IOException
+	{
+		// Segments are mapped whole, so must stay below 2GB.
+		if (segmentSize <= HEADER || segmentSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Bad segment size: " + segmentSize);
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		segments = new ArrayList<Segment>();
+		hashes = new long[1024];
+		locations = new long[1024];
+		count = 0;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create parse store " + dir);
+		for (int n = 0; ; n++)
+		{
+			File f = segmentFile(n);
+			if (!f.exists()) break;
+			segments.add(new Segment(n, f));
+		}
+		for (Segment seg : segments)
+			scan(seg, seg.number == segments.size() - 1);
+		if (segments.isEmpty())
+			segments.add(new Segment(0, segmentFile(0)));
+	}
+
+	public File getDirectory()
+	{
+		return dir;
+	}
+
+	private File segmentFile(int n)
+	{
+		String num = Integer.toString(n);
+		while (num.length() < 5) num = "0" + num;
+		return new File(dir, "parses-" + num + ".seg");
+	}
+
+	/**
+	 * Add the records of a segment to the index.  A record that fails
+	 * its CRC is skipped.  Data that cannot be read as records is cut
+	 * off at the end of the last segment, which is where a crash would
+	 * leave it; anywhere else, it is an error.
+	 *
+	 * @param last whether the segment is the one written to
+	 */
+	private void scan(Segment seg, boolean last) throws IOException
+	{
+		long size = seg.channel.size();
+		ByteBuffer buf = seg.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		long pos = HEADER;
+		long end = HEADER;
+		CRC32 crc = new CRC32();
+		byte[] body = new byte[256];
+		while (pos + FRAME <= size)
+		{
+			int len = buf.getInt((int) pos);
+			if (len < 8 || pos + 8 + len > size)
+				break;
+			buf.position((int) pos + 8);
+			if (body.length < len)
+				body = new byte[Math.max(len, 2 * body.length)];
+			buf.get(body, 0, len);
+			crc.reset();
+			crc.update(body, 0, len);
+			if ((int) crc.getValue() == buf.getInt((int) pos + 4))
+			{
+				index(buf.getLong((int) pos + 8), location(seg.number, pos));
+				end = pos + 8 + len;
+			}
+			else
+				System.err.println("Warning: Parse store " + seg.file +
+					": skipping a damaged record at " + pos);
+			pos += 8 + len;
+		}
+
+		// A damaged record at the very end of the last segment may
+		// well be the torn one; cut it off along with the rest.
+		if (!last)
+			end = pos;
+		if (end != size)
+		{
+			if (!last)
+				throw new IOException("Parse store " + seg.file +
+					": cannot read past " + pos + ", of " + size + " bytes");
+			System.err.println("Warning: Parse store " + seg.file +
+				": cutting off " + (size - end) + " bytes of damaged data");
+			seg.channel.truncate(end);
+		}
+		seg.size = end;
+	}
+
+	/* ---------------------------------------------------------- */
+
+	/**
+	 * @return the record stored under the key, or null if none.
+	 */
+	public ParseRecord get(String key) throws IOException
+	{
+		long hash = hash(key);
+		ByteBuffer buf;
+		int pos;
+		synchronized (this)
+		{
+			long loc = lookup(hash);
+			if (loc == 0) return null;
+			Segment seg = segments.get((int) (loc >>> 40));
+			pos = (int) (loc & ((1L << 40) - 1));
+			buf = seg.view(pos);
+		}
+
+		// Decode outside the lock; the view is our own.
+		DataInputStream in = new DataInputStream(new BufferInput(buf));
+		in.readInt();   // length
+		in.readInt();   // crc, checked when the segment was scanned
+		in.readLong();  // hash
+		if (!key.equals(ParseRecord.readString(in)))
+			return null;  // a hash collision
+		return ParseRecord.readFrom(in);
+	}
+
+	/**
+	 * Append the record, under the key.
+	 */
+	public void put(String key, ParseRecord rec) throws IOException
+	{
+		long hash = hash(key);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(bos);
+		out.writeLong(0);  // length and crc, filled in below
+		out.writeLong(hash);
+		ParseRecord.writeString(out, key);
+		rec.writeTo(out);
+		out.close();
+
+		byte[] bytes = bos.toByteArray();
+		int len = bytes.length - 8;
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 8, len);
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		buf.putInt(0, len);
+		buf.putInt(4, (int) crc.getValue());
+
+		synchronized (this)
+		{
+			Segment seg = segments.get(segments.size() - 1);
+			if (seg.size > HEADER && seg.size + bytes.length > segmentSize)
+			{
+				seg = new Segment(segments.size(), segmentFile(segments.size()));
+				segments.add(seg);
+			}
+			long pos = seg.size;
+			while (buf.hasRemaining())
+				seg.channel.write(buf, pos + buf.position());
+			seg.size += bytes.length;
+			index(hash, location(seg.number, pos));
+		}
+	}
+
+	/**
+	 * Force everything written so far out to disk.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		segments.get(segments.size() - 1).channel.force(false);
+	}
+
+	/**
+	 * @return the number of distinct keys in the store.
+	 */
+	public synchronized int size()
+	{
+		return count;
+	}
+
+	public synchronized void close() throws IOException
+	{
+		flush();
+		for (Segment seg : segments)
+			seg.file_handle.close();
+	}
+
+	public String toString()
+	{
+		return "ParseStore: " + dir + ", " + size() + " parses in " +
+			segments.size() + " segment(s)";
+	}
+
+	/* ---------------------------------------------------------- */
+	/* The index */
+
+	private static long location(int segment, long pos)
+	{
+		return (((long) segment) << 40) | pos;
+	}
+
+	/**
+	 * 64-bit FNV-1a, over the chars of the key.
+	 */
+	static long hash(String key)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++)
+		{
+			char c = key.charAt(i);
+			h ^= (c & 0xff);
+			h *= 0x100000001b3L;
+			h ^= (c >>> 8);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private long lookup(long hash)
+	{
+		int mask = hashes.length - 1;
+		for (int i = (int) (hash ^ (hash >>> 32)) & mask; locations[i] != 0; i = (i + 1) & mask)
+			if (hashes[i] == hash)
+				return locations[i];
+		return 0;
+	}
+
+	private void index(long hash, long loc)
+	{
+		if (2 * (count + 1) > hashes.length)
+		{
+			long[] oldHashes = hashes;
+			long[] oldLocations = locations;
+			hashes = new long[2 * oldHashes.length];
+			locations = new long[2 * oldHashes.length];
+			count = 0;
+			for (int i = 0; i < oldHashes.length; i++)
+				if (oldLocations[i] != 0)
+					index(oldHashes[i], oldLocations[i]);
+		}
+		int mask = hashes.length - 1;
+		int i = (int) (hash ^ (hash >>> 32)) & mask;
+		while (locations[i] != 0 && hashes[i] != hash)
+			i = (i + 1) & mask;
+		if (locations[i] == 0)
+			count++;
+		hashes[i] = hash;
+		locations[i] = loc;
+	}
+
+	/* ---------------------------------------------------------- */
+
+	/**
+	 * One segment file, its channel, and a read-only map of it, which
+	 * is made again whenever a record past its end is wanted.
+	 */
+	private static final class Segment
+	{
+		final int number;
+		final File file;
+		final RandomAccessFile file_handle;
+		final FileChannel channel;
+		long size;
+		MappedByteBuffer map;
+
+		Segment(int number, File file) throws IOException
+		{
+			this.number = number;
+			this.file = file;
+			boolean exists = file.exists() && file.length() >= HEADER;
+			file_handle = new RandomAccessFile(file, "rw");
+			channel = file_handle.getChannel();
+			ByteBuffer hdr = ByteBuffer.allocate(HEADER);
+			if (exists)
+			{
+				channel.read(hdr, 0);
+				hdr.flip();
+				if (hdr.getInt() != MAGIC || hdr.getInt() != FORMAT_VERSION)
+				{
+					file_handle.close();
+					throw new IOException("Not a parse store segment, or " +
+						"written by a different version: " + file);
+				}
+			}
+			else
+			{
+				channel.truncate(0);
+				hdr.putInt(MAGIC);
+				hdr.putInt(FORMAT_VERSION);
+				hdr.flip();
+				channel.write(hdr, 0);
+			}
+			size = HEADER;
+		}
+
+		/**
+		 * @return a buffer of its own, positioned at pos.
+		 */
+		ByteBuffer view(int pos) throws IOException
+		{
+			if (map == null || map.capacity() <= pos)
+				map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer buf = map.duplicate();
+			buf.position(pos);
+			return buf;
+		}
+	}
+
+	/**
+	 * An InputStream over a ByteBuffer, so that records can be decoded
+	 * straight out of the map.
+	 */
+	private static final class BufferInput extends InputStream
+	{
+		private final ByteBuffer buf;
+
+		BufferInput(ByteBuffer buf)
+		{
+			this.buf = buf;
+		}
+
+		public int read()
+		{
+			if (!buf.hasRemaining()) return -1;
+			return buf.get() & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len)
+		{
+			if (!buf.hasRemaining()) return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+	}
+
+	/**
+	 * Print what is in a store.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length != 1)
+		{
+			System.err.println("Usage: ParseStore directory");
+			System.exit(1);
+		}
+		ParseStore store = new ParseStore(new File(args[0]));
+		System.out.println(store);
+		store.close();
+	}
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import relex.Sentence;
+
+/**
+ * PooledRemoteLGParser spreads sentences over several link-grammar
+ * servers.  Each parse goes to the server with the least expected
+ * wait: the number of requests it has in flight, plus one, times its
+ * average response time.  A server that fails EJECT_AFTER times in a
+ * row is left out for a while, starting at a second and doubling, up
+ * to a minute, on every further failure; after that, it is tried
+ * again, and taken back on its first success.  A parse that fails is
+ * tried on another server, until each has had a go.
+ *
+ * The link-grammar server answers one request per connection, and
+ * then closes it, so requests cannot be pipelined, nor connections
+ * kept open; what is pooled are the RemoteLGParser clients, a few per
+ * server, reused from parse to parse.
+ *
+ * This parser is thread-safe.
+ */
+public class PooledRemoteLGParser extends LGParser
+{
+	/** Failures in a row before a server is left out */
+	public static final int EJECT_AFTER = 3;
+
+	private static final long MIN_BACKOFF_MILLIS = 1000;
+	private static final long MAX_BACKOFF_MILLIS = 60000;
+
+	/** Weight of the newest response time in the running average */
+	private static final double ALPHA = 0.2;
+
+	private final ArrayList<Endpoint> endpoints;
+	private int next;
+
+	public PooledRemoteLGParser()
+	{
+		endpoints = new ArrayList<Endpoint>();
+		next = 0;
+	}
+
+	public synchronized void addEndpoint(String host, int port)
+	{
+		endpoints.add(new Endpoint(host, port));
+	}
+
+	/**
+	 * Add endpoints given as host:port strings.
+	 */
+	public void addEndpoints(String[] hostPorts)
+	{
+		for (String hp : hostPorts)
+		{
+			String[] s = hp.split(":");
+			addEndpoint(s[0].trim(), Integer.parseInt(s[1].trim()));
+		}
+	}
+
+	public Sentence parse(String sentence) throws ParseException
+	{
+		return parseRecord(sentence).toSentence();
+	}
+
+	public ParseRecord parseRecord(String sentence) throws ParseException
+	{
+		return parseRecord(sentence, Long.MAX_VALUE);
+	}
+
+	/**
+	 * The deadline is passed on to the server; no other server is
+	 * tried once it has passed.
+	 */
+	public ParseRecord parseRecord(String sentence, long deadline) throws ParseException
+	{
+		ArrayList<Endpoint> tried = new ArrayList<Endpoint>();
+		Throwable last = null;
+		while (tried.isEmpty() || System.currentTimeMillis() < deadline)
+		{
+			Endpoint ep = choose(tried);
+			if (ep == null)
+				break;
+			tried.add(ep);
+
+			RemoteLGParser client = ep.take();
+			client.setConfig(_config);
+			client.getLinkGrammarClient().setConfig(_config);
+			client.setRankLinkages(_rank_linkages);
+			ep.inFlight.incrementAndGet();
+			long start = System.currentTimeMillis();
+			try
+			{
+				ParseRecord rec = (deadline == Long.MAX_VALUE) ?
+					client.parseRecord(sentence) :
+					client.parseRecord(sentence, deadline);
+				if (rec != null)
+				{
+					ep.succeeded(System.currentTimeMillis() - start);
+					ep.give(client);
+					return rec;
+				}
+				last = null;
+			}
+			catch (ParseException e)
+			{
+				if (e.getCause() instanceof InterruptedException)
+				{
+					ep.give(client);
+					throw e;
+				}
+				last = e.getCause();
+			}
+			finally
+			{
+				ep.inFlight.decrementAndGet();
+			}
+			ep.failed();
+			ep.give(client);
+		}
+		if (tried.isEmpty())
+			throw new ParseException("No link-grammar servers");
+		throw new ParseException("All link-grammar servers failed: " + sentence, last);
+	}
+
+	/**
+	 * @return the endpoint to try next, or null if all have been tried.
+	 */
+	private synchronized Endpoint choose(ArrayList<Endpoint> tried)
+	{
+		long now = System.currentTimeMillis();
+		Endpoint best = null;
+		double bestWait = 0;
+		Endpoint soonest = null;
+		int n = endpoints.size();
+		for (int i = 0; i < n; i++)
+		{
+			// Start at a different one each time, to spread ties.
+			Endpoint ep = endpoints.get((next + i) % n);
+			if (tried.contains(ep))
+				continue;
+			if (ep.ejectedUntil > now)
+			{
+				if (soonest == null || ep.ejectedUntil < soonest.ejectedUntil)
+					soonest = ep;
+				continue;
+			}
+			double wait = (ep.inFlight.get() + 1) * Math.max(ep.latency, 1.0);
+			if (best == null || wait < bestWait)
+			{
+				best = ep;
+				bestWait = wait;
+			}
+		}
+		if (n > 0) next = (next + 1) % n;
+
+		// If every server is out, try the one due back first anyway.
+		return (best != null) ? best : soonest;
+	}
+
+	public String getVersion()
+	{
+		Endpoint ep = choose(new ArrayList<Endpoint>());
+		if (ep == null)
+			throw new ParseException("No link-grammar servers");
+		RemoteLGParser client = ep.take();
+		try
+		{
+			return client.getVersion();
+		}
+		finally
+		{
+			ep.give(client);
+		}
+	}
+
+	public synchronized String toString()
+	{
+		StringBuffer sb = new StringBuffer("PooledRemoteLGParser: ");
+		sb.append(endpoints.size()).append(" servers");
+		for (Endpoint ep : endpoints)
+			sb.append("\n").append(ep);
+		return sb.toString();
+	}
+
+	/* ---------------------------------------------------------- */
+
+	/**
+	 * One server, its idle clients, and how it has been doing.
+	 */
+	private static final class Endpoint
+	{
+		final String host;
+		final int port;
+		final ConcurrentLinkedQueue<RemoteLGParser> clients;
+		final AtomicInteger inFlight;
+
+		// Guarded by this
+		volatile double latency;
+		int failuresInARow;
+		long backoff;
+		volatile long ejectedUntil;
+		int requests;
+		int failures;
+		int ejections;
+
+		Endpoint(String host, int port)
+		{
+			this.host = host;
+			this.port = port;
+			clients = new ConcurrentLinkedQueue<RemoteLGParser>();
+			inFlight = new AtomicInteger();
+			latency = 0;
+			failuresInARow = 0;
+			backoff = MIN_BACKOFF_MILLIS;
+			ejectedUntil = 0;
+		}
+
+		RemoteLGParser take()
+		{
+			RemoteLGParser client = clients.poll();
+			if (client == null)
+			{
+				client = new RemoteLGParser();
+				client.getLinkGrammarClient().setHostname(host);
+				client.getLinkGrammarClient().setPort(port);
+			}
+			return client;
+		}
+
+		void give(RemoteLGParser client)
+		{
+			clients.add(client);
+		}
+
+		synchronized void succeeded(long millis)
+		{
+			requests++;
+			latency = (latency == 0) ? millis : (1 - ALPHA) * latency + ALPHA * millis;
+			failuresInARow = 0;
+			backoff = MIN_BACKOFF_MILLIS;
+			ejectedUntil = 0;
+		}
+
+		synchronized void failed()
+		{
+			requests++;
+			failures++;
+			failuresInARow++;
+			if (failuresInARow < EJECT_AFTER)
+				return;
+			ejections++;
+			ejectedUntil = System.currentTimeMillis() + backoff;
+			System.err.println("Warning: link-grammar server " + host + ":" +
+				port + " left out for " + backoff + " ms after " +
+				failuresInARow + " failures");
+			backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+		}
+
+		public synchronized String toString()
+		{
+			boolean out = ejectedUntil > System.currentTimeMillis();
+			return host + ":" + port + (out ? " (left out)" : "") +
+				" requests=" + requests + " failures=" + failures +
+				" ejections=" + ejections + " in-flight=" + inFlight.get() +
+				" latency=" + Math.round(latency) + "ms";
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length < 2)
+		{
+			System.out.println("Syntax: PooledRemoteLGParser sentence host:port ...");
+			System.exit(-1);
+		}
+		PooledRemoteLGParser parser = new PooledRemoteLGParser();
+		for (int i = 1; i < args.length; i++)
+		{
+			String[] hostPort = args[i].split(":");
+			parser.addEndpoint(hostPort[0].trim(), Integer.parseInt(hostPort[1].trim()));
+		}
+		parser.getConfig().setAllowSkippedWords(true);
+		Sentence sntc = parser.parse(args[0]);
+		System.out.println("FOUND " + sntc.getParses().size() + " sentence(s)");
+		System.out.println(parser);
+	}
+}
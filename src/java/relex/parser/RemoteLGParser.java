@@ -16,158 +16,218 @@
 
 package relex.parser;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.linkgrammar.*;
 
 import relex.ParsedSentence;
 import relex.Sentence;
-import relex.feature.FeatureNode;
-import relex.feature.LinkView;
-import relex.feature.LinkableView;
 
+/**
+ * RemoteLGParser parses with a link-grammar server.  The server's
+ * host, port and settings are those of the LGRemoteClient.
+ *
+ * By default, the parser talks to the server itself, and decodes its
+ * JSON reply with an LGReplyReader, as it comes in, straight into a
+ * ParseRecord.  With setStreaming(false), the LGRemoteClient is used
+ * instead, which reads the whole reply, decodes it into maps and
+ * lists, and then into a ParseResult, before the ParseRecord is made.
+ *
+ * The parser may be shared by threads; each has its own LGReplyReader.
+ * The LGRemoteClient, and its config, must not be changed meanwhile.
+ */
 public class RemoteLGParser extends LGParser
 {
+	/** How long past its time limit the server is waited for */
+	private static final int SLACK_SECONDS = 10;
+
 	private LGRemoteClient linkGrammarClient = new LGRemoteClient();
+	private boolean streaming = true;
+	private final ThreadLocal<LGReplyReader> replyReader = new ThreadLocal<LGReplyReader>()
+	{
+		protected LGReplyReader initialValue()
+		{
+			return new LGReplyReader();
+		}
+	};
 
-	private Sentence parseResultToSentence(ParseResult parseResult)
+	private ParseRecord toParseRecord(ParseResult parseResult)
 	{
-		Sentence sntc = new Sentence();
-		sntc.setSentence(parseResult.getText());
+		ParseRecord rec = new ParseRecord(parseResult.getText());
 
 		if (parseResult.getLinkages().isEmpty() ||
 			!_config.isAllowSkippedWords() && parseResult.getNumSkippedWords() > 0)
-			return sntc;
-
-		String lowerCaseText = parseResult.getText().toLowerCase();
+			return rec;
 
-		for (Linkage linkage : parseResult)
+		rec.numSkippedWords = parseResult.getNumSkippedWords();
+		for (Linkage linkage : parseResult.getLinkages())
 		{
-			ParsedSentence parsedSentence = new ParsedSentence(parseResult.getText());
-			parsedSentence.setSentence(sntc);
-			sntc.getParses().add(parsedSentence);
-
-			boolean ignoreLast = false;
-			FeatureNode lastFN = null;
-			FeatureNode leftWall = null;
+			int numWords = linkage.getLinkedWordCount();
+			ParseRecord.LinkageRecord lkg =
+				new ParseRecord.LinkageRecord(numWords, linkage.getLinks().size());
+			for (int w = 0; w < numWords; w++)
+				lkg.words[w] = linkage.wordAt(w);
 
-			int startChar = 0;
-			HashMap<String,Integer> timesTokenSeen = new HashMap<String,Integer>();
-			for (int w = 0; w < linkage.getLinkedWordCount(); w++)
+			int l = 0;
+			for (Link link : linkage)
 			{
-				String wordString = linkage.wordAt(w);
-
-				if (wordString.equals("RIGHT-WALL"))
-				{
-					ignoreLast = true;
-				}
-				else
-				{
-					LinkableView fnv = new LinkableView(new FeatureNode());
-					if (wordString.equals("LEFT-WALL")) leftWall = fnv.fn();
-					// LEFT-WALL should always be first word, so throw an
-					// exception if it was not.
-					if (leftWall == null)
-						throw new RuntimeException("Invalid parse: " +
-							"first word is not left wall");
-
-					// set the word and part-of-speach
-					fnv.setWordAndPos(wordString);
-
-					// create a feature "this" which points to the linkable
-					fnv.fn().set("this", fnv.fn());
-
-					// set "wall" to point to the left wall
-					fnv.fn().set("wall", leftWall);
-					if (lastFN != null)
-					{
-						LinkableView.setNext(lastFN, fnv.fn());
-						fnv.setPrev(lastFN);
-					}
-
-					// XXX This should be removed, it really doesn't belong here.
-					if (Character.isUpperCase(wordString.charAt(0)))
-						fnv.setEntityFlag();
-
-					parsedSentence.addWord(fnv.fn());
-
-					//
-					// Add char-index information to the feature node
-					//
-					// Boris: I don't quite understand this code which is copied over previous
-					// version of this class. In case of skipped words, how are you going to get the
-					// character index right? Need to know which words exactly have been skipped.
-					String tokenString = linkage.wordAt(w).toLowerCase(); // normalize cases
-
-					Integer timesSeenInt = timesTokenSeen.get(tokenString);
-					int timesSeen = (timesSeenInt == null ? 0 : timesSeenInt.intValue());
-
-					// "x<=" means we will do at least once
-					for (int x = 0; x <= timesSeen; x++)
-					{
-						startChar = lowerCaseText.indexOf(tokenString,startChar);
-					}
-
-					timesTokenSeen.put(tokenString, new Integer(timesSeen + 1));
-					int endChar = (startChar >= 0 ? startChar + tokenString.length() : -1);
-					// System.out.println("INFO IS " + startChar + "," + endChar);
-					fnv.setCharIndices(startChar, endChar, w);
-
-					// Increment index to start looking for next tokenString
-					// after the current one. Use "max" to prevent decreasing
-					// index in the case the tokenString end is -1
-					startChar = Math.max(startChar, endChar);
-					lastFN = fnv.fn();
-				}
+				lkg.linkLeft[l] = link.getLeft();
+				lkg.linkRight[l] = link.getRight();
+				lkg.linkLLabel[l] = link.getLeftLabel();
+				lkg.linkRLabel[l] = link.getRightLabel();
+				lkg.linkLabel[l] = link.getLabel();
+				l++;
 			}
-
-			for (Link link : linkage)
-				if (!ignoreLast || link.getRight() != linkage.getLinkedWordCount() - 1)
-				{
-					FeatureNode fn = new FeatureNode();
-					LinkView.setLinkFeatures(fn,
-							link.getLeftLabel(),
-							link.getRightLabel(),
-							link.getLabel(),
-							parsedSentence.getWordAsNode(link.getLeft()),
-							parsedSentence.getWordAsNode(link.getRight())
-					);
-				}
-
-			parsedSentence.setPhraseString(linkage.getConstituentString());
-
-			// set meta data
-			FeatureNode meta = new FeatureNode();
-			meta.set("num_skipped_words", new FeatureNode(Integer.toString(parseResult.getNumSkippedWords())));
-			meta.set("disjunct_cost", new FeatureNode(Integer.toString(linkage.getDisjunctCost())));
-			meta.set("link_cost", new FeatureNode(Integer.toString(linkage.getLinkCost())));
-			meta.set("num_violations", new FeatureNode(Integer.toString(linkage.getNumViolations())));
-			parsedSentence.setMetaData(meta);
+			lkg.constituentString = linkage.getConstituentString();
+			lkg.disjunctCost = linkage.getDisjunctCost();
+			lkg.linkCost = linkage.getLinkCost();
+			lkg.numViolations = linkage.getNumViolations();
+			rec.linkages.add(lkg);
 		}
-		return sntc;
+		return selectLinkages(rec);
+	}
+
+	/**
+	 * Keep the linkages to build, in order: all of them, unless
+	 * ranking is on.  numLinkages is the number there were.
+	 */
+	private ParseRecord selectLinkages(ParseRecord rec)
+	{
+		List<ParseRecord.LinkageRecord> all = rec.linkages;
+		if (all.isEmpty() ||
+			!_config.isAllowSkippedWords() && rec.numSkippedWords > 0)
+			return new ParseRecord(rec.getText());
+
+		rec.numLinkages = all.size();
+		if (_rank_linkages <= 0)
+			return rec;
+
+		int n = Math.min(all.size(), Math.max(_rank_linkages, _config.getMaxLinkages()));
+		double[] rank = new double[n];
+		for (int i = 0; i < n; i++)
+			rank[i] = ParsedSentence.simpleRank(rec.numSkippedWords,
+				all.get(i).disjunctCost, all.get(i).linkCost);
+
+		ArrayList<ParseRecord.LinkageRecord> top = new ArrayList<ParseRecord.LinkageRecord>();
+		for (int i : best(rank, n, _config.getMaxLinkages()))
+			top.add(all.get(i));
+		rec.linkages = top;
+		return rec;
 	}
 
 	// @Override
 	public Sentence parse(String sentence)
+	{
+		ParseRecord rec = parseRecord(sentence);
+		if (rec == null)
+			return null;
+		return rec.toSentence();
+	}
+
+	/**
+	 * @return the raw parse, or null if the server gave no answer.
+	 */
+	public ParseRecord parseRecord(String sentence)
+	{
+		return parseRecord(sentence, linkGrammarClient);
+	}
+
+	private ParseRecord parseRecord(String sentence, LGRemoteClient client)
 	{
 		try
 		{
-			ParseResult parseResult = linkGrammarClient.parse(sentence);
+			if (streaming)
+				return selectLinkages(call(sentence, client));
+
+			ParseResult parseResult = client.parse(sentence);
 			if (parseResult == null)
 				return null;
 			parseResult.setText(sentence);
-			return parseResultToSentence(parseResult);
+			return toParseRecord(parseResult);
 		}
 		catch (InterruptedException ex)
 		{
 			throw new ParseException("Thread interrupted.", ex);
 		}
+		catch (ClosedByInterruptException ex)
+		{
+			throw new ParseException("Thread interrupted.",
+				new InterruptedException(ex.getMessage()));
+		}
 		catch (Throwable t)
 		{
 			throw new ParseException(sentence, t);
 		}
 	}
 
+	/**
+	 * The deadline is passed on to the server, as its time limit.  The
+	 * call goes through a client of its own, with the limit in its
+	 * config, so that other threads keep theirs.
+	 */
+	public ParseRecord parseRecord(String sentence, long deadline)
+	{
+		LGRemoteClient client = linkGrammarClient;
+		int max = client.getConfig().getMaxParseSeconds();
+		int seconds = secondsLeft(deadline, max);
+		if (seconds == max)
+			return parseRecord(sentence, client);
+
+		LGConfig limited = copyConfig(client.getConfig());
+		limited.setMaxParseSeconds(seconds);
+		LGRemoteClient once = new LGRemoteClient();
+		once.setHostname(client.getHostname());
+		once.setPort(client.getPort());
+		once.setConfig(limited);
+		return parseRecord(sentence, once);
+	}
+
+	/**
+	 * Send the sentence to the server, and read back its parses, all
+	 * of them.  The socket is opened through a channel, so that an
+	 * interrupt stops the wait.
+	 */
+	private ParseRecord call(String sentence, LGRemoteClient client) throws IOException
+	{
+		LGConfig config = client.getConfig();
+		StringBuilder msg = new StringBuilder(sentence.length() + 200);
+		msg.append("maxLinkages:").append(config.getMaxLinkages());
+		msg.append(",maxParseSeconds:").append(config.getMaxParseSeconds());
+		msg.append(",maxCost:").append(config.getMaxCost());
+		msg.append(",allowSkippedWords:").append(config.isAllowSkippedWords());
+		msg.append(",storeConstituentString:").append(config.isStoreConstituentString());
+		msg.append(",storeDiagramString:").append(config.isStoreDiagramString());
+		msg.append(",storeSense:").append(config.isStoreSense());
+		msg.append(",text:").append(sentence.replace('\n', ' ')).append('\n');
+
+		SocketChannel channel = SocketChannel.open();
+		try
+		{
+			Socket socket = channel.socket();
+			socket.connect(new InetSocketAddress(client.getHostname(),
+				client.getPort()));
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(1000 * (config.getMaxParseSeconds() + SLACK_SECONDS));
+			OutputStream out = socket.getOutputStream();
+			out.write(msg.toString().getBytes("UTF-8"));
+			out.flush();
+			LGReplyReader reader = replyReader.get();
+			reader.reset(socket.getInputStream());
+			return reader.read(sentence);
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
 	@Override
 	public String getVersion()
 	{
@@ -184,6 +244,19 @@ public class RemoteLGParser extends LGParser
 		this.linkGrammarClient = linkGrammarClient;
 	}
 
+	public boolean isStreaming()
+	{
+		return streaming;
+	}
+
+	/**
+	 * @param streaming false to go through the LGRemoteClient.
+	 */
+	public void setStreaming(boolean streaming)
+	{
+		this.streaming = streaming;
+	}
+
 	public static void main(String[] args)
 	{
 		if (args.length != 2)
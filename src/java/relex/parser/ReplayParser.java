@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import relex.Sentence;
+
+/**
+ * ReplayParser rebuilds sentences from the parses kept in a ParseStore,
+ * and parses, with an LGParser, only those it does not find there;
+ * these are then added to the store.  The first run over a corpus thus
+ * records it, and every later run replays it, with no parsing at all.
+ *
+ * Parses are stored under the same key as CachingParser uses, so that
+ * a store is only ever replayed with the parser settings it was made
+ * with.  In replay-only mode, a sentence that is not in the store is
+ * an error.
+ *
+ * ReplayParser is thread-safe if its LGParser is.
+ */
+public class ReplayParser implements IBatchParser
+{
+	private final ParseStore store;
+	private final LGParser parser;
+	private boolean replayOnly;
+
+	private final AtomicLong replayed = new AtomicLong();
+	private final AtomicLong recorded = new AtomicLong();
+
+	/**
+	 * @param parser used for its settings, and to parse what is not
+	 *               in the store.
+	 */
+	public ReplayParser(ParseStore store, LGParser parser)
+	{
+		this.store = store;
+		this.parser = parser;
+		replayOnly = false;
+	}
+
+	public ParseStore getStore()
+	{
+		return store;
+	}
+
+	public LGParser getParser()
+	{
+		return parser;
+	}
+
+	/**
+	 * If set, sentences not found in the store are not parsed; a
+	 * ParseException is thrown for them instead.
+	 */
+	public void setReplayOnly(boolean replayOnly)
+	{
+		this.replayOnly = replayOnly;
+	}
+
+	public boolean isReplayOnly()
+	{
+		return replayOnly;
+	}
+
+	public Sentence parse(String text) throws ParseException
+	{
+		String key = ParseKey.of(parser, text);
+		Sentence sntc = replay(key, text);
+		if (sntc != null)
+			return sntc;
+
+		if (replayOnly)
+			throw new ParseException("Not in parse store: " + text);
+
+		ParseRecord rec = parser.parseRecord(text);
+		if (rec == null)
+			return null;
+		record(key, rec);
+		return rec.toSentence();
+	}
+
+	/**
+	 * The sentences found in the store are replayed as by parse();
+	 * the others are passed on to the LGParser, in one batch.
+	 */
+	public List<Sentence> parseBatch(List<String> texts)
+	{
+		int n = texts.size();
+		String[] keys = new String[n];
+		ArrayList<Sentence> out = new ArrayList<Sentence>(n);
+		ArrayList<String> missed = new ArrayList<String>();
+		for (int i = 0; i < n; i++)
+		{
+			String text = texts.get(i);
+			Sentence sntc = null;
+			try
+			{
+				keys[i] = ParseKey.of(parser, text);
+				sntc = replay(keys[i], text);
+				if (sntc == null && !replayOnly)
+					missed.add(text);
+				else if (sntc == null)
+					System.err.println("Error: Not in parse store: " + text);
+			}
+			catch (RuntimeException e)
+			{
+				LGParser.reportFailure(text, e);
+				keys[i] = null;
+			}
+			out.add(sntc);
+		}
+		if (missed.isEmpty())
+			return out;
+
+		Iterator<ParseRecord> parsed = parser.parseRecords(missed).iterator();
+		for (int i = 0; i < n; i++)
+		{
+			if (out.get(i) != null || keys[i] == null)
+				continue;
+			ParseRecord rec = parsed.next();
+			if (rec == null)
+				continue;
+			record(keys[i], rec);
+			out.set(i, rec.toSentence());
+		}
+		return out;
+	}
+
+	/**
+	 * @return the sentence rebuilt from the store, or null if it is
+	 *         not there.
+	 */
+	private Sentence replay(String key, String text)
+	{
+		ParseRecord rec;
+		try
+		{
+			rec = store.get(key);
+		}
+		catch (IOException e)
+		{
+			throw new ParseException("Cannot read parse store", e);
+		}
+		if (rec == null)
+			return null;
+		replayed.incrementAndGet();
+		// Same key, but the whitespace may differ; the character
+		// offsets must be those of this text.
+		rec.text = text;
+		return rec.toSentence();
+	}
+
+	private void record(String key, ParseRecord rec)
+	{
+		try
+		{
+			store.put(key, rec);
+			recorded.incrementAndGet();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Warning: Cannot record parse: " + e);
+		}
+	}
+
+	/**
+	 * @return the number of sentences rebuilt from the store.
+	 */
+	public long getReplayedCount()
+	{
+		return replayed.get();
+	}
+
+	/**
+	 * @return the number of sentences parsed and added to the store.
+	 */
+	public long getRecordedCount()
+	{
+		return recorded.get();
+	}
+
+	public String toString()
+	{
+		return "ReplayParser: replayed=" + getReplayedCount() +
+			" recorded=" + getRecordedCount() + "; " + store;
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.HashMap;
+
+/**
+ * TokenAligner finds the character offsets of the words of a parse in
+ * the sentence text.  Each word is looked for, ignoring case, from the
+ * end of the word before it.  If it is not found there, but has been
+ * seen earlier in the same linkage, its first occurrence is taken;
+ * otherwise, its offsets are -1, and the search for the next word
+ * starts over from the beginning of the text.  (Words that carry a
+ * subscript, such as "cat.n", are not found.)
+ *
+ * One aligner serves all the linkages of a sentence.  The occurrences
+ * of each distinct word are found with a single scan of the text, the
+ * first time the word is asked for, and remembered; after that, each
+ * lookup is a binary search.  Call reset() at the start of every
+ * linkage.
+ */
+class TokenAligner
+{
+	private static final int[] NONE = new int[0];
+
+	/** The sentence, lower-cased */
+	private final String text;
+
+	/** Word as given, to token number; "The" and "the" are one token */
+	private final HashMap<String,Integer> words;
+	private final HashMap<String,Integer> tokens;
+
+	/** Per token: its length, where it occurs, and if seen yet */
+	private int[] lengths;
+	private int[][] occurrences;
+	private boolean[] seen;
+	private int numTokens;
+
+	/** Where to look for the next word */
+	private int from;
+
+	TokenAligner(String sentence)
+	{
+		text = sentence.toLowerCase();
+		words = new HashMap<String,Integer>();
+		tokens = new HashMap<String,Integer>();
+		lengths = new int[16];
+		occurrences = new int[16][];
+		seen = new boolean[16];
+		numTokens = 0;
+		from = 0;
+	}
+
+	/**
+	 * Start on the words of another linkage.
+	 */
+	void reset()
+	{
+		for (int i = 0; i < numTokens; i++)
+			seen[i] = false;
+		from = 0;
+	}
+
+	/**
+	 * @return the offset of the next word in the text, or -1 if it
+	 *         could not be found.  The word ends at that offset plus
+	 *         length(word).
+	 */
+	int align(String word)
+	{
+		int t = token(word);
+		int[] occ = occurrences[t];
+		int start = next(occ, from);
+		if (start < 0 && seen[t])
+			start = next(occ, 0);
+		seen[t] = true;
+
+		from = (start >= 0) ? start + lengths[t] : -1;
+		return start;
+	}
+
+	/**
+	 * @return the length of the word, as it is matched.
+	 */
+	int length(String word)
+	{
+		return lengths[token(word)];
+	}
+
+	private int token(String word)
+	{
+		Integer t = words.get(word);
+		if (t != null)
+			return t.intValue();
+
+		String tok = word.toLowerCase();
+		t = tokens.get(tok);
+		if (t == null)
+		{
+			t = new Integer(addToken(tok));
+			tokens.put(tok, t);
+		}
+		words.put(word, t);
+		return t.intValue();
+	}
+
+	private int addToken(String tok)
+	{
+		if (numTokens == lengths.length)
+		{
+			int n = 2 * numTokens;
+			int[] l = new int[n];
+			int[][] o = new int[n][];
+			boolean[] s = new boolean[n];
+			System.arraycopy(lengths, 0, l, 0, numTokens);
+			System.arraycopy(occurrences, 0, o, 0, numTokens);
+			System.arraycopy(seen, 0, s, 0, numTokens);
+			lengths = l;
+			occurrences = o;
+			seen = s;
+		}
+		lengths[numTokens] = tok.length();
+		occurrences[numTokens] = find(tok);
+		seen[numTokens] = false;
+		return numTokens++;
+	}
+
+	/**
+	 * @return the offsets of all occurrences of the token, overlapping
+	 *         ones included, in increasing order.
+	 */
+	private int[] find(String tok)
+	{
+		int p = text.indexOf(tok);
+		if (p < 0)
+			return NONE;
+		int[] occ = new int[4];
+		int n = 0;
+		while (p >= 0)
+		{
+			if (n == occ.length)
+			{
+				int[] grown = new int[2 * n];
+				System.arraycopy(occ, 0, grown, 0, n);
+				occ = grown;
+			}
+			occ[n++] = p;
+			p = text.indexOf(tok, p + 1);
+		}
+		int[] exact = new int[n];
+		System.arraycopy(occ, 0, exact, 0, n);
+		return exact;
+	}
+
+	/**
+	 * @return the first occurrence at or after the offset, or -1.
+	 */
+	private static int next(int[] occ, int offset)
+	{
+		int lo = 0;
+		int hi = occ.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (occ[mid] < offset) lo = mid + 1;
+			else hi = mid;
+		}
+		return (lo < occ.length) ? occ[lo] : -1;
+	}
+}
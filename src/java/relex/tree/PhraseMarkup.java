@@ -83,8 +83,31 @@ public class PhraseMarkup
 	/**
 	 * Take the indicated sentence, and add FeatureNodes to
 	 * it, corresponding to the phrase structure of the sentence.
+	 * The markup is done on an instance of its own, so that one
+	 * PhraseMarkup may be shared by several threads.
 	 */
 	public void markup(ParsedSentence sent)
+	{
+		PhraseMarkup pm = new PhraseMarkup();
+		pm.doMarkup(sent);
+	}
+
+	/**
+	 * Mark up the sentence, as markup() does, and then set its
+	 * phrase string from the marked-up tree, as the entity markup
+	 * leaves the string mangled.  This is what RelationExtractor and
+	 * the concurrent extractors do with each parse.
+	 */
+	public void markupTree(ParsedSentence sent)
+	{
+		markup(sent);
+
+		// Repair the entity-mangled tree-bank string.
+		PhraseTree pt = new PhraseTree(sent.getLeft());
+		sent.setPhraseString(pt.toString());
+	}
+
+	private void doMarkup(ParsedSentence sent)
 	{
 		word_index = 1;
 		sentence = sent;
@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.algs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import relex.ParsedSentence;
+import relex.feature.FeatureNode;
+
+/**
+ * Checks the DiscriminationNetwork against plain linear matching:
+ * every rule of the shipped rule files is matched against every node
+ * of randomly built feature graphs, once by trying each node in turn,
+ * and once through the root tests of the network.  The network must
+ * never reject a node, or a whole parse, that the rule matches.
+ *
+ * The graphs are built from the feature names and values that appear
+ * in the rules themselves, so that a good share of the rules fire.
+ * Lives in relex.algs, as the network is package-private.
+ */
+public class TestDiscriminationNetwork
+{
+	private static final String[] FILES = {
+		"relex-semantic.algs",
+		"relex-stanford.algs",
+		"relex-tagging.algs",
+		"relex-penn-tagging.algs",
+	};
+
+	private static final Pattern PATH = Pattern.compile("<([^>]*)>");
+	private static final Pattern TARGET = Pattern.compile(">\\s*!?=\\s*([^<\\s][^\\n]*)");
+
+	private Random rand;
+	private ArrayList<String> names;
+	private ArrayList<String> values;
+	private int pass;
+	private int fail;
+
+	public TestDiscriminationNetwork(long seed)
+	{
+		rand = new Random(seed);
+		names = new ArrayList<String>();
+		values = new ArrayList<String>();
+		pass = 0;
+		fail = 0;
+	}
+
+	private static byte[] readAll(InputStream in) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			out.write(buf, 0, n);
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the template matching rules of a rule file, and note
+	 *         the names and values their templates test for.
+	 */
+	private List<SentenceAlgorithm> load(String filename) throws Exception
+	{
+		byte[] source = readAll(AlgorithmApplier.getAlgorithmsFile("relex.test.none", filename));
+		List<SentenceAlgorithm> algs = new ArrayList<SentenceAlgorithm>();
+		HashSet<String> seenNames = new HashSet<String>(names);
+		HashSet<String> seenValues = new HashSet<String>(values);
+		for (String[] rule : AlgorithmApplier.readRules(new ByteArrayInputStream(source)))
+		{
+			Class<?> c = Class.forName("relex.algs." + rule[0]);
+			SentenceAlgorithm alg = (SentenceAlgorithm) c.newInstance();
+			alg.init(rule[1]);
+			if (!(alg instanceof TemplateMatchingAlg))
+				continue;
+			algs.add(alg);
+
+			String template = rule[1];
+			int end = template.indexOf("\n=\n");
+			if (end >= 0) template = template.substring(0, end);
+			Matcher m = PATH.matcher(template);
+			while (m.find())
+				for (String step : m.group(1).trim().split("\\s+"))
+					if (step.length() > 0 && seenNames.add(step))
+						names.add(step);
+			m = TARGET.matcher(template);
+			while (m.find())
+				for (String alt : m.group(1).trim().split("\\s*\\|\\s*"))
+					if (alt.length() > 0 && alt.charAt(0) != '$' &&
+					    !alt.equals("%") && seenValues.add(alt))
+						values.add(alt);
+		}
+		return algs;
+	}
+
+	/**
+	 * @return a value that the target string, literal or regex, matches.
+	 */
+	private String sample(String target)
+	{
+		if (target.charAt(0) != '\\')
+			return target;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i < target.length(); i++)
+		{
+			char c = target.charAt(i);
+			if (c == '\\' && i + 2 < target.length() &&
+			    target.charAt(i + 1) == '.' && target.charAt(i + 2) == '*')
+			{
+				int n = rand.nextInt(3);
+				for (int j = 0; j < n; j++)
+					sb.append((char) ('a' + rand.nextInt(26)));
+				i += 2;
+			}
+			else if (c == '\\' && i + 1 < target.length() && target.charAt(i + 1) == '.')
+			{
+				sb.append((char) ('a' + rand.nextInt(26)));
+				i += 1;
+			}
+			else
+				sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private FeatureNode randomNode(ArrayList<FeatureNode> pool, int depth)
+	{
+		FeatureNode f = new FeatureNode();
+		pool.add(f);
+		int n = 1 + rand.nextInt(6);
+		for (int i = 0; i < n; i++)
+		{
+			String name = names.get(rand.nextInt(names.size()));
+			int r = rand.nextInt(10);
+			if (depth > 0 && r < 3)
+				f.set(name, randomNode(pool, depth - 1));
+			else if (r < 4)
+				f.set(name, pool.get(rand.nextInt(pool.size())));
+			else if (r < 5)
+				f.set(name, new FeatureNode("xyzzy"));
+			else
+				f.set(name, new FeatureNode(sample(values.get(rand.nextInt(values.size())))));
+		}
+		return f;
+	}
+
+	/**
+	 * Match every rule on one random graph both ways, and compare.
+	 */
+	private boolean test_graph(List<SentenceAlgorithm> algs, DiscriminationNetwork network)
+	{
+		ArrayList<FeatureNode> pool = new ArrayList<FeatureNode>();
+		ParsedSentence sent = new ParsedSentence("");
+		sent.addWord(randomNode(pool, 4));
+
+		NodeIndex index = new NodeIndex(sent, network);
+		List<FeatureNode> nodes = index.getNodes();
+		boolean ok = true;
+		for (int i = 0; i < algs.size(); i++)
+		{
+			TemplateMatchingAlg alg = (TemplateMatchingAlg) algs.get(i);
+			DiscriminationNetwork.RootTest test = network.getTest(i);
+			boolean fired = false;
+			for (FeatureNode node : nodes)
+			{
+				if (alg.getTemplate().match(node) == null)
+					continue;
+				fired = true;
+				if (test != null && !test.admits(node))
+				{
+					System.err.println("Error: root test of " + alg.getSignature() +
+						" rejects a node the template matches");
+					ok = false;
+				}
+			}
+			if (fired)
+			{
+				pass++;
+				if (test != null && !test.admits(index.getLabels()))
+				{
+					System.err.println("Error: labels of the parse reject " +
+						alg.getSignature() + ", which fires on it");
+					ok = false;
+				}
+			}
+		}
+		if (!ok) fail++;
+		return ok;
+	}
+
+	public boolean test_network(int graphs) throws Exception
+	{
+		boolean rc = true;
+		for (String file : FILES)
+		{
+			List<SentenceAlgorithm> algs = load(file);
+			DiscriminationNetwork network = new DiscriminationNetwork(algs);
+			int before = pass;
+			for (int i = 0; i < graphs; i++)
+				rc &= test_graph(algs, network);
+
+			// A test that never sees a rule fire proves nothing.
+			if (pass == before)
+			{
+				System.err.println("Error: no rule of " + file + " fired on any graph");
+				rc = false;
+			}
+		}
+		report(rc, "DiscriminationNetwork");
+		return rc;
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " rule firings, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " graphs failed\n\t" +
+			                   pass + " rule firings seen");
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		long seed = (args.length > 0) ? Long.parseLong(args[0]) : 42;
+		TestDiscriminationNetwork ts = new TestDiscriminationNetwork(seed);
+		boolean rc = ts.test_network(2000);
+		if (!rc) System.exit(1);
+	}
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that ReorderBuffer hands out every item once: in sequence,
+ * when ordered, however the items are put; as they come, when not.
+ * Both are tried from one thread, and with many producer threads, kept
+ * within the window as ParallelRelationExtractor keeps them.
+ */
+public class TestReorderBuffer
+{
+	private int pass;
+	private int fail;
+
+	public TestReorderBuffer()
+	{
+		pass = 0;
+		fail = 0;
+	}
+
+	private boolean check(boolean ok, String what)
+	{
+		if (ok) {
+			pass++;
+		} else {
+			fail++;
+			System.err.println("Error: " + what);
+		}
+		return ok;
+	}
+
+	public boolean test_ordered()
+	{
+		boolean rc = true;
+		Random rand = new Random(5);
+		int window = 8;
+		ReorderBuffer<Long> buf = new ReorderBuffer<Long>(window, true);
+		long seq = 0;
+		for (int round = 0; round < 100; round++)
+		{
+			// A window's worth, put in any order.
+			ArrayList<Long> batch = new ArrayList<Long>();
+			int n = 1 + rand.nextInt(window);
+			for (int i = 0; i < n; i++)
+				batch.add(seq + i);
+			Collections.shuffle(batch, rand);
+
+			long taken = seq;
+			HashSet<Long> put = new HashSet<Long>();
+			for (Long item : batch)
+			{
+				buf.put(item.longValue(), item);
+				put.add(item);
+				Long got;
+				while ((got = buf.poll()) != null)
+				{
+					rc &= check(got.longValue() == taken,
+					            "got " + got + " where " + taken + " was due");
+					taken++;
+				}
+				// All that is in sequence comes out, up to a gap.
+				rc &= check(!put.contains(new Long(taken)),
+				            "item " + taken + " was put but not handed out");
+			}
+			rc &= check(taken == seq + n, "handed out " + (taken - seq) + " of " + n);
+			seq += n;
+		}
+		rc &= check(buf.poll() == null, "an empty buffer handed something out");
+		report(rc, "ReorderBuffer ordered");
+		return rc;
+	}
+
+	public boolean test_unordered()
+	{
+		boolean rc = true;
+		ReorderBuffer<Long> buf = new ReorderBuffer<Long>(4, false);
+		long[] order = {3, 1, 2, 0, 7, 5};
+		for (long seq : order)
+			buf.put(seq, new Long(seq));
+		for (long seq : order)
+		{
+			Long got = buf.poll();
+			rc &= check(got != null && got.longValue() == seq,
+			            "got " + got + " where " + seq + " was put");
+		}
+		rc &= check(buf.poll() == null, "an empty buffer handed something out");
+		report(rc, "ReorderBuffer unordered");
+		return rc;
+	}
+
+	public boolean test_wait() throws InterruptedException
+	{
+		boolean rc = true;
+		final ReorderBuffer<Long> buf = new ReorderBuffer<Long>(4, true);
+		long start = System.nanoTime();
+		rc &= check(buf.poll(50, TimeUnit.MILLISECONDS) == null,
+		            "waiting on an empty buffer gave an item");
+		rc &= check(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50),
+		            "waiting on an empty buffer did not wait");
+
+		Thread producer = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(50);
+				}
+				catch (InterruptedException e) {}
+				buf.put(0, new Long(0));
+			}
+		};
+		producer.start();
+		Long got = buf.poll(10, TimeUnit.SECONDS);
+		rc &= check(got != null && got.longValue() == 0, "a waiting consumer was not woken");
+		producer.join();
+
+		Thread.currentThread().interrupt();
+		boolean threw = false;
+		try
+		{
+			buf.poll(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			threw = true;
+		}
+		rc &= check(threw, "an interrupted wait did not throw");
+
+		report(rc, "ReorderBuffer wait");
+		return rc;
+	}
+
+	/**
+	 * Producers take sequence numbers, and put them, now and then
+	 * after yielding to the others; the consumer takes them all.
+	 */
+	private boolean concurrent(final boolean ordered, int producers, final int items)
+		throws InterruptedException
+	{
+		final int window = 16;
+		final ReorderBuffer<Long> buf = new ReorderBuffer<Long>(window, ordered);
+		final Semaphore room = new Semaphore(window);
+		final AtomicLong counter = new AtomicLong();
+		Thread[] threads = new Thread[producers];
+		for (int t = 0; t < producers; t++)
+		{
+			final Random rand = new Random(t);
+			threads[t] = new Thread()
+			{
+				public void run()
+				{
+					while (true)
+					{
+						room.acquireUninterruptibly();
+						long seq = counter.getAndIncrement();
+						if (seq >= items)
+						{
+							room.release();
+							return;
+						}
+						if (rand.nextInt(4) == 0)
+							Thread.yield();
+						buf.put(seq, new Long(seq));
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		boolean rc = true;
+		boolean[] seen = new boolean[items];
+		for (int i = 0; i < items; i++)
+		{
+			Long got = buf.poll(10, TimeUnit.SECONDS);
+			if (!check(got != null, "item " + i + " never came"))
+				return false;
+			room.release();
+			int seq = (int) got.longValue();
+			if (ordered)
+				rc &= check(seq == i, "got " + seq + " where " + i + " was due");
+			rc &= check(!seen[seq], "got " + seq + " twice");
+			seen[seq] = true;
+		}
+		for (Thread t : threads)
+			t.join();
+		rc &= check(buf.poll() == null, "got more items than were put");
+		return rc;
+	}
+
+	public boolean test_concurrent() throws InterruptedException
+	{
+		boolean rc = true;
+		rc &= concurrent(true, 8, 200000);
+		rc &= concurrent(false, 8, 200000);
+		rc &= concurrent(true, 1, 10000);
+		report(rc, "ReorderBuffer concurrent");
+		return rc;
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " cases, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " cases failed\n\t" +
+			                   pass + " cases passed");
+		}
+		pass = 0;
+		fail = 0;
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		TestReorderBuffer ts = new TestReorderBuffer();
+		boolean rc = true;
+		rc &= ts.test_ordered();
+		rc &= ts.test_unordered();
+		rc &= ts.test_wait();
+		rc &= ts.test_concurrent();
+		if (!rc) System.exit(1);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.feature;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks the release and reuse of FeatureArena storage: graphs built
+ * in arenas that recycle the storage of earlier ones must come out
+ * the same as graphs built without any arena; nodes of a released
+ * arena must fail when used; detached graphs must survive release.
+ */
+public class TestFeatureArena
+{
+	private static final String[] NAMES = {
+		"str", "POS", "NEXT", "PREV", "ref", "links", "_subj", "_obj",
+		"tense", "noun_number", "linkL0", "linkR0", "head-word", "wall",
+	};
+
+	private int pass;
+	private int fail;
+
+	public TestFeatureArena()
+	{
+		pass = 0;
+		fail = 0;
+	}
+
+	/**
+	 * Build a graph from the seed, with enough features, and enough
+	 * changes to them, to grow and free arrays of several sizes.
+	 */
+	private static FeatureNode build(long seed)
+	{
+		Random rand = new Random(seed);
+		ArrayList<FeatureNode> nodes = new ArrayList<FeatureNode>();
+		FeatureNode root = new FeatureNode();
+		nodes.add(root);
+		int n = 20 + rand.nextInt(200);
+		for (int i = 0; i < n; i++)
+		{
+			FeatureNode f = nodes.get(rand.nextInt(nodes.size()));
+			String name = NAMES[rand.nextInt(NAMES.length)];
+			if (rand.nextInt(8) == 0)
+				name = name + rand.nextInt(30);
+			switch (rand.nextInt(5))
+			{
+				case 0:
+					f.set(name, null);
+					break;
+				case 1:
+					f.set(name, nodes.get(rand.nextInt(nodes.size())));
+					break;
+				case 2:
+					f.set(name, new FeatureNode("v" + rand.nextInt(10)));
+					break;
+				default:
+					FeatureNode g = new FeatureNode();
+					nodes.add(g);
+					f.set(name, g);
+			}
+		}
+		return root;
+	}
+
+	private boolean check(boolean ok, String what)
+	{
+		if (ok) {
+			pass++;
+		} else {
+			fail++;
+			System.err.println("Error: " + what);
+		}
+		return ok;
+	}
+
+	public boolean test_reuse()
+	{
+		boolean rc = true;
+		FeatureArena.Pool pool = new FeatureArena.Pool();
+		for (long seed = 0; seed < 300; seed++)
+		{
+			String expected = build(seed).toString();
+
+			FeatureArena arena = new FeatureArena(pool);
+			arena.enter();
+			FeatureNode f;
+			try
+			{
+				f = build(seed);
+			}
+			finally
+			{
+				arena.exit();
+			}
+			rc &= check(expected.equals(f.toString()),
+			            "graph " + seed + " differs when built in a recycled arena");
+			arena.release();
+		}
+		report(rc, "Arena reuse");
+		return rc;
+	}
+
+	private static boolean fails(FeatureNode f)
+	{
+		try
+		{
+			f.getFeatureNames();
+			return false;
+		}
+		catch (IllegalStateException e)
+		{
+			return true;
+		}
+	}
+
+	public boolean test_released()
+	{
+		boolean rc = true;
+		FeatureArena.Pool pool = new FeatureArena.Pool();
+		FeatureNode outside = new FeatureNode();
+
+		FeatureArena arena = new FeatureArena(pool);
+		arena.enter();
+		FeatureNode inside = build(7);
+		FeatureNode kept = build(8);
+		outside.set("ref", inside);
+		arena.exit();
+
+		String expected = kept.toString();
+		FeatureArena.detach(kept);
+		arena.release();
+
+		rc &= check(fails(inside), "a released node can still be used");
+		rc &= check(fails(outside.get("ref")),
+		            "a released node can still be reached from outside the arena");
+		rc &= check(expected.equals(kept.toString()), "a detached graph did not survive release");
+
+		boolean threw = false;
+		try
+		{
+			inside.forceValue("x");
+		}
+		catch (IllegalStateException e)
+		{
+			threw = true;
+		}
+		rc &= check(threw, "a released node can be brought back with forceValue()");
+
+		report(rc, "Arena release");
+		return rc;
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " cases, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " cases failed\n\t" +
+			                   pass + " cases passed");
+		}
+		pass = 0;
+		fail = 0;
+	}
+
+	public static void main(String[] args)
+	{
+		TestFeatureArena ts = new TestFeatureArena();
+		boolean rc = true;
+		rc &= ts.test_reuse();
+		rc &= ts.test_released();
+		if (!rc) System.exit(1);
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import relex.ParsedSentence;
+import relex.Sentence;
+import relex.feature.FeatureNode;
+import relex.feature.LinkableView;
+
+/**
+ * Checks that CachingParser hands out, for texts that differ only in
+ * whitespace, sentences with the text and character offsets of the
+ * text asked for, whether or not the parse came from the cache.
+ * Lives in relex.parser, to build ParseRecords by hand.
+ */
+public class TestCachingParser
+{
+	private int pass;
+	private int fail;
+
+	public TestCachingParser()
+	{
+		pass = 0;
+		fail = 0;
+	}
+
+	/**
+	 * Stands in for link-grammar: one linkage, the words as split at
+	 * whitespace, each linked to the next.
+	 */
+	static class FakeLGParser extends LGParser
+	{
+		int calls = 0;
+
+		public String getVersion()
+		{
+			return "fake";
+		}
+
+		public ParseRecord parseRecord(String text)
+		{
+			calls++;
+			String[] split = text.trim().split("\\s+");
+			ParseRecord rec = new ParseRecord(text);
+			ParseRecord.LinkageRecord lkg =
+				new ParseRecord.LinkageRecord(split.length + 1, split.length);
+			lkg.words[0] = "LEFT-WALL";
+			for (int i = 0; i < split.length; i++)
+			{
+				lkg.words[i + 1] = split[i];
+				lkg.linkLeft[i] = i;
+				lkg.linkRight[i] = i + 1;
+				lkg.linkLLabel[i] = "X";
+				lkg.linkRLabel[i] = "X";
+				lkg.linkLabel[i] = "X";
+			}
+			rec.linkages.add(lkg);
+			rec.numLinkages = 1;
+			return rec;
+		}
+
+		public Sentence parse(String text)
+		{
+			return parseRecord(text).toSentence();
+		}
+	}
+
+	/**
+	 * A parser whose Sentences the cache must keep whole, and which
+	 * cannot parse batches.
+	 */
+	static class FakeParser implements IParser
+	{
+		FakeLGParser lgp = new FakeLGParser();
+
+		public Sentence parse(String text)
+		{
+			return lgp.parse(text);
+		}
+	}
+
+	private boolean check(boolean ok, String what)
+	{
+		if (ok) {
+			pass++;
+		} else {
+			fail++;
+			System.err.println("Error: " + what);
+		}
+		return ok;
+	}
+
+	/**
+	 * @return whether the sentence is that of the text, and each word
+	 *         is found in the text at its character offsets.
+	 */
+	private boolean checkSentence(Sentence sntc, String text)
+	{
+		boolean rc = check(sntc != null, "no sentence for \"" + text + "\"");
+		if (!rc) return rc;
+		rc &= check(text.equals(sntc.getSentence()),
+		            "got the sentence \"" + sntc.getSentence() + "\" for \"" + text + "\"");
+		ParsedSentence parse = sntc.getParses().get(0);
+		for (int i = 1; i < parse.getNumWords(); i++)
+		{
+			FeatureNode fn = parse.getWordAsNode(i);
+			int start = LinkableView.getStartChar(fn);
+			int end = LinkableView.getEndChar(fn);
+			String word = parse.getWord(i);
+			boolean ok = 0 <= start && end <= text.length() &&
+				text.substring(start, end).equals(word);
+			rc &= check(ok, "\"" + word + "\" is not at " + start + "-" + end +
+			            " of \"" + text + "\"");
+		}
+		return rc;
+	}
+
+	private static final String[] VARIANTS = {
+		"the cat sat",
+		"the  cat sat",
+		"  the cat\tsat  ",
+		"the cat\n sat",
+	};
+
+	public boolean test_records()
+	{
+		boolean rc = true;
+		FakeLGParser lgp = new FakeLGParser();
+		CachingParser cp = new CachingParser(lgp);
+		for (String text : VARIANTS)
+			rc &= checkSentence(cp.parse(text), text);
+		rc &= check(lgp.calls == 1, "whitespace variants were parsed " + lgp.calls + " times");
+		rc &= check(cp.getHitCount() == VARIANTS.length - 1,
+		            "whitespace variants got " + cp.getHitCount() + " hits");
+
+		// The same, through a batch, with a text not seen before.
+		List<String> batch = new ArrayList<String>(Arrays.asList(VARIANTS));
+		batch.add(1, "a dog  barked");
+		List<Sentence> out = cp.parseBatch(batch);
+		for (int i = 0; i < batch.size(); i++)
+			rc &= checkSentence(out.get(i), batch.get(i));
+		rc &= check(lgp.calls == 2, "the batch was parsed " + (lgp.calls - 1) + " times");
+
+		report(rc, "CachingParser records");
+		return rc;
+	}
+
+	public boolean test_sentences()
+	{
+		boolean rc = true;
+		FakeParser fp = new FakeParser();
+		CachingParser cp = new CachingParser(fp);
+		for (String text : VARIANTS)
+			rc &= checkSentence(cp.parse(text), text);
+		for (String text : VARIANTS)
+			rc &= checkSentence(cp.parse(text), text);
+		rc &= check(fp.lgp.calls == VARIANTS.length,
+		            "whitespace variants were parsed " + fp.lgp.calls + " times");
+		rc &= check(cp.getHitCount() == VARIANTS.length,
+		            "repeats got " + cp.getHitCount() + " hits");
+
+		// A batch, with a text not seen before, parsed one by one.
+		List<String> batch = new ArrayList<String>(Arrays.asList(VARIANTS));
+		batch.add(1, "a dog  barked");
+		List<Sentence> out = cp.parseBatch(batch);
+		for (int i = 0; i < batch.size(); i++)
+			rc &= checkSentence(out.get(i), batch.get(i));
+		rc &= check(fp.lgp.calls == VARIANTS.length + 1,
+		            "the batch was parsed " + (fp.lgp.calls - VARIANTS.length) + " times");
+
+		report(rc, "CachingParser sentences");
+		return rc;
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " cases, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " cases failed\n\t" +
+			                   pass + " cases passed");
+		}
+		pass = 0;
+		fail = 0;
+	}
+
+	public static void main(String[] args)
+	{
+		TestCachingParser ts = new TestCachingParser();
+		boolean rc = true;
+		rc &= ts.test_records();
+		rc &= ts.test_sentences();
+		if (!rc) System.exit(1);
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Checks that LGReplyReader decodes link-grammar server replies:
+ * the fields it keeps, escapes and UTF-8, keys it does not know, a
+ * reply read a byte at a time, and a reader reused for several
+ * replies; and that it rejects replies it cannot make a ParseRecord
+ * of, such as a null word.
+ */
+public class TestLGReplyReader
+{
+	private int pass;
+	private int fail;
+
+	public TestLGReplyReader()
+	{
+		pass = 0;
+		fail = 0;
+	}
+
+	/**
+	 * Hands out one byte per read, as a slow socket might.
+	 */
+	static class Trickle extends InputStream
+	{
+		private final byte[] bytes;
+		private int pos = 0;
+
+		Trickle(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		public int read()
+		{
+			return (pos < bytes.length) ? (bytes[pos++] & 0xff) : -1;
+		}
+
+		public int read(byte[] b, int off, int len)
+		{
+			if (pos >= bytes.length) return -1;
+			b[off] = bytes[pos++];
+			return 1;
+		}
+	}
+
+	private static final String REPLY =
+		"{\"numSkippedWords\":1, \"version\":\"5.0\", \"extra\":{\"a\":[1,2.5e3,-3,true,false,null,{}],\"b\":[]},\n" +
+		" \"linkages\":[{\"words\":[\"LEFT-WALL\",\"the\",\"caf\\u00e9\",\"na\u00efve\",\"\ud83d\ude00\",\"say \\\"hi\\\"\\n\",\"RIGHT-WALL\"],\n" +
+		"   \"disjunctCost\":2, \"linkageCost\":-4, \"numViolations\":1.0,\n" +
+		"   \"constituentString\":\"(S (NP the caf\u00e9))\",\n" +
+		"   \"links\":[{\"label\":\"Wd\",\"left\":0,\"right\":2,\"leftLabel\":\"Wd\",\"rightLabel\":\"Wd\",\"unknown\":[null]},\n" +
+		"            {\"left\":1,\"right\":2,\"label\":\"Ds\",\"leftLabel\":\"D\",\"rightLabel\":\"Ds\"}]},\n" +
+		"  {\"words\":[\"LEFT-WALL\",\"the\"], \"constituentString\":null, \"links\":[], \"linkCost\":7}]}";
+
+	private static byte[] utf8(String s) throws IOException
+	{
+		return s.getBytes("UTF-8");
+	}
+
+	private boolean check(boolean ok, String what)
+	{
+		if (ok) {
+			pass++;
+		} else {
+			fail++;
+			System.err.println("Error: " + what);
+		}
+		return ok;
+	}
+
+	private boolean checkReply(ParseRecord rec, String how)
+	{
+		boolean rc = true;
+		rc &= check("the text".equals(rec.getText()), how + ": text");
+		rc &= check(rec.numSkippedWords == 1, how + ": numSkippedWords");
+		rc &= check(rec.numLinkages == 2, how + ": numLinkages");
+		if (!check(rec.linkages.size() == 2, how + ": " + rec.linkages.size() + " linkages"))
+			return false;
+
+		ParseRecord.LinkageRecord lkg = rec.linkages.get(0);
+		String[] words = {"LEFT-WALL", "the", "caf\u00e9", "na\u00efve",
+			"\ud83d\ude00", "say \"hi\"\n", "RIGHT-WALL"};
+		rc &= check(lkg.words.length == words.length, how + ": number of words");
+		for (int i = 0; i < words.length && i < lkg.words.length; i++)
+			rc &= check(words[i].equals(lkg.words[i]),
+			            how + ": word " + i + " is \"" + lkg.words[i] + "\"");
+		rc &= check(lkg.disjunctCost == 2, how + ": disjunctCost");
+		rc &= check(lkg.linkCost == -4, how + ": linkCost");
+		rc &= check(lkg.numViolations == 1, how + ": numViolations");
+		rc &= check("(S (NP the caf\u00e9))".equals(lkg.constituentString),
+		            how + ": constituentString");
+		rc &= check(lkg.getNumLinks() == 2, how + ": number of links");
+		if (lkg.getNumLinks() == 2)
+		{
+			rc &= check(lkg.linkLeft[0] == 0 && lkg.linkRight[0] == 2 &&
+			            "Wd".equals(lkg.linkLabel[0]) && "Wd".equals(lkg.linkLLabel[0]) &&
+			            "Wd".equals(lkg.linkRLabel[0]), how + ": first link");
+			rc &= check(lkg.linkLeft[1] == 1 && lkg.linkRight[1] == 2 &&
+			            "Ds".equals(lkg.linkLabel[1]) && "D".equals(lkg.linkLLabel[1]) &&
+			            "Ds".equals(lkg.linkRLabel[1]), how + ": second link");
+		}
+
+		lkg = rec.linkages.get(1);
+		rc &= check(lkg.words.length == 2 && lkg.getNumLinks() == 0,
+		            how + ": second linkage");
+		rc &= check(lkg.constituentString == null, how + ": null constituentString");
+		rc &= check(lkg.linkCost == 7, how + ": linkCost, by its other name");
+		return rc;
+	}
+
+	public boolean test_read() throws IOException
+	{
+		boolean rc = true;
+		byte[] reply = utf8(REPLY);
+		rc &= checkReply(new LGReplyReader(new ByteArrayInputStream(reply)).read("the text"),
+		                 "whole");
+		rc &= checkReply(new LGReplyReader(new Trickle(reply)).read("the text"),
+		                 "a byte at a time");
+
+		// Reused, with replies of other sizes in between.
+		LGReplyReader reader = new LGReplyReader();
+		for (int i = 0; i < 3; i++)
+		{
+			reader.reset(new ByteArrayInputStream(utf8("{\"linkages\":[]}")));
+			ParseRecord rec = reader.read("none");
+			rc &= check(rec.linkages.isEmpty() && rec.numLinkages == 0,
+			            "reused: empty reply");
+			reader.reset(new ByteArrayInputStream(reply));
+			rc &= checkReply(reader.read("the text"), "reused");
+		}
+
+		// More links than the reader has room for at first.
+		StringBuilder sb = new StringBuilder("{\"linkages\":[{\"words\":[\"LEFT-WALL\"],\"links\":[");
+		for (int i = 0; i < 200; i++)
+		{
+			if (i > 0) sb.append(',');
+			sb.append("{\"left\":").append(i).append(",\"right\":").append(i + 1);
+			sb.append(",\"label\":\"L").append(i).append("\",\"leftLabel\":\"x\",\"rightLabel\":\"y\"}");
+		}
+		sb.append("]}]}");
+		reader.reset(new ByteArrayInputStream(utf8(sb.toString())));
+		ParseRecord.LinkageRecord lkg = reader.read("many").linkages.get(0);
+		rc &= check(lkg.getNumLinks() == 200 && lkg.linkRight[199] == 200 &&
+		            "L199".equals(lkg.linkLabel[199]), "200 links");
+
+		report(rc, "LGReplyReader read");
+		return rc;
+	}
+
+	/**
+	 * @return whether the reply is rejected with an IOException, of
+	 *         the given class.
+	 */
+	private static boolean rejects(String reply, Class<?> cls) throws IOException
+	{
+		try
+		{
+			new LGReplyReader(new ByteArrayInputStream(utf8(reply))).read("bad");
+			return false;
+		}
+		catch (IOException e)
+		{
+			return cls.isInstance(e);
+		}
+	}
+
+	public boolean test_reject() throws IOException
+	{
+		boolean rc = true;
+		rc &= check(rejects("{\"linkages\":[{\"words\":[\"LEFT-WALL\",null]}]}", IOException.class),
+		            "a null word was taken");
+		rc &= check(rejects("{\"linkages\":[{\"links\":[{\"label\":null}]}]}", IOException.class),
+		            "a null link label was taken");
+		rc &= check(rejects("{\"linkages\":[{\"words\":[\"LEFT-WALL\",\"th", EOFException.class),
+		            "a reply cut off in a string was taken");
+		rc &= check(rejects("{\"numSkippedWords\":", EOFException.class),
+		            "a reply cut off before a value was taken");
+		rc &= check(rejects("{\"numSkippedWords\" 1}", IOException.class),
+		            "a key without a colon was taken");
+		rc &= check(rejects("{\"linkages\":[{\"words\":[\"a\" \"b\"]}]}", IOException.class),
+		            "words without a comma were taken");
+		rc &= check(rejects("{\"numSkippedWords\":\"one\"}", IOException.class),
+		            "a string for a number was taken");
+		rc &= check(rejects("{\"x\":nul}", IOException.class),
+		            "a misspelt literal was taken");
+		rc &= check(rejects("{\"linkages\":[{\"words\":[\"\\u00zz\"]}]}", IOException.class),
+		            "a bad unicode escape was taken");
+
+		boolean threw = false;
+		try
+		{
+			byte[] bad = {'{', '"', (byte) 0xc3, 'x', '"', ':', '1', '}'};
+			new LGReplyReader(new ByteArrayInputStream(bad)).read("bad");
+		}
+		catch (IOException e)
+		{
+			threw = true;
+		}
+		rc &= check(threw, "malformed UTF-8 was taken");
+
+		report(rc, "LGReplyReader reject");
+		return rc;
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " cases, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " cases failed\n\t" +
+			                   pass + " cases passed");
+		}
+		pass = 0;
+		fail = 0;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		TestLGReplyReader ts = new TestLGReplyReader();
+		boolean rc = true;
+		rc &= ts.test_read();
+		rc &= ts.test_reject();
+		if (!rc) System.exit(1);
+	}
+}
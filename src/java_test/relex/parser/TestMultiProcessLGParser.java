@@ -0,0 +1,244 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import relex.Sentence;
+
+/**
+ * Checks that a MultiProcessLGParser whose caller is interrupted while
+ * waiting for a reply does not hand that reply to the next caller;
+ * nor when the interrupt comes from an AsyncParser, cancelling a parse
+ * or giving up on it.
+ * The workers parse with SlowParser, which needs no link-grammar, and
+ * takes its time over the sentences that start with "a slow".
+ * Lives in relex.parser, to pick the main class of the workers.
+ */
+public class TestMultiProcessLGParser
+{
+	private int pass;
+	private int fail;
+
+	public TestMultiProcessLGParser()
+	{
+		pass = 0;
+		fail = 0;
+	}
+
+	/**
+	 * Stands in for link-grammar in the workers: a record with the
+	 * text, and no linkages.
+	 */
+	static class SlowParser extends LocalLGParser
+	{
+		public void init()
+		{
+		}
+
+		public void close()
+		{
+		}
+
+		public String getVersion()
+		{
+			return "slow";
+		}
+
+		public ParseRecord parseRecord(String text)
+		{
+			if (text.startsWith("a slow"))
+			{
+				try
+				{
+					Thread.sleep(3000);
+				}
+				catch (InterruptedException e) {}
+			}
+			return new ParseRecord(text);
+		}
+	}
+
+	/**
+	 * The main class of the worker processes.
+	 */
+	public static class SlowWorker
+	{
+		public static void main(String[] args) throws IOException
+		{
+			LGParserWorker.serve(args, new SlowParser());
+		}
+	}
+
+	/**
+	 * Parses in a thread of its own, to be interrupted.
+	 */
+	static class Caller extends Thread
+	{
+		final MultiProcessLGParser parser;
+		final List<String> texts;
+		RuntimeException error;
+		boolean interrupted;
+
+		Caller(MultiProcessLGParser parser, List<String> texts)
+		{
+			this.parser = parser;
+			this.texts = texts;
+		}
+
+		public void run()
+		{
+			try
+			{
+				if (texts.size() == 1)
+					parser.parseRecord(texts.get(0));
+				else
+					parser.parseRecords(texts);
+			}
+			catch (RuntimeException e)
+			{
+				error = e;
+			}
+			interrupted = Thread.currentThread().isInterrupted();
+		}
+	}
+
+	private boolean check(boolean ok, String what)
+	{
+		if (ok) {
+			pass++;
+		} else {
+			fail++;
+			System.err.println("Error: " + what);
+		}
+		return ok;
+	}
+
+	/**
+	 * Interrupt a caller that waits on the texts, then parse others.
+	 */
+	private boolean interrupt(MultiProcessLGParser mp, String... texts)
+		throws InterruptedException
+	{
+		boolean rc = true;
+		String how = Arrays.asList(texts).toString();
+		Caller c = new Caller(mp, Arrays.asList(texts));
+		c.start();
+		Thread.sleep(500);
+		c.interrupt();
+		c.join(10000);
+		rc &= check(!c.isAlive(), how + ": an interrupted caller went on waiting");
+		rc &= check(c.error instanceof ParseException,
+		            how + ": an interrupted caller got " + c.error);
+		rc &= check(c.interrupted, how + ": the interrupt status was lost");
+
+		ParseRecord rec = mp.parseRecord("the fast sentence");
+		rc &= check("the fast sentence".equals(rec.getText()),
+		            how + ": the next caller got the record of \"" + rec.getText() + "\"");
+		List<String> next = Arrays.asList("one", "two", "three");
+		List<ParseRecord> recs = mp.parseRecords(next);
+		for (int i = 0; i < next.size(); i++)
+			rc &= check(recs.get(i) != null && next.get(i).equals(recs.get(i).getText()),
+			            how + ": the next batch got a record of another text");
+		return rc;
+	}
+
+	public boolean test_interrupt() throws InterruptedException
+	{
+		boolean rc = true;
+		MultiProcessLGParser mp = new MultiProcessLGParser(1, SlowWorker.class);
+		try
+		{
+			rc &= check("warm up".equals(mp.parseRecord("warm up").getText()),
+			            "the worker did not start");
+			rc &= interrupt(mp, "a slow sentence");
+			rc &= interrupt(mp, "a slow one", "a slow two", "the third");
+		}
+		finally
+		{
+			mp.close();
+		}
+		report(rc, "MultiProcessLGParser interrupt");
+		return rc;
+	}
+
+	/**
+	 * @return whether the next parse through the AsyncParser is of
+	 *         its own text.
+	 */
+	private boolean checkNext(AsyncParser ap, String how) throws Exception
+	{
+		Sentence sntc = ap.parse("the fast sentence").get();
+		return check("the fast sentence".equals(sntc.getSentence()),
+		             how + ": the next parse got the sentence \"" + sntc.getSentence() + "\"");
+	}
+
+	public boolean test_async() throws Exception
+	{
+		boolean rc = true;
+		MultiProcessLGParser mp = new MultiProcessLGParser(1, SlowWorker.class);
+		AsyncParser ap = new AsyncParser(mp, 1);
+		try
+		{
+			rc &= checkNext(ap, "warm up");
+
+			Future<Sentence> f = ap.parse("a slow sentence");
+			Thread.sleep(500);
+			rc &= check(f.cancel(true), "a running parse could not be cancelled");
+			rc &= checkNext(ap, "cancelled");
+
+			// Given up on GRACE_MILLIS after its deadline.
+			long start = System.currentTimeMillis();
+			Sentence sntc = ap.parse("a slow sentence", 100).get();
+			rc &= check(sntc.isTimedOut() && sntc.getParses().isEmpty(),
+			            "a parse past its deadline was not given up on");
+			rc &= check(System.currentTimeMillis() - start < 2500,
+			            "a parse past its deadline was waited for");
+			rc &= checkNext(ap, "given up on");
+		}
+		finally
+		{
+			ap.close();
+			mp.close();
+		}
+		report(rc, "MultiProcessLGParser through AsyncParser");
+		return rc;
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " cases, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " cases failed\n\t" +
+			                   pass + " cases passed");
+		}
+		pass = 0;
+		fail = 0;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		TestMultiProcessLGParser ts = new TestMultiProcessLGParser();
+		boolean rc = true;
+		rc &= ts.test_interrupt();
+		rc &= ts.test_async();
+		if (!rc) System.exit(1);
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that ParseRecords come back from their binary form, and from
+ * a ParseStore, as they went in; and that a store opens again after
+ * damage: torn data at the end of the last segment is cut off, and a
+ * damaged record elsewhere is skipped.
+ */
+public class TestParseStore
+{
+	private int pass;
+	private int fail;
+	private File tmp;
+
+	public TestParseStore() throws IOException
+	{
+		pass = 0;
+		fail = 0;
+		tmp = File.createTempFile("relex-parse-store", "");
+		tmp.delete();
+	}
+
+	private boolean check(boolean ok, String what)
+	{
+		if (ok) {
+			pass++;
+		} else {
+			fail++;
+			System.err.println("Error: " + what);
+		}
+		return ok;
+	}
+
+	private static String text(Random rand, int words)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++)
+		{
+			if (i > 0) sb.append(' ');
+			int n = 1 + rand.nextInt(8);
+			for (int j = 0; j < n; j++)
+				sb.append((char) ('a' + rand.nextInt(26)));
+			if (rand.nextInt(20) == 0)
+				sb.append("é中");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A record with every field used: several linkages, nulls, and,
+	 * in some, disjuncts and senses.
+	 */
+	static ParseRecord record(Random rand, String text)
+	{
+		String[] split = text.split(" ");
+		ParseRecord rec = new ParseRecord(text);
+		rec.numSkippedWords = rand.nextInt(3);
+		int nl = 1 + rand.nextInt(3);
+		rec.numLinkages = nl + rand.nextInt(5);
+		for (int k = 0; k < nl; k++)
+		{
+			ParseRecord.LinkageRecord lkg =
+				new ParseRecord.LinkageRecord(split.length + 1, split.length);
+			lkg.words[0] = "LEFT-WALL";
+			for (int i = 0; i < split.length; i++)
+			{
+				lkg.words[i + 1] = split[i];
+				lkg.linkLeft[i] = rand.nextInt(i + 1);
+				lkg.linkRight[i] = i + 1;
+				lkg.linkLLabel[i] = "S" + rand.nextInt(9);
+				lkg.linkRLabel[i] = "O" + rand.nextInt(9);
+				lkg.linkLabel[i] = "X";
+			}
+			lkg.linkString = (rand.nextBoolean()) ? null : "+--" + text + "--+";
+			lkg.constituentString = (rand.nextBoolean()) ? null : "(S " + text + ")";
+			lkg.disjunctCost = rand.nextInt(4);
+			lkg.linkCost = rand.nextInt(20);
+			lkg.numViolations = rand.nextInt(2);
+			if (rand.nextBoolean())
+			{
+				int nd = split.length;
+				lkg.disjuncts = new String[nd];
+				lkg.senses = new String[nd][];
+				lkg.senseScores = new double[nd][];
+				for (int i = 0; i < nd; i++)
+				{
+					lkg.disjuncts[i] = (rand.nextInt(5) == 0) ? null : "S+ O-";
+					int ns = rand.nextInt(3);
+					lkg.senses[i] = new String[ns];
+					lkg.senseScores[i] = new double[ns];
+					for (int n = 0; n < ns; n++)
+					{
+						lkg.senses[i][n] = split[i] + "%" + n;
+						lkg.senseScores[i][n] = rand.nextDouble();
+					}
+				}
+			}
+			rec.linkages.add(lkg);
+		}
+		return rec;
+	}
+
+	static byte[] bytes(ParseRecord rec) throws IOException
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		rec.writeTo(out);
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private boolean same(ParseRecord a, ParseRecord b) throws IOException
+	{
+		return a != null && b != null && Arrays.equals(bytes(a), bytes(b));
+	}
+
+	public boolean test_record() throws IOException
+	{
+		boolean rc = true;
+		Random rand = new Random(12);
+		for (int i = 0; i < 200; i++)
+		{
+			ParseRecord rec = record(rand, text(rand, 1 + rand.nextInt(30)));
+			byte[] b = bytes(rec);
+			ParseRecord back = ParseRecord.readFrom(
+				new DataInputStream(new ByteArrayInputStream(b)));
+			rc &= check(same(rec, back), "record " + i + " differs after reading it back");
+			rc &= check(rec.toSentence().toString().equals(back.toSentence().toString()),
+			            "record " + i + " makes a different sentence after reading it back");
+		}
+		report(rc, "ParseRecord round trip");
+		return rc;
+	}
+
+	private File newDir()
+	{
+		File dir = new File(tmp, "store" + System.nanoTime());
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static File segment(File dir, int n)
+	{
+		return new File(dir, "parses-0000" + n + ".seg");
+	}
+
+	/**
+	 * Fill a store with records, over as many segments as it takes.
+	 * @return the keys, in the order written.
+	 */
+	private String[] fill(File dir, Random rand, int n, long segmentSize)
+		throws IOException
+	{
+		ParseStore store = new ParseStore(dir, segmentSize);
+		String[] keys = new String[n];
+		for (int i = 0; i < n; i++)
+		{
+			keys[i] = i + " " + text(rand, 1 + rand.nextInt(20));
+			store.put(keys[i], record(new Random(i), keys[i]));
+		}
+		store.close();
+		return keys;
+	}
+
+	private boolean checkAll(ParseStore store, String[] keys, int skip, String what)
+		throws IOException
+	{
+		boolean rc = true;
+		for (int i = 0; i < keys.length; i++)
+		{
+			ParseRecord rec = store.get(keys[i]);
+			if (i == skip)
+				rc &= check(rec == null, what + ": damaged record " + i + " was read");
+			else
+				rc &= check(same(record(new Random(i), keys[i]), rec),
+				            what + ": record " + i + " differs");
+		}
+		return rc;
+	}
+
+	public boolean test_store() throws IOException
+	{
+		boolean rc = true;
+		File dir = newDir();
+		Random rand = new Random(34);
+		String[] keys = fill(dir, rand, 300, 16 * 1024);
+		rc &= check(segment(dir, 2).exists(), "the records did not fill three segments");
+
+		ParseStore store = new ParseStore(dir, 16 * 1024);
+		rc &= check(store.size() == keys.length, "the store has " + store.size() + " keys");
+		rc &= checkAll(store, keys, -1, "reopened");
+		rc &= check(store.get("no such key") == null, "found a record never written");
+
+		// A later record overrides an earlier one.
+		ParseRecord rec = record(rand, "a b c");
+		store.put(keys[3], rec);
+		rc &= check(same(rec, store.get(keys[3])), "a rewritten record was not the latest");
+
+		// Keys past the 64K limit of writeUTF.
+		String big = text(rand, 20000);
+		ParseRecord bigRec = record(rand, "big");
+		store.put(big, bigRec);
+		store.close();
+		store = new ParseStore(dir, 16 * 1024);
+		rc &= check(same(rec, store.get(keys[3])), "a rewritten record was not the latest on reopening");
+		rc &= check(same(bigRec, store.get(big)), "a record with a long key was lost");
+		store.close();
+
+		report(rc, "ParseStore round trip");
+		return rc;
+	}
+
+	private static void poke(File f, long pos, int b) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.seek(pos);
+		raf.write(b);
+		raf.close();
+	}
+
+	private static void cut(File f, long len) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(len);
+		raf.close();
+	}
+
+	public boolean test_recovery() throws IOException
+	{
+		boolean rc = true;
+
+		// A torn record at the end of the last segment is cut off,
+		// and the store can be written to again.
+		File dir = newDir();
+		String[] keys = fill(dir, new Random(56), 40, 1024 * 1024);
+		File last = segment(dir, 0);
+		rc &= check(!segment(dir, 1).exists(), "the records did not fit in one segment");
+		long full = last.length();
+		ParseStore store = new ParseStore(dir, 1024 * 1024);
+		store.put("torn", record(new Random(0), "torn"));
+		store.close();
+		cut(last, last.length() - 5);
+		store = new ParseStore(dir, 1024 * 1024);
+		rc &= check(last.length() == full, "a torn record was not cut off");
+		rc &= checkAll(store, keys, -1, "torn");
+		rc &= check(store.get("torn") == null, "a torn record was read");
+		store.put("torn", record(new Random(0), "torn"));
+		store.close();
+		store = new ParseStore(dir, 1024 * 1024);
+		rc &= check(same(record(new Random(0), "torn"), store.get("torn")),
+		            "a record written after a cut was lost");
+		store.close();
+
+		// A damaged last record is cut off as well.
+		long end = last.length();
+		poke(last, end - 3, 0x5a);
+		store = new ParseStore(dir, 1024 * 1024);
+		rc &= check(store.get("torn") == null, "a damaged last record was read");
+		rc &= check(last.length() < end, "a damaged last record was not cut off");
+		rc &= checkAll(store, keys, -1, "damaged last");
+		store.close();
+
+		// A damaged record inside the last segment is skipped, and
+		// nothing after it is lost.
+		poke(last, 8 + 30, 0x5a);
+		store = new ParseStore(dir, 1024 * 1024);
+		rc &= check(last.length() == full, "records after a damaged one were cut off");
+		rc &= checkAll(store, keys, 0, "damaged first");
+		store.close();
+
+		// A damaged record in an earlier segment is skipped.
+		dir = newDir();
+		keys = fill(dir, new Random(78), 300, 16 * 1024);
+		File first = segment(dir, 0);
+		long size = first.length();
+		poke(first, 8 + 30, 0x5a);
+		store = new ParseStore(dir, 16 * 1024);
+		rc &= check(first.length() == size, "an earlier segment was cut");
+		rc &= checkAll(store, keys, 0, "damaged earlier");
+		store.close();
+
+		// Records that cannot be found in an earlier segment are an
+		// error, not something to cut off.
+		poke(first, 8, 0x7f);
+		boolean threw = false;
+		try
+		{
+			new ParseStore(dir, 16 * 1024).close();
+		}
+		catch (IOException e)
+		{
+			threw = true;
+		}
+		rc &= check(threw, "a store with an unreadable earlier segment was opened");
+		rc &= check(first.length() == size, "an unreadable earlier segment was cut");
+
+		report(rc, "ParseStore recovery");
+		return rc;
+	}
+
+	private static void delete(File f)
+	{
+		File[] files = f.listFiles();
+		if (files != null)
+			for (File g : files)
+				delete(g);
+		f.delete();
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " cases, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " cases failed\n\t" +
+			                   pass + " cases passed");
+		}
+		pass = 0;
+		fail = 0;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		TestParseStore ts = new TestParseStore();
+		boolean rc = true;
+		try
+		{
+			rc &= ts.test_record();
+			rc &= ts.test_store();
+			rc &= ts.test_recovery();
+		}
+		finally
+		{
+			delete(ts.tmp);
+		}
+		if (!rc) System.exit(1);
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package relex.parser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks TokenAligner against the indexOf loop it replaced, which
+ * found the character offsets of the words of each linkage, one
+ * linkage at a time.  Both are run on random sentences, and random
+ * word lists: in order, out of order, with repeats, with words not in
+ * the text, and in any case.  The offsets must be the same.
+ * Lives in relex.parser, as TokenAligner is package-private.
+ */
+public class TestTokenAligner
+{
+	private static final String[] VOCABULARY = {
+		"the", "The", "cat", "a", "at", "sat", "on", "mat", "Cat",
+		"hat", "ate", "at", "an", "and", "Ann", ",", ".", "'s", "cat.n",
+	};
+
+	private Random rand;
+	private int pass;
+	private int fail;
+
+	public TestTokenAligner(long seed)
+	{
+		rand = new Random(seed);
+		pass = 0;
+		fail = 0;
+	}
+
+	/**
+	 * The old loop, as it was in LocalLGParser and RemoteLGParser.
+	 * @return the start and end offsets of each word.
+	 */
+	static int[][] indexOfLoop(String sentence, String[] words)
+	{
+		int[][] out = new int[words.length][];
+		int startChar = 0;
+		HashMap<String,Integer> timesTokenSeen = new HashMap<String,Integer>();
+		for (int w = 0; w < words.length; w++)
+		{
+			String tokenString = words[w].toLowerCase();
+			String sentenceString = sentence.toLowerCase();
+			Integer timesSeenInt = timesTokenSeen.get(tokenString);
+			int timesSeen = (timesSeenInt == null ? 0 : timesSeenInt.intValue());
+
+			// "x<=" means we will do at least once
+			for (int x = 0; x <= timesSeen; x++)
+			{
+				startChar = sentenceString.indexOf(tokenString,startChar);
+			}
+
+			timesTokenSeen.put(tokenString, new Integer(timesSeen + 1));
+			int endChar = (startChar >= 0 ? startChar + tokenString.length() : -1);
+			out[w] = new int[] {startChar, endChar};
+			startChar = Math.max(startChar, endChar);
+		}
+		return out;
+	}
+
+	private String word()
+	{
+		return VOCABULARY[rand.nextInt(VOCABULARY.length)];
+	}
+
+	/**
+	 * @return the words of a linkage of the sentence: mostly its own
+	 *         words, in order, but now and then out of order, left
+	 *         out, or not in the sentence at all.
+	 */
+	private String[] linkage(String[] sentence)
+	{
+		ArrayList<String> words = new ArrayList<String>();
+		for (String w : sentence)
+		{
+			int r = rand.nextInt(20);
+			if (r == 0)
+				continue;
+			else if (r == 1)
+				words.add(word());
+			else if (r == 2)
+				words.add(sentence[rand.nextInt(sentence.length)]);
+			else if (r == 3)
+				words.add(w.toUpperCase());
+			words.add(w);
+		}
+		return words.toArray(new String[words.size()]);
+	}
+
+	private boolean test_sentence()
+	{
+		String[] sentence = new String[1 + rand.nextInt(25)];
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < sentence.length; i++)
+		{
+			sentence[i] = word();
+			if (i > 0 && rand.nextInt(4) != 0) sb.append(' ');
+			sb.append(sentence[i]);
+		}
+		String text = sb.toString();
+
+		boolean ok = true;
+		TokenAligner aligner = new TokenAligner(text);
+		int linkages = 1 + rand.nextInt(5);
+		for (int k = 0; k < linkages; k++)
+		{
+			String[] words = linkage(sentence);
+			int[][] expected = indexOfLoop(text, words);
+			aligner.reset();
+			for (int w = 0; w < words.length; w++)
+			{
+				int start = aligner.align(words[w]);
+				int end = (start >= 0 ? start + aligner.length(words[w]) : -1);
+				if (start != expected[w][0] || end != expected[w][1])
+				{
+					System.err.println("Error: \"" + words[w] + "\", word " + w +
+						" of linkage " + k + " of \"" + text + "\", is at " +
+						start + "-" + end + ", not " +
+						expected[w][0] + "-" + expected[w][1]);
+					ok = false;
+				}
+			}
+		}
+		if (ok) pass++;
+		else fail++;
+		return ok;
+	}
+
+	public boolean test_aligner(int sentences)
+	{
+		boolean rc = true;
+		for (int i = 0; i < sentences; i++)
+			rc &= test_sentence();
+		report(rc, "TokenAligner");
+		return rc;
+	}
+
+	public void report(boolean rc, String subsys)
+	{
+		if (rc) {
+			System.err.println(subsys + ": Tested " + pass + " sentences, test passed OK");
+		} else {
+			System.err.println(subsys + ": Test failed\n\t" +
+			                   fail + " sentences failed\n\t" +
+			                   pass + " sentences passed");
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		long seed = (args.length > 0) ? Long.parseLong(args[0]) : 42;
+		TestTokenAligner ts = new TestTokenAligner(seed);
+		boolean rc = ts.test_aligner(5000);
+		if (!rc) System.exit(1);
+	}
+}